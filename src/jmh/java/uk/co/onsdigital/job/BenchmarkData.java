@@ -0,0 +1,52 @@
+package uk.co.onsdigital.job;
+
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.model.DimensionFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+public final class BenchmarkData {
+    /** Number of dimensions in each generated request. */
+    public static final int DIMENSIONS = 3;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return the name of the dimension with the given index.
+     */
+    public static String dimensionName(int dimension) {
+        return "dimension" + dimension;
+    }
+
+    /**
+     * @return the value of the option with the given index in the given dimension.
+     */
+    public static String optionValue(int dimension, int option) {
+        return "dimension " + dimension + " option " + option;
+    }
+
+    /**
+     * Creates a job request filtering each of {@link #DIMENSIONS} dimensions to the given number of options, listed in
+     * reverse order so that they need sorting.
+     */
+    public static CreateJobRequest createJobRequest(UUID dataSetId, int optionCount) {
+        final CreateJobRequest request = new CreateJobRequest();
+        request.setDataSetId(dataSetId);
+        final List<DimensionFilter> dimensions = new ArrayList<>();
+        for (int d = 0; d < DIMENSIONS; ++d) {
+            final List<String> options = new ArrayList<>();
+            for (int i = optionCount; i > 0; --i) {
+                options.add(optionValue(d, i));
+            }
+            dimensions.add(new DimensionFilter(dimensionName(d), options));
+        }
+        request.setDimensions(dimensions);
+        return request;
+    }
+}
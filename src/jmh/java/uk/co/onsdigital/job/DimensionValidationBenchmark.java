@@ -0,0 +1,97 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.discovery.model.DataSet;
+import uk.co.onsdigital.discovery.model.Dimension;
+import uk.co.onsdigital.discovery.model.DimensionValue;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.persistence.AbstractInMemoryDatabaseTests;
+import uk.co.onsdigital.job.persistence.DataSetRepository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures validating the dimension values of a job request against an in-memory H2 dataset containing every requested
+ * option, both through the in-memory dimension index and by querying the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DimensionValidationBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int optionCount;
+
+    @Param({"true", "false"})
+    private boolean indexed;
+
+    private EntityManagerFactory entityManagerFactory;
+    private EntityManager entityManager;
+    private JobController jobController;
+    private CreateJobRequest request;
+
+    @Setup
+    public void setup() {
+        entityManagerFactory = AbstractInMemoryDatabaseTests.getInMemoryEntityManagerFactory("benchmark");
+        entityManager = entityManagerFactory.createEntityManager();
+        final UUID dataSetId = createDataSet();
+
+        // Without the index the dataset is remembered as too big to index, as in production, so that each call only runs
+        // the query for the requested values rather than also counting the dataset's values again
+        final long maxIndexedValuesPerDataSet = indexed ? Long.MAX_VALUE : 0;
+        final DataSetRepository dataSetRepository = new DataSetRepository(entityManager, new MetricRegistry(), 100, 3600, 3600,
+                Long.MAX_VALUE, maxIndexedValuesPerDataSet);
+        jobController = new JobController(dataSetRepository, null, null, null, null, null, null, null, null, null, null, 100, false, null, null, 0);
+        request = BenchmarkData.createJobRequest(dataSetId, optionCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        entityManager.close();
+        entityManagerFactory.close();
+    }
+
+    @Benchmark
+    public CreateJobRequest validateDimensionValues() {
+        return jobController.validateDimensionValues(request);
+    }
+
+    private UUID createDataSet() {
+        entityManager.getTransaction().begin();
+        final DataSet dataSet = new DataSet();
+        dataSet.setId(UUID.randomUUID());
+        dataSet.setS3URL("s3://input/dataset.csv");
+        entityManager.persist(dataSet);
+        for (int d = 0; d < BenchmarkData.DIMENSIONS; ++d) {
+            final UUID dimensionId = UUID.randomUUID();
+            Dimension dimension = new Dimension();
+            dimension.setId(dimensionId);
+            dimension.setDataSet(dataSet);
+            dimension.setName(BenchmarkData.dimensionName(d));
+            dimension.setType("benchmark");
+            entityManager.persist(dimension);
+            for (int i = 1; i <= optionCount; ++i) {
+                final DimensionValue value = new DimensionValue();
+                value.setId(UUID.randomUUID());
+                value.setDimension(dimension);
+                value.setValue(BenchmarkData.optionValue(d, i));
+                entityManager.persist(value);
+                if (i % 1000 == 0) {
+                    entityManager.flush();
+                    entityManager.clear();
+                    dimension = entityManager.getReference(Dimension.class, dimensionId);
+                }
+            }
+        }
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+        return dataSet.getId();
+    }
+}
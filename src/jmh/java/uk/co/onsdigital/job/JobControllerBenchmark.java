@@ -0,0 +1,37 @@
+package uk.co.onsdigital.job;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.service.FilterFingerprinter;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating the base file name for a job request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobControllerBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int optionCount;
+
+    private JobController jobController;
+    private CreateJobRequest request;
+
+    @Setup
+    public void setup() {
+        jobController = new JobController(null, null, null, null, null, null, null, null, null, null, new FilterFingerprinter(), 100, false, null, null, 0);
+        request = BenchmarkData.createJobRequest(UUID.randomUUID(), optionCount);
+    }
+
+    @Benchmark
+    public String generateBaseFileName() {
+        return jobController.generateBaseFileName(request);
+    }
+}
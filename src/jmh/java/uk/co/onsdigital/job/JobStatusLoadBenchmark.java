@@ -0,0 +1,136 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.web.context.request.async.DeferredResult;
+import uk.co.onsdigital.job.model.FileDto;
+import uk.co.onsdigital.job.model.JobDto;
+import uk.co.onsdigital.job.model.StatusDto;
+import uk.co.onsdigital.job.persistence.JobRepository;
+import uk.co.onsdigital.job.service.BenchmarkServices;
+import uk.co.onsdigital.job.service.Bulkhead;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of {@code GET /job/{id}} through {@link JobController} with a job repository that takes a fixed time to
+ * answer each query. Each of the benchmark threads stands in for a concurrent request and waits for its
+ * {@link DeferredResult}, as the servlet container would. The work runs either on the request thread itself, or on a
+ * database {@link Bulkhead} of the given size. The query only sleeps, so this measures the cost of handing requests to
+ * the bulkhead and completing them rather than the capacity of a real database or connection pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class JobStatusLoadBenchmark {
+
+    /** Where the status checks run: on the request thread, or on a bulkhead with the given number of threads. */
+    @Param({"request", "4", "16", "64"})
+    private String databaseThreads;
+
+    @Param({"5"})
+    private long queryLatencyMillis;
+
+    private Bulkhead bulkhead;
+    private JobController jobController;
+    private String jobId;
+
+    @Setup
+    public void setup() {
+        final JobDto job = completeJob();
+        jobId = job.getId();
+
+        final Executor databaseExecutor;
+        if ("request".equals(databaseThreads)) {
+            databaseExecutor = Runnable::run;
+        } else {
+            // Room in the queue for every request, so that none are rejected
+            bulkhead = new Bulkhead("database", Integer.parseInt(databaseThreads), 64, new MetricRegistry());
+            databaseExecutor = bulkhead;
+        }
+
+        jobController = new JobController(null, null, null, new SlowJobRepository(job, queryLatencyMillis),
+                BenchmarkServices.jobStatusChecker(), null, null, null, null, null, null, 100, false,
+                new NoOpTransactionManager(), databaseExecutor, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (bulkhead != null) {
+            bulkhead.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Object getJobStatus() throws InterruptedException {
+        final CountDownLatch handled = new CountDownLatch(1);
+        final DeferredResult<ResponseEntity<JobDto>> result = jobController.getJobStatus(jobId);
+        result.setResultHandler(value -> handled.countDown());
+        handled.await();
+        return result.getResult();
+    }
+
+    private static JobDto completeJob() {
+        final FileDto file = new FileDto("benchmark.csv");
+        file.setStatus(StatusDto.COMPLETE);
+        file.setUrl("http://localhost/benchmark.csv");
+        final JobDto job = new JobDto(Collections.singletonList(file), new Date(Long.MAX_VALUE));
+        job.setStatus(StatusDto.COMPLETE);
+        return job;
+    }
+
+    /**
+     * Job repository that answers every lookup with the same job after a delay, as a database query would.
+     */
+    private static class SlowJobRepository extends JobRepository {
+        private final JobDto job;
+        private final long latencyMillis;
+
+        SlowJobRepository(final JobDto job, final long latencyMillis) {
+            super(null, new MetricRegistry());
+            this.job = job;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public JobDto findOne(final String jobId) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return job;
+        }
+    }
+
+    /**
+     * Transaction manager with nothing to commit, so that only the query latency is measured.
+     */
+    private static class NoOpTransactionManager implements PlatformTransactionManager {
+        @Override
+        public TransactionStatus getTransaction(final TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(final TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(final TransactionStatus status) {
+        }
+    }
+}
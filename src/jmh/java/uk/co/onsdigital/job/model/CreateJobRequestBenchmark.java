@@ -0,0 +1,36 @@
+package uk.co.onsdigital.job.model;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.job.BenchmarkData;
+
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sorting the dimension filters of a job request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateJobRequestBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int optionCount;
+
+    private CreateJobRequest request;
+
+    @Setup
+    public void setup() {
+        request = BenchmarkData.createJobRequest(UUID.randomUUID(), optionCount);
+    }
+
+    @Benchmark
+    public SortedMap<String, SortedSet<String>> getSortedDimensionFilters() {
+        return request.getSortedDimensionFilters();
+    }
+}
@@ -0,0 +1,48 @@
+package uk.co.onsdigital.job.model;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.discovery.model.Job;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures converting jobs between the API and database models. Jobs have one file per requested format, so the
+ * number of files rather than the number of options determines the cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobDtoBenchmark {
+
+    @Param({"1", "10"})
+    private int fileCount;
+
+    private JobDto jobDto;
+    private Job job;
+
+    @Setup
+    public void setup() {
+        final List<FileDto> files = new ArrayList<>();
+        for (int i = 0; i < fileCount; ++i) {
+            files.add(new FileDto("file" + i + ".csv"));
+        }
+        jobDto = new JobDto(files, new Date());
+        job = jobDto.convertToModel();
+    }
+
+    @Benchmark
+    public Job convertToModel() {
+        return jobDto.convertToModel();
+    }
+
+    @Benchmark
+    public JobDto convertFromModel() {
+        return JobDto.convertFromModel(job);
+    }
+}
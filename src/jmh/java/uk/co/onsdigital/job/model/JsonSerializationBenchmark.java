@@ -0,0 +1,52 @@
+package uk.co.onsdigital.job.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.job.BenchmarkData;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serialising the filter requests sent to Kafka and the job status returned by the API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int optionCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private FilterRequest filterRequest;
+    private JobDto jobDto;
+
+    @Setup
+    public void setup() {
+        final CreateJobRequest request = BenchmarkData.createJobRequest(UUID.randomUUID(), optionCount);
+        filterRequest = FilterRequest.builder()
+                .requestId(UUID.randomUUID().toString())
+                .inputUrl("s3://input/dataset.csv")
+                .outputUrl("s3://output/file.csv")
+                .dimensions(request.getSortedDimensionFilters())
+                .build();
+        jobDto = new JobDto(Collections.singletonList(new FileDto("file.csv")), new Date());
+    }
+
+    @Benchmark
+    public String serializeFilterRequest() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(filterRequest);
+    }
+
+    @Benchmark
+    public String serializeJobDto() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(jobDto);
+    }
+}
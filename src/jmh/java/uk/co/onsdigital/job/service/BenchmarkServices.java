@@ -0,0 +1,19 @@
+package uk.co.onsdigital.job.service;
+
+import org.springframework.web.util.UriTemplate;
+
+/**
+ * Services for benchmarks outside this package that cannot construct them directly.
+ */
+public final class BenchmarkServices {
+
+    private BenchmarkServices() {
+    }
+
+    /**
+     * @return a status checker that relies on the reconciler, so never lists the output bucket on reads.
+     */
+    public static JobStatusChecker jobStatusChecker() {
+        return new JobStatusChecker(null, new UriTemplate("http://localhost/{filename}"), 1000, true);
+    }
+}
@@ -0,0 +1,50 @@
+package uk.co.onsdigital.job.service;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.job.BenchmarkData;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the canonical fingerprint with the previous approach of hashing the string form of the sorted filters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterFingerprinterBenchmark {
+    private static final Base64.Encoder filenameEncoder = Base64.getUrlEncoder().withoutPadding();
+
+    @Param({"10", "1000", "50000"})
+    private int optionCount;
+
+    private final FilterFingerprinter fingerprinter = new FilterFingerprinter();
+    private CreateJobRequest request;
+
+    @Setup
+    public void setup() {
+        request = BenchmarkData.createJobRequest(UUID.randomUUID(), optionCount);
+    }
+
+    @Benchmark
+    public String fingerprint() {
+        return fingerprinter.fingerprint(request);
+    }
+
+    /** The file name generation previously done by {@code JobController.generateBaseFileName}. */
+    @Benchmark
+    public String previousFileName() throws NoSuchAlgorithmException {
+        final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(request.getDataSetId().toString().getBytes(StandardCharsets.UTF_8));
+        sha256.update(request.getSortedDimensionFilters().toString().getBytes(StandardCharsets.UTF_8));
+        return filenameEncoder.encodeToString(sha256.digest());
+    }
+}
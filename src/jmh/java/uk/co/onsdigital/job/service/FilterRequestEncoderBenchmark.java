@@ -0,0 +1,53 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import uk.co.onsdigital.job.BenchmarkData;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.model.FilterRequest;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encoding filter requests as Kafka messages with each encoding. The size of the message produced
+ * for each combination of parameters is printed when the benchmark is set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterRequestEncoderBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int optionCount;
+
+    @Param({"JSON", "GZIP"})
+    private FilterRequestEncoder.Encoding encoding;
+
+    private FilterRequestEncoder encoder;
+    private FilterRequest filterRequest;
+
+    @Setup
+    public void setup() {
+        final CreateJobRequest request = BenchmarkData.createJobRequest(UUID.randomUUID(), optionCount);
+        filterRequest = FilterRequest.builder()
+                .requestId(UUID.randomUUID().toString())
+                .inputUrl("s3://input/dataset.csv")
+                .outputUrl("s3://output/file.csv")
+                .dimensions(request.getSortedDimensionFilters())
+                .build();
+        // Claim checks are disabled so that only the encoding is measured
+        encoder = new FilterRequestEncoder(new ObjectMapper(), null, new MetricRegistry(), encoding, 0, "unused");
+        System.out.printf("%n%s encoding of %d options per dimension: %d bytes%n", encoding, optionCount,
+                encoder.encode(filterRequest, "file.csv").length());
+    }
+
+    @Benchmark
+    public String encode() {
+        return encoder.encode(filterRequest, "file.csv");
+    }
+}
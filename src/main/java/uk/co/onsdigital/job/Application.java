@@ -3,10 +3,14 @@ package uk.co.onsdigital.job;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
@@ -15,8 +19,12 @@ import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
 import org.springframework.context.annotation.*;
 import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import uk.co.onsdigital.job.service.Bulkhead;
 
 import javax.persistence.*;
 import java.util.*;
@@ -28,6 +36,7 @@ import static java.util.Arrays.asList;
  */
 @SpringBootApplication
 @EnableScheduling
+@EnableTransactionManagement
 @EnableAutoConfiguration(exclude={DataSourceAutoConfiguration.class,HibernateJpaAutoConfiguration.class})
 @ComponentScan("uk.co.onsdigital")
 public class Application  {
@@ -38,16 +47,48 @@ public class Application  {
     }
 
     @Bean
-    KafkaProducer<String, String> getKafkaProducer(@Value("${kafka.server}") String bootstrapServers) {
+    KafkaProducer<String, String> getKafkaProducer(@Value("${kafka.server}") String bootstrapServers,
+                                                   @Value("${kafka.producer.acks}") String acks,
+                                                   @Value("${kafka.producer.linger.ms}") String lingerMs,
+                                                   @Value("${kafka.producer.batch.size}") String batchSize,
+                                                   @Value("${kafka.producer.compression.type}") String compressionType,
+                                                   @Value("${kafka.producer.buffer.memory}") String bufferMemory,
+                                                   @Value("${kafka.producer.max.block.ms}") String maxBlockMs,
+                                                   @Value("${kafka.producer.partitioner.class}") String partitionerClass) {
         final Properties kafkaProperties = new Properties();
         kafkaProperties.setProperty("bootstrap.servers", bootstrapServers);
         kafkaProperties.setProperty("key.serializer", StringSerializer.class.getName());
         kafkaProperties.setProperty("value.serializer", StringSerializer.class.getName());
+        kafkaProperties.setProperty("acks", acks);
+        kafkaProperties.setProperty("linger.ms", lingerMs);
+        kafkaProperties.setProperty("batch.size", batchSize);
+        kafkaProperties.setProperty("compression.type", compressionType);
+        kafkaProperties.setProperty("buffer.memory", bufferMemory);
+        // Never hold up a request thread for long waiting for buffer space or metadata
+        kafkaProperties.setProperty("max.block.ms", maxBlockMs);
+        kafkaProperties.setProperty("partitioner.class", partitionerClass);
 
         log.info("Starting Kafka Producer: {}", kafkaProperties);
         return new KafkaProducer<>(kafkaProperties);
     }
 
+    @Bean
+    KafkaConsumer<String, String> getKafkaConsumer(@Value("${kafka.server}") String bootstrapServers,
+                                                   @Value("${kafka.completion.group.id}") String groupId,
+                                                   @Value("${kafka.completion.max.poll.records}") String maxPollRecords) {
+        final Properties kafkaProperties = new Properties();
+        kafkaProperties.setProperty("bootstrap.servers", bootstrapServers);
+        kafkaProperties.setProperty("group.id", groupId);
+        kafkaProperties.setProperty("key.deserializer", StringDeserializer.class.getName());
+        kafkaProperties.setProperty("value.deserializer", StringDeserializer.class.getName());
+        // Offsets are committed once each batch has been written to the database
+        kafkaProperties.setProperty("enable.auto.commit", "false");
+        kafkaProperties.setProperty("max.poll.records", maxPollRecords);
+
+        log.info("Starting Kafka Consumer: {}", kafkaProperties);
+        return new KafkaConsumer<>(kafkaProperties);
+    }
+
     @Bean
     AmazonS3Client getAmazonS3Client() {
         final AmazonS3Client client = new AmazonS3Client();
@@ -55,9 +96,72 @@ public class Application  {
         return client;
     }
 
+    /**
+     * Registry of the timers, counters and gauges reported by the {@code /metrics} endpoint.
+     */
+    @Bean
+    MetricRegistry getMetricRegistry() {
+        return new MetricRegistry();
+    }
+
+    /**
+     * Threads that handle job requests, which hold a database connection for as long as they run. Keeping this smaller
+     * than the connection pool leaves connections free for the scheduled tasks.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Qualifier(Bulkhead.DATABASE)
+    Bulkhead getDatabaseBulkhead(MetricRegistry metricRegistry,
+                                 @Value("${bulkhead.database.threads}") int threads,
+                                 @Value("${bulkhead.database.queue.size}") int queueSize) {
+        return new Bulkhead(Bulkhead.DATABASE, threads, queueSize, metricRegistry);
+    }
+
+    /**
+     * Threads that list the output files in S3.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Qualifier(Bulkhead.S3)
+    Bulkhead getS3Bulkhead(MetricRegistry metricRegistry,
+                           @Value("${bulkhead.s3.threads}") int threads,
+                           @Value("${bulkhead.s3.queue.size}") int queueSize) {
+        return new Bulkhead(Bulkhead.S3, threads, queueSize, metricRegistry);
+    }
+
+    /**
+     * Threads that run the scheduled tasks. Without this, every task shares a single thread, so a slow S3 listing or
+     * expiry sweep would hold up the tasks that answer long-polls and record Kafka acknowledgements.
+     */
     @Bean
-    public EntityManagerFactory getEntityManagerFactory() {
+    ThreadPoolTaskScheduler getTaskScheduler(@Value("${scheduler.pool.size}") int poolSize) {
+        log.info("Starting ThreadPoolTaskScheduler. scheduler.pool.size={}", poolSize);
+        final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadNamePrefix("scheduler-");
+        return scheduler;
+    }
+
+    /**
+     * Connections are taken from the pool by each database thread and scheduler thread, by the Kafka completion
+     * listener, and by the leader lock for as long as this node holds it. If there are not enough to go round, callers
+     * wait for a connection only until the checkout timeout, so that a request fails with 503 rather than hanging.
+     */
+    @Bean
+    public EntityManagerFactory getEntityManagerFactory(@Value("${database.pool.max.size}") int maxPoolSize,
+                                                        @Value("${database.pool.checkout.timeout.ms}") int checkoutTimeoutMs,
+                                                        @Value("${bulkhead.database.threads}") int databaseThreads,
+                                                        @Value("${scheduler.pool.size}") int schedulerPoolSize) {
+        log.info("Starting EntityManagerFactory. database.pool.max.size={}, database.pool.checkout.timeout.ms={}",
+                maxPoolSize, checkoutTimeoutMs);
+        // One connection each for the leader lock and the completion listener
+        final int connectionsNeeded = databaseThreads + schedulerPoolSize + 2;
+        if (connectionsNeeded > maxPoolSize) {
+            log.warn("database.pool.max.size={} is less than the {} connections needed by bulkhead.database.threads, " +
+                    "scheduler.pool.size, the leader lock and the completion listener", maxPoolSize, connectionsNeeded);
+        }
+
         final Map<String, String> env = new HashMap<>();
+        env.put("hibernate.c3p0.max_size", String.valueOf(maxPoolSize));
+        env.put("hibernate.c3p0.checkoutTimeout", String.valueOf(checkoutTimeoutMs));
         for (String property : asList("url", "driver", "user", "password")) {
             String value = System.getenv("DB_" + property.toUpperCase());
             if (value != null) {
@@ -72,9 +176,14 @@ public class Application  {
         return Persistence.createEntityManagerFactory("data_discovery", env);
     }
 
+    /**
+     * Returns a thread-safe proxy that delegates to the {@link EntityManager} bound to the current transaction by the
+     * {@link JpaTransactionManager}. Each request therefore gets its own persistence context (and connection from the
+     * pool) rather than sharing a single, non-thread-safe instance.
+     */
     @Bean @Primary
     public EntityManager getEntityManager(final EntityManagerFactory emf) {
-        return emf.createEntityManager();
+        return SharedEntityManagerCreator.createSharedEntityManager(emf);
     }
 
     @Bean
@@ -0,0 +1,172 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+import uk.co.onsdigital.job.exception.RateLimitExceededException;
+import uk.co.onsdigital.job.service.ClientRateLimiter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Applies a {@link ClientRateLimiter} per client to job creation and to job status requests, with separate limits for
+ * each, so that one busy client cannot lock everyone else out of the pending job limit or swamp the status checks.
+ * Every request is limited by its IP address, and requests that send one of the configured API keys are also limited
+ * by that key, so that made-up keys cannot be used to get a fresh limit. Requests are limited before they reach the
+ * controller, so rejected requests never start a transaction. A batch of jobs is charged one token up front and the
+ * rest by the controller once it knows the size of the batch, through {@link #acquireForJobs}.
+ */
+@Component
+public class ClientRateLimitFilter extends OncePerRequestFilter {
+    private static final Logger log = LoggerFactory.getLogger(ClientRateLimitFilter.class);
+    /** Request attribute holding the charge for further jobs in a job creation request. */
+    private static final String CREATE_CHARGE_ATTRIBUTE = ClientRateLimitFilter.class.getName() + ".createCharge";
+
+    private final ClientRateLimiter createLimiter;
+    private final ClientRateLimiter pollLimiter;
+    private final String clientHeader;
+    private final Set<String> clientKeys;
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    @Autowired
+    ClientRateLimitFilter(final MetricRegistry metricRegistry,
+                          final @Value("${rate.limit.client.header}") String clientHeader,
+                          final @Value("${rate.limit.client.keys}") String[] clientKeys,
+                          final @Value("${rate.limit.create.per.second}") double createPerSecond,
+                          final @Value("${rate.limit.create.burst}") long createBurst,
+                          final @Value("${rate.limit.poll.per.second}") double pollPerSecond,
+                          final @Value("${rate.limit.poll.burst}") long pollBurst,
+                          final @Value("${rate.limit.max.clients}") long maxClients,
+                          final @Value("${rate.limit.idle.seconds}") long idleSeconds) {
+        this(new ClientRateLimiter("create", createPerSecond, createBurst, maxClients, idleSeconds, metricRegistry),
+                new ClientRateLimiter("poll", pollPerSecond, pollBurst, maxClients, idleSeconds, metricRegistry),
+                clientHeader, clientKeys);
+    }
+
+    @VisibleForTesting
+    ClientRateLimitFilter(final ClientRateLimiter createLimiter, final ClientRateLimiter pollLimiter,
+                          final String clientHeader, final String... clientKeys) {
+        this.createLimiter = createLimiter;
+        this.pollLimiter = pollLimiter;
+        this.clientHeader = clientHeader;
+        this.clientKeys = Arrays.stream(clientKeys).map(String::trim).filter(key -> !key.isEmpty())
+                .collect(Collectors.toSet());
+        log.info("Starting ClientRateLimitFilter. rate.limit.client.header={}, rate.limit.client.keys={} keys, " +
+                "create={}, poll={}", clientHeader, this.clientKeys.size(), createLimiter, pollLimiter);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        final ClientRateLimiter limiter = limiterFor(request);
+        if (limiter != null && limiter.isEnabled()) {
+            final List<String> clientIds = clientIds(request);
+            final long waitNanos = tryAcquire(limiter, clientIds, 1);
+            if (waitNanos > 0) {
+                final long retryAfterSeconds = retryAfterSeconds(waitNanos);
+                log.debug("Rate limiting {} request from {} - retry after {}s", limiter.getName(), clientIds, retryAfterSeconds);
+                response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+                response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), tooManyRequestsMessage(retryAfterSeconds));
+                return;
+            }
+            if (limiter == createLimiter) {
+                request.setAttribute(CREATE_CHARGE_ATTRIBUTE, (IntToLongFunction) jobs -> tryAcquire(limiter, clientIds, jobs));
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    /**
+     * Charges a job creation request for more jobs than the one it was charged for when it arrived, e.g. for the rest
+     * of a batch.
+     *
+     * @param request the job creation request.
+     * @param jobs the number of further jobs to charge for.
+     * @throws RateLimitExceededException if the client does not have enough tokens left.
+     */
+    static void acquireForJobs(final HttpServletRequest request, final int jobs) {
+        final IntToLongFunction charge = (IntToLongFunction) request.getAttribute(CREATE_CHARGE_ATTRIBUTE);
+        if (charge == null || jobs <= 0) {
+            return;
+        }
+        final long waitNanos = charge.applyAsLong(jobs);
+        if (waitNanos > 0) {
+            final long retryAfterSeconds = retryAfterSeconds(waitNanos);
+            throw new RateLimitExceededException(tooManyRequestsMessage(retryAfterSeconds), retryAfterSeconds);
+        }
+    }
+
+    /**
+     * Takes tokens from the bucket of each of the client's identities, stopping at the first that refuses.
+     *
+     * @return zero if the request is allowed, otherwise how long in nanoseconds until it would be.
+     */
+    private static long tryAcquire(final ClientRateLimiter limiter, final List<String> clientIds, final int permits) {
+        for (String clientId : clientIds) {
+            final long waitNanos = limiter.tryAcquire(clientId, permits);
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+        }
+        return 0;
+    }
+
+    private static long retryAfterSeconds(final long waitNanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    private static String tooManyRequestsMessage(final long retryAfterSeconds) {
+        return "Sorry - too many requests from this client. Please try again in " + retryAfterSeconds + " seconds";
+    }
+
+    /**
+     * @return the limiter for the endpoint that the request is for, or null if the endpoint is not limited.
+     */
+    private ClientRateLimiter limiterFor(final HttpServletRequest request) {
+        final String path = urlPathHelper.getPathWithinApplication(request);
+        if ("POST".equals(request.getMethod()) && ("/job".equals(path) || "/jobs".equals(path))) {
+            return createLimiter;
+        }
+        if ("GET".equals(request.getMethod()) && path.startsWith("/job/")) {
+            return pollLimiter;
+        }
+        return null;
+    }
+
+    /**
+     * Identifies the client by its address, and also by its API key if it is one of the configured keys. The two are
+     * kept apart so that a client cannot claim another's address as its key.
+     */
+    private List<String> clientIds(final HttpServletRequest request) {
+        final String address = "ip:" + request.getRemoteAddr();
+        final String apiKey = Strings.emptyToNull(request.getHeader(clientHeader));
+        if (apiKey == null) {
+            return Collections.singletonList(address);
+        }
+        if (!clientKeys.contains(apiKey)) {
+            log.debug("Ignoring unknown {} from {}", clientHeader, address);
+            return Collections.singletonList(address);
+        }
+        return Arrays.asList(address, "key:" + apiKey);
+    }
+}
@@ -2,69 +2,227 @@ package uk.co.onsdigital.job;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import uk.co.onsdigital.job.exception.*;
 import uk.co.onsdigital.job.model.*;
 import uk.co.onsdigital.job.persistence.DataSetRepository;
+import uk.co.onsdigital.job.persistence.HierarchyRepository;
 import uk.co.onsdigital.job.persistence.JobRepository;
+import uk.co.onsdigital.job.service.Bulkhead;
+import uk.co.onsdigital.job.service.FilterFingerprinter;
 import uk.co.onsdigital.job.service.FilterServiceClient;
+import uk.co.onsdigital.job.service.JobCostEstimator;
+import uk.co.onsdigital.job.service.JobRequestCoalescer;
 import uk.co.onsdigital.job.service.JobStatusChecker;
+import uk.co.onsdigital.job.service.JobStatusNotifier;
+import uk.co.onsdigital.job.service.PendingJobCounter;
+import uk.co.onsdigital.job.service.PendingRowBudget;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import static java.time.Instant.now;
 import static java.time.temporal.ChronoUnit.HOURS;
-import static uk.co.onsdigital.job.model.StatusDto.PENDING;
 
 /**
- * REST API implementation.
+ * REST API implementation. Creating jobs and checking their status is done on the database {@link Bulkhead} rather
+ * than on the servlet thread, so that a slow database or S3 cannot use up the threads that every other request needs.
  */
 @RestController
 public class JobController {
     private static final Logger log = LoggerFactory.getLogger(JobController.class);
 
-    private static final Base64.Encoder filenameEncoder = Base64.getUrlEncoder().withoutPadding();
-
     private final DataSetRepository dataSetRepository;
+    private final HierarchyRepository hierarchyRepository;
     private final FilterServiceClient filterServiceClient;
     private final JobRepository jobRepository;
     private final JobStatusChecker jobStatusChecker;
-    private final long pendingJobLimit;
+    private final PendingJobCounter pendingJobCounter;
+    private final JobCostEstimator jobCostEstimator;
+    private final PendingRowBudget pendingRowBudget;
+    private final JobStatusNotifier jobStatusNotifier;
+    private final JobRequestCoalescer jobRequestCoalescer;
+    private final FilterFingerprinter filterFingerprinter;
+    private final int maxBatchSize;
+    private final boolean legacyFileLookup;
+    private final TransactionTemplate transactionTemplate;
+    private final Executor databaseExecutor;
+    private final long requestTimeoutMillis;
 
     @Autowired
-    JobController(DataSetRepository dataSetRepository, FilterServiceClient filterServiceClient,
-                  JobRepository jobRepository, JobStatusChecker jobStatusChecker, @Value("${pending.job.limit}") long pendingJobLimit) {
+    JobController(DataSetRepository dataSetRepository, HierarchyRepository hierarchyRepository, FilterServiceClient filterServiceClient,
+                  JobRepository jobRepository, JobStatusChecker jobStatusChecker, PendingJobCounter pendingJobCounter,
+                  JobCostEstimator jobCostEstimator, PendingRowBudget pendingRowBudget, JobStatusNotifier jobStatusNotifier, JobRequestCoalescer jobRequestCoalescer,
+                  FilterFingerprinter filterFingerprinter, @Value("${job.batch.max.size}") int maxBatchSize,
+                  @Value("${fingerprint.legacy.lookup}") boolean legacyFileLookup,
+                  PlatformTransactionManager transactionManager, @Qualifier(Bulkhead.DATABASE) Executor databaseExecutor,
+                  @Value("${job.request.timeout.ms}") long requestTimeoutMillis) {
+        log.info("Starting JobController. job.batch.max.size={}, fingerprint.legacy.lookup={}, job.request.timeout.ms={}",
+                maxBatchSize, legacyFileLookup, requestTimeoutMillis);
         this.dataSetRepository = dataSetRepository;
+        this.hierarchyRepository = hierarchyRepository;
         this.filterServiceClient = filterServiceClient;
         this.jobStatusChecker = jobStatusChecker;
         this.jobRepository = jobRepository;
-        this.pendingJobLimit = pendingJobLimit;
-        log.info("pendingJobLimit=" + pendingJobLimit);
+        this.pendingJobCounter = pendingJobCounter;
+        this.jobCostEstimator = jobCostEstimator;
+        this.pendingRowBudget = pendingRowBudget;
+        this.jobStatusNotifier = jobStatusNotifier;
+        this.jobRequestCoalescer = jobRequestCoalescer;
+        this.filterFingerprinter = filterFingerprinter;
+        this.maxBatchSize = maxBatchSize;
+        this.legacyFileLookup = legacyFileLookup;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.databaseExecutor = databaseExecutor;
+        this.requestTimeoutMillis = requestTimeoutMillis;
     }
 
-
+    /**
+     * Creates a job, or returns the existing job for the same files. Identical requests that arrive while a job is
+     * being created share its result, and wait for it without holding a database thread.
+     */
     @PostMapping(value = "/job", produces = MediaType.APPLICATION_JSON_UTF8_VALUE, consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
-    @ResponseStatus(HttpStatus.CREATED)
     @ResponseBody
     @CrossOrigin
+    public DeferredResult<ResponseEntity<JobDto>> submitJob(final @RequestBody CreateJobRequest request) {
+        final DeferredResult<ResponseEntity<JobDto>> result = newDeferredResult();
+        jobRequestCoalescer.coalesce(coalescingKey(request),
+                () -> supplyInTransaction(() -> createJob(request), result::isSetOrExpired))
+                .whenComplete((jobDto, e) -> {
+                    if (e == null) {
+                        result.setResult(ResponseEntity.status(HttpStatus.CREATED).body(jobDto));
+                    } else {
+                        result.setErrorResult(e instanceof CompletionException ? e.getCause() : e);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Creates several jobs at once. The client is charged against its rate limit for each job in the batch.
+     *
+     * @see #createJobs(List)
+     */
+    @PostMapping(value = "/jobs", produces = MediaType.APPLICATION_JSON_UTF8_VALUE, consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    @ResponseBody
+    @CrossOrigin
+    public DeferredResult<List<CreateJobResult>> submitJobs(final @RequestBody List<CreateJobRequest> requests,
+                                                            final HttpServletRequest request) {
+        // The first job was charged for when the request arrived. Oversized batches are rejected, so are not charged in full
+        ClientRateLimitFilter.acquireForJobs(request, Math.min(requests.size(), maxBatchSize) - 1);
+        return executeInTransaction(() -> createJobs(requests));
+    }
+
+    /**
+     * Runs the given work in a transaction on the database bulkhead, and returns its result once it is done. Work that
+     * is still waiting for a thread when the request times out is not started.
+     *
+     * @throws ServiceUnavailableException if the database bulkhead is full.
+     * @see #supplyInTransaction(Callable, BooleanSupplier)
+     */
+    private <T> DeferredResult<T> executeInTransaction(final Callable<T> work) {
+        final DeferredResult<T> result = newDeferredResult();
+        supplyInTransaction(work, result::isSetOrExpired).whenComplete((value, e) -> {
+            if (e == null) {
+                result.setResult(value);
+            } else {
+                result.setErrorResult(e);
+            }
+        });
+        return result;
+    }
+
+    private <T> DeferredResult<T> newDeferredResult() {
+        final DeferredResult<T> result = new DeferredResult<>(requestTimeoutMillis);
+        result.onTimeout(() -> result.setErrorResult(
+                new ServiceUnavailableException("Sorry - the request timed out. Please try again later")));
+        return result;
+    }
+
+    /**
+     * Runs the given work in a transaction on the database bulkhead. The result completes once the transaction has
+     * committed, or is cancelled without running the work if it is no longer wanted by the time a thread is free. As
+     * with {@code noRollbackFor = NoSuchJobException.class}, the transaction is still committed if the job does not
+     * exist, so that expired jobs stay deleted. Work that cannot get a connection from the pool in time fails with 503
+     * Service Unavailable.
+     *
+     * @throws ServiceUnavailableException if the database bulkhead is full.
+     */
+    private <T> CompletableFuture<T> supplyInTransaction(final Callable<T> work, final BooleanSupplier unwanted) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        databaseExecutor.execute(() -> {
+            if (unwanted.getAsBoolean()) {
+                result.cancel(false);
+                return;
+            }
+            final NoSuchJobException[] missingJob = new NoSuchJobException[1];
+            try {
+                final T value = transactionTemplate.execute(status -> {
+                    try {
+                        return work.call();
+                    } catch (NoSuchJobException e) {
+                        missingJob[0] = e;
+                        return null;
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                if (missingJob[0] != null) {
+                    result.completeExceptionally(missingJob[0]);
+                } else {
+                    result.complete(value);
+                }
+            } catch (CannotCreateTransactionException e) {
+                log.error("Unable to start transaction: {}", e.getMessage());
+                result.completeExceptionally(
+                        new ServiceUnavailableException("Sorry - the database is busy. Please try again later"));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Creates a job, or returns the existing job for the same files. Files that have already been generated are reused,
+     * and only the remaining files are requested from the filter.
+     */
     @Transactional
-    public JobDto createJob(final @RequestBody CreateJobRequest request) throws JsonProcessingException {
+    public JobDto createJob(final CreateJobRequest request) throws JsonProcessingException {
         log.debug("Processing job request: {}", request);
-        final String dataSetS3Url;
-        dataSetS3Url = dataSetRepository.findS3urlForDataSet(request.getDataSetId());
-        CreateJobRequest validated = validateDimensionValues(request);
+        final CreateJobRequest expanded = expandHierarchyFilters(request);
+        final String dataSetS3Url = dataSetRepository.findS3urlForDataSet(expanded.getDataSetId());
+        CreateJobRequest validated = validateDimensionValues(expanded);
         log.debug("Validated job request:  {}", validated);
         final Map<FileFormat, FileDto> files = getInitialFileStatus(validated);
 
@@ -76,30 +234,175 @@ public class JobController {
         if (jobDto.isComplete()) {
             return jobRepository.save(jobDto);
         }
-        if (jobRepository.countJobsWithStatus(PENDING) >= pendingJobLimit) {
+        if (!pendingJobCounter.tryReserve()) {
             throw new TooManyRequestsException("Sorry - the number of requested jobs exceeds the limit");
         }
-        filterServiceClient.submitFilterRequest(dataSetS3Url, files, validated.getSortedDimensionFilters());
+        // Both reservations are released if the transaction rolls back
+        final long estimatedRows = jobCostEstimator.estimateRows(validated.getDataSetId(), validated.getSortedDimensionFilters());
+        if (!pendingRowBudget.tryReserve(jobDto.getId(), estimatedRows)) {
+            throw rowBudgetExceeded(estimatedRows);
+        }
+        filterServiceClient.submitFilterRequest(validated.getDataSetId(), dataSetS3Url, files, validated.getSortedDimensionFilters());
         return jobRepository.save(jobDto);
     }
 
+    /**
+     * Creates several jobs at once. Requests for the same dataset are validated with a single dimension query, pending
+     * job slots are reserved for the whole batch together, and all filter requests are sent to Kafka together once the
+     * jobs have been saved. Each request succeeds or fails independently of the others.
+     *
+     * @param requests the jobs to create.
+     * @return the result of each request, in the same order as the requests.
+     */
+    @Transactional
+    public List<CreateJobResult> createJobs(final List<CreateJobRequest> requests) {
+        log.debug("Processing batch of {} job requests", requests.size());
+        if (requests.size() > maxBatchSize) {
+            throw new BatchTooLargeException(requests.size(), maxBatchSize);
+        }
+        final CreateJobResult[] results = new CreateJobResult[requests.size()];
+
+        final List<CreateJobRequest> expanded = new ArrayList<>(requests.size());
+        final Map<UUID, List<Integer>> requestsByDataSet = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); ++i) {
+            try {
+                expanded.add(expandHierarchyFilters(requests.get(i)));
+            } catch (JobCreatorException e) {
+                expanded.add(null);
+                results[i] = CreateJobResult.failure(e);
+                continue;
+            }
+            requestsByDataSet.computeIfAbsent(requests.get(i).getDataSetId(), id -> new ArrayList<>()).add(i);
+        }
+
+        final List<BatchedJob> pendingJobs = new ArrayList<>();
+        for (Map.Entry<UUID, List<Integer>> entry : requestsByDataSet.entrySet()) {
+            final String dataSetS3Url;
+            try {
+                dataSetS3Url = dataSetRepository.findS3urlForDataSet(entry.getKey());
+            } catch (JobCreatorException e) {
+                entry.getValue().forEach(i -> results[i] = CreateJobResult.failure(e));
+                continue;
+            }
+
+            final SortedMap<String, SortedSet<String>> requested = new TreeMap<>();
+            for (int i : entry.getValue()) {
+                expanded.get(i).getSortedDimensionFilters().forEach((dimension, values) ->
+                        requested.computeIfAbsent(dimension, d -> new TreeSet<>()).addAll(values));
+            }
+            final SortedMap<String, SortedSet<String>> matching = requested.isEmpty() ? requested
+                    : dataSetRepository.findMatchingDimensionValues(entry.getKey(), requested);
+
+            for (int i : entry.getValue()) {
+                try {
+                    final CreateJobRequest validated = validateDimensionValues(expanded.get(i), matching);
+                    final Map<FileFormat, FileDto> files = getInitialFileStatus(validated);
+                    final JobDto jobDto = new JobDto(files.values(), Date.from(now().plus(1, HOURS)));
+                    jobStatusChecker.updateStatus(jobDto);
+                    if (jobDto.isComplete()) {
+                        results[i] = CreateJobResult.success(jobRepository.save(jobDto));
+                    } else {
+                        pendingJobs.add(new BatchedJob(i, dataSetS3Url, validated, files, jobDto));
+                    }
+                } catch (JobCreatorException e) {
+                    results[i] = CreateJobResult.failure(e);
+                }
+            }
+        }
+
+        final int admitted = pendingJobs.isEmpty() ? 0 : pendingJobCounter.tryReserve(pendingJobs.size());
+        for (int j = 0; j < pendingJobs.size(); ++j) {
+            final BatchedJob job = pendingJobs.get(j);
+            if (j >= admitted) {
+                results[job.index] = CreateJobResult.failure(
+                        new TooManyRequestsException("Sorry - the number of requested jobs exceeds the limit"));
+                continue;
+            }
+            final long estimatedRows = jobCostEstimator.estimateRows(job.request.getDataSetId(),
+                    job.request.getSortedDimensionFilters());
+            // Slots given back here are only freed if the batch commits, as a rollback frees the whole reservation
+            if (!pendingRowBudget.tryReserve(job.jobDto.getId(), estimatedRows)) {
+                pendingJobCounter.release();
+                results[job.index] = CreateJobResult.failure(rowBudgetExceeded(estimatedRows));
+                continue;
+            }
+            try {
+                filterServiceClient.submitFilterRequest(job.request.getDataSetId(), job.dataSetS3Url, job.files, job.request.getSortedDimensionFilters());
+                results[job.index] = CreateJobResult.success(jobRepository.save(job.jobDto));
+            } catch (JobCreatorException e) {
+                pendingJobCounter.release();
+                pendingRowBudget.release(job.jobDto.getId());
+                results[job.index] = CreateJobResult.failure(e);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private TooManyRequestsException rowBudgetExceeded(final long estimatedRows) {
+        return new TooManyRequestsException("Sorry - this job is estimated to produce " + estimatedRows +
+                " rows but only " + pendingRowBudget.getRemainingRows() + " rows can currently be requested");
+    }
+
+    /**
+     * Replaces any filters that select options from a hierarchy with the options that they select, together with any
+     * options that were also listed explicitly, so that the filter is fingerprinted, validated and sent on in the same
+     * canonical form as if every option had been listed.
+     */
+    @VisibleForTesting
+    CreateJobRequest expandHierarchyFilters(CreateJobRequest request) throws InvalidDimensionException {
+        if (request.getDimensions().stream().noneMatch(DimensionFilter::isHierarchical)) {
+            return request;
+        }
+        CreateJobRequest expanded = new CreateJobRequest();
+        expanded.setDataSetId(request.getDataSetId());
+        expanded.setFileFormats(request.getFileFormats());
+        List<DimensionFilter> dimensions = new ArrayList<>();
+        expanded.setDimensions(dimensions);
+        for (DimensionFilter filter : request.getDimensions()) {
+            if (!filter.isHierarchical()) {
+                dimensions.add(filter);
+                continue;
+            }
+            SortedSet<String> options = hierarchyRepository.findDescendants(filter.getHierarchy(),
+                    filter.getDescendantsOf(), filter.getLevel());
+            options.addAll(filter.getOptions());
+            log.debug("Expanded hierarchy filter {} to {} options", filter, options.size());
+            dimensions.add(new DimensionFilter(filter.getId(), new ArrayList<>(options)));
+        }
+        return expanded;
+    }
+
     @VisibleForTesting
     CreateJobRequest validateDimensionValues(CreateJobRequest request) throws InvalidDimensionException {
         if (request.getSortedDimensionFilters().isEmpty()) {
             return request;
         }
         SortedMap<String, SortedSet<String>> requested = request.getSortedDimensionFilters();
-        SortedMap<String, SortedSet<String>> actual = dataSetRepository.findMatchingDimensionValues(request.getDataSetId(), requested);
+        return validateDimensionValues(request, dataSetRepository.findMatchingDimensionValues(request.getDataSetId(), requested));
+    }
+
+    /**
+     * Removes any requested dimension values that are not in the given set of matching values, which may also contain
+     * values matched for other requests on the same dataset.
+     */
+    private static CreateJobRequest validateDimensionValues(CreateJobRequest request,
+                                                            SortedMap<String, SortedSet<String>> matching) throws InvalidDimensionException {
+        SortedMap<String, SortedSet<String>> requested = request.getSortedDimensionFilters();
+        if (requested.isEmpty()) {
+            return request;
+        }
         CreateJobRequest validated = new CreateJobRequest();
         validated.setDataSetId(request.getDataSetId());
         validated.setFileFormats(request.getFileFormats());
         List<DimensionFilter> dimensions = new ArrayList<>();
         validated.setDimensions(dimensions);
         for (String dimension : requested.keySet()) {
-            if (!actual.containsKey(dimension)) {
+            SortedSet<String> values = new TreeSet<>(requested.get(dimension));
+            values.retainAll(matching.getOrDefault(dimension, Collections.emptySortedSet()));
+            if (values.isEmpty()) {
                 throw new InvalidDimensionException("Dataset does not contain dimension '" + dimension + "' with any of the values " + requested.get(dimension));
             }
-            dimensions.add(new DimensionFilter(dimension, new ArrayList<>(actual.get(dimension))));
+            dimensions.add(new DimensionFilter(dimension, new ArrayList<>(values)));
         }
         return validated;
     }
@@ -110,17 +413,50 @@ public class JobController {
         response.sendError(e.getHttpStatus().value(), e.getMessage());
     }
 
+    @ExceptionHandler({RateLimitExceededException.class})
+    void handleRateLimitExceededException(RateLimitExceededException e, HttpServletResponse response) throws IOException {
+        log.debug(e.getMessage());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+        response.sendError(e.getHttpStatus().value(), e.getMessage());
+    }
+
     @ExceptionHandler(RuntimeException.class)
     void handleRuntimeException(RuntimeException e, HttpServletResponse response) throws IOException {
         log.error("Unexpected RuntimeException!", e);
         response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
     }
 
+    /**
+     * Returns the status of the job with an ETag that changes whenever the status of the job or any of its files does,
+     * so that a client that sends the tag back in {@code If-None-Match} receives 304 Not Modified rather than the whole
+     * job again. Complete jobs do not change again before they expire, so they may be cached by clients and any shared
+     * caches until then. Pending jobs must be revalidated on each request.
+     */
     @GetMapping("/job/{id}")
-    @ResponseBody
     @CrossOrigin
-    @Transactional
-    public JobDto checkJobStatus(final @PathVariable("id") String jobId) {
+    public DeferredResult<ResponseEntity<JobDto>> getJobStatus(final @PathVariable("id") String jobId) {
+        return executeInTransaction(() -> statusResponse(checkJobStatus(jobId)));
+    }
+
+    private static ResponseEntity<JobDto> statusResponse(final JobDto jobDto) {
+        final CacheControl cacheControl;
+        if (jobDto.isComplete()) {
+            final long secondsToExpiry = Math.max(0, (jobDto.getExpiryTime().getTime() - System.currentTimeMillis()) / 1000);
+            cacheControl = CacheControl.maxAge(secondsToExpiry, TimeUnit.SECONDS).cachePublic();
+        } else {
+            cacheControl = CacheControl.noCache();
+        }
+        // A matching If-None-Match header is turned into 304 Not Modified when the response is written
+        return ResponseEntity.ok().eTag(entityTag(jobDto)).cacheControl(cacheControl).body(jobDto);
+    }
+
+    /**
+     * Finds the job and brings its status up to date.
+     *
+     * @throws NoSuchJobException if there is no such job or it has expired.
+     */
+    @Transactional(noRollbackFor = NoSuchJobException.class)
+    public JobDto checkJobStatus(final String jobId) {
         log.debug("Checking status for: {}", jobId);
         JobDto jobDto = jobRepository.findOne(jobId);
         if (jobDto == null) {
@@ -128,15 +464,46 @@ public class JobController {
         }
 
         if (jobDto.getExpiryTime().before(new Date())) {
+            // The deletion is still committed when the exception is thrown
             log.debug("Deleting expired jobDto: {}", jobDto);
             jobRepository.delete(jobDto.getId());
             throw new NoSuchJobException(jobId);
         }
 
-        jobStatusChecker.updateStatus(jobDto);
+        if (jobStatusChecker.refreshStatus(jobDto)) {
+            log.debug("Saving updated status for job: {}", jobDto);
+            jobRepository.save(jobDto);
+        }
         return jobDto;
     }
 
+    /**
+     * Long-poll variant of {@link #checkJobStatus(String)} that waits up to the given number of seconds for the status
+     * of the job to change before responding. The job is checked on the database bulkhead, and the wait that follows
+     * holds neither a thread nor a connection.
+     */
+    @GetMapping(value = "/job/{id}", params = "wait")
+    @ResponseBody
+    @CrossOrigin
+    public DeferredResult<DeferredResult<JobDto>> awaitJobStatus(final @PathVariable("id") String jobId,
+                                                                 final @RequestParam("wait") long waitSeconds,
+                                                                 final HttpServletRequest request) {
+        RequestMetricsFilter.timeUntilHandled(request);
+        return executeInTransaction(() -> jobStatusNotifier.awaitChange(checkJobStatus(jobId), waitSeconds));
+    }
+
+    /**
+     * Streams the status of the job as server-sent events each time it changes, until the job is complete. The job is
+     * first checked on the database bulkhead, so that an unknown job is still answered with 404 Not Found.
+     */
+    @GetMapping(value = "/job/{id}/events", produces = "text/event-stream")
+    @CrossOrigin
+    public DeferredResult<SseEmitter> streamJobStatus(final @PathVariable("id") String jobId,
+                                                      final HttpServletRequest request) {
+        RequestMetricsFilter.timeUntilHandled(request);
+        return executeInTransaction(() -> jobStatusNotifier.subscribe(checkJobStatus(jobId)));
+    }
+
     @GetMapping("/healthcheck")
     public boolean healthCheck() {
         return true;
@@ -149,10 +516,12 @@ public class JobController {
     }
 
     /**
-     * Determines the initial status of any files that need to be generated. The file name will be based on a SHA-256
-     * hash of the dataset ID and the (sorted) dimension filters so that all requests for the same filtering of the same
-     * dataset will result in the same filename being requested. We check in the database for any existing known status
-     * of the files that have been requested to avoid requesting them twice.
+     * Determines the initial status of any files that need to be generated. The file name will be based on a
+     * {@linkplain FilterFingerprinter fingerprint} of the dataset ID and the dimension filters so that all requests for
+     * the same filtering of the same dataset will result in the same filename being requested. We check in the database
+     * for any existing known status of the files that have been requested to avoid requesting them twice. While
+     * {@code fingerprint.legacy.lookup} is enabled, files named with the previous version of the fingerprint are also
+     * found and reused.
      *
      * @param request the request to generate file status for.
      * @return a map from requested file formats to the initial status of the file to be generated.
@@ -160,10 +529,17 @@ public class JobController {
     @VisibleForTesting
     Map<FileFormat, FileDto> getInitialFileStatus(final CreateJobRequest request) {
         final String baseFileName = generateBaseFileName(request);
+        String legacyBaseFileName = null;
         final Map<FileFormat, FileDto> result = new EnumMap<>(FileFormat.class);
         for (FileFormat format : request.getFileFormats()) {
             String fileName = baseFileName + format.getExtension();
             FileDto fileDto = jobRepository.findFileStatus(fileName);
+            if (fileDto == null && legacyFileLookup) {
+                if (legacyBaseFileName == null) {
+                    legacyBaseFileName = filterFingerprinter.legacyFingerprint(request);
+                }
+                fileDto = jobRepository.findFileStatus(legacyBaseFileName + format.getExtension());
+            }
             if (fileDto == null) {
                 fileDto = new FileDto(fileName);
             }
@@ -172,16 +548,62 @@ public class JobController {
         return result;
     }
 
+    /**
+     * Generates an ETag from the status of the job and of each of its files. Files and jobs only ever move from pending
+     * to complete, gaining a download URL as they do, so the tag changes whenever anything in the response does.
+     */
     @VisibleForTesting
-    static String generateBaseFileName(final CreateJobRequest request) {
-        try {
-            final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            sha256.update(request.getDataSetId().toString().getBytes(StandardCharsets.UTF_8));
-            sha256.update(request.getSortedDimensionFilters().toString().getBytes(StandardCharsets.UTF_8));
-            return filenameEncoder.encodeToString(sha256.digest());
-        } catch (NoSuchAlgorithmException e) {
-            log.warn("SHA-256 not available - falling back on random uuid");
-            return UUID.randomUUID().toString();
+    static String entityTag(final JobDto jobDto) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putString(jobDto.getId(), StandardCharsets.UTF_8)
+                .putInt(jobDto.getStatus().ordinal());
+        for (FileDto fileDto : jobDto.getFiles()) {
+            hasher.putString(fileDto.getName(), StandardCharsets.UTF_8)
+                    .putInt(fileDto.getStatus().ordinal())
+                    .putString(Strings.nullToEmpty(fileDto.getUrl()), StandardCharsets.UTF_8);
+        }
+        return '"' + hasher.hash().toString() + '"';
+    }
+
+    @VisibleForTesting
+    String generateBaseFileName(final CreateJobRequest request) {
+        return filterFingerprinter.fingerprint(request);
+    }
+
+    /**
+     * Identifies requests that would create the same job, before any hierarchy filters have been expanded. The base
+     * file name does not depend on the requested file formats, so they are added to it, in order. Nor does it depend
+     * on which entries of a hierarchy were asked for, so any hierarchy filters are added as they were requested.
+     */
+    @VisibleForTesting
+    String coalescingKey(final CreateJobRequest request) {
+        final Set<FileFormat> formats = EnumSet.noneOf(FileFormat.class);
+        formats.addAll(request.getFileFormats());
+        final StringBuilder key = new StringBuilder(generateBaseFileName(request)).append(formats);
+        for (DimensionFilter filter : request.getDimensions()) {
+            if (filter.isHierarchical()) {
+                key.append(filter);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * A job from a batch that has been validated and is waiting to be admitted.
+     */
+    private static class BatchedJob {
+        private final int index;
+        private final String dataSetS3Url;
+        private final CreateJobRequest request;
+        private final Map<FileFormat, FileDto> files;
+        private final JobDto jobDto;
+
+        BatchedJob(int index, String dataSetS3Url, CreateJobRequest request, Map<FileFormat, FileDto> files, JobDto jobDto) {
+            this.index = index;
+            this.dataSetS3Url = dataSetS3Url;
+            this.request = request;
+            this.files = files;
+            this.jobDto = jobDto;
         }
     }
 }
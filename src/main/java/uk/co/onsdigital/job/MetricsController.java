@@ -0,0 +1,100 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the current value of every metric as JSON. Timers report their latency distribution in milliseconds over
+ * roughly the last five minutes, along with the total count and the one minute rate (per second). Histograms report
+ * the same distribution of their values:
+ * <pre>{@code
+ *  {
+ *      "gauges" : { "jobs.pending" : 3, ... },
+ *      "counters" : { "jobs.rejected" : 0, "jobs.rejected.rows" : 0, ... },
+ *      "timers" : { "db.job.save" : { "count" : 10, "p50" : 1.2, "p99" : 4.5, "p999" : 6.1, "max" : 6.1, ... }, ... },
+ *      "histograms" : { "kafka.filter.request.bytes" : { "count" : 10, "p50" : 812.0, "max" : 5120, ... }, ... }
+ *  }
+ * }</pre>
+ */
+@RestController
+public class MetricsController {
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MetricRegistry metricRegistry;
+
+    @Autowired
+    MetricsController(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    @GetMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public Map<String, Map<String, Object>> getMetrics() {
+        final Map<String, Object> gauges = new LinkedHashMap<>();
+        for (Map.Entry<String, Gauge> entry : metricRegistry.getGauges().entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().getValue());
+        }
+
+        final Map<String, Object> counters = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : metricRegistry.getCounters().entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().getCount());
+        }
+
+        final Map<String, Object> timers = new LinkedHashMap<>();
+        for (Map.Entry<String, Timer> entry : metricRegistry.getTimers().entrySet()) {
+            timers.put(entry.getKey(), describe(entry.getValue()));
+        }
+
+        final Map<String, Object> histograms = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> entry : metricRegistry.getHistograms().entrySet()) {
+            histograms.put(entry.getKey(), describe(entry.getValue()));
+        }
+
+        final Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        result.put("gauges", gauges);
+        result.put("counters", counters);
+        result.put("timers", timers);
+        result.put("histograms", histograms);
+        return result;
+    }
+
+    private static Map<String, Object> describe(final Timer timer) {
+        final Snapshot snapshot = timer.getSnapshot();
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", timer.getCount());
+        result.put("rate", timer.getOneMinuteRate());
+        result.put("mean", millis(snapshot.getMean()));
+        result.put("p50", millis(snapshot.getMedian()));
+        result.put("p99", millis(snapshot.get99thPercentile()));
+        result.put("p999", millis(snapshot.get999thPercentile()));
+        result.put("max", millis(snapshot.getMax()));
+        return result;
+    }
+
+    private static Map<String, Object> describe(final Histogram histogram) {
+        final Snapshot snapshot = histogram.getSnapshot();
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", histogram.getCount());
+        result.put("mean", snapshot.getMean());
+        result.put("p50", snapshot.getMedian());
+        result.put("p99", snapshot.get99thPercentile());
+        result.put("p999", snapshot.get999thPercentile());
+        result.put("max", snapshot.getMax());
+        return result;
+    }
+
+    private static double millis(final double nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,116 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every request, with a separate timer for each endpoint named after the HTTP method and the path pattern of the
+ * handler, e.g. {@code http.POST./job}. Requests that are handled asynchronously, such as creating a job on the
+ * database threads, are timed until the response is complete. Long-poll and event stream requests mark themselves
+ * with {@link #timeUntilHandled(HttpServletRequest)}, and are timed until they start waiting for the job instead, so
+ * the time spent waiting does not swamp the time taken to check the job.
+ */
+@Component
+public class RequestMetricsFilter extends OncePerRequestFilter {
+    static final String UNMAPPED = "unmapped";
+    static final String TIME_UNTIL_HANDLED_ATTRIBUTE = RequestMetricsFilter.class.getName() + ".timeUntilHandled";
+
+    private final MetricRegistry metricRegistry;
+
+    @Autowired
+    RequestMetricsFilter(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Stops the given request from being timed once it starts waiting for events, which it does by starting a second
+     * round of asynchronous processing, such as a {@code DeferredResult} whose result is another one.
+     *
+     * @param request the request being handled.
+     */
+    public static void timeUntilHandled(final HttpServletRequest request) {
+        request.setAttribute(TIME_UNTIL_HANDLED_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        final long start = System.nanoTime();
+        boolean timedOnCompletion = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                final boolean untilRestarted = request.getAttribute(TIME_UNTIL_HANDLED_ATTRIBUTE) != null;
+                request.getAsyncContext().addListener(new CompletionTimer(timerName(request), start, untilRestarted));
+                timedOnCompletion = true;
+            }
+        } finally {
+            if (!timedOnCompletion) {
+                metricRegistry.timer(timerName(request)).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static String timerName(final HttpServletRequest request) {
+        // The pattern is only known once the request has been mapped to a handler
+        final Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return MetricRegistry.name("http", request.getMethod(), pattern == null ? UNMAPPED : pattern.toString());
+    }
+
+    /**
+     * Records the time taken by an asynchronous request once its response is complete, whether it succeeded, failed
+     * or timed out, or once it starts waiting for events if it is timed until handled.
+     */
+    private class CompletionTimer implements AsyncListener {
+        private final String name;
+        private final long start;
+        private final boolean untilRestarted;
+
+        CompletionTimer(final String name, final long start, final boolean untilRestarted) {
+            this.name = name;
+            this.start = start;
+            this.untilRestarted = untilRestarted;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            record();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            // Followed by onComplete
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            // Followed by onComplete
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            // Listeners are dropped when processing restarts, so this one is only notified again if it adds itself back
+            if (untilRestarted) {
+                record();
+            } else {
+                event.getAsyncContext().addListener(this);
+            }
+        }
+
+        private void record() {
+            metricRegistry.timer(name).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package uk.co.onsdigital.job.exception;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * Indicates that a batch contains more job requests than we are willing to process at once.
+ */
+public class BatchTooLargeException extends JobCreatorException {
+    public BatchTooLargeException(int size, int maxSize) {
+        super("Too many jobs in batch: " + size + " (maximum " + maxSize + ")", HttpStatus.PAYLOAD_TOO_LARGE);
+    }
+}
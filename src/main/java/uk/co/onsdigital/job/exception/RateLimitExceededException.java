@@ -0,0 +1,17 @@
+package uk.co.onsdigital.job.exception;
+
+/**
+ * Indicates that a client has made more requests than its rate limit allows, and when it may try again.
+ */
+public class RateLimitExceededException extends TooManyRequestsException {
+    private final long retryAfterSeconds;
+
+    public RateLimitExceededException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,32 @@
+package uk.co.onsdigital.job.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+import org.springframework.http.HttpStatus;
+import uk.co.onsdigital.job.exception.JobCreatorException;
+
+/**
+ * The outcome of one request in a batch of job requests. Either the created job or an error is returned, along with
+ * the HTTP status that the equivalent single job request would have returned:
+ * <pre>{@code
+ *  [
+ *      { "status" : 201, "job" : { "id" : "...", "status" : "Pending", "files" : [ ... ] } },
+ *      { "status" : 400, "error" : "Dataset does not contain dimension ..." }
+ *  ]
+ * }</pre>
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CreateJobResult {
+    private final int status;
+    private final JobDto job;
+    private final String error;
+
+    public static CreateJobResult success(JobDto job) {
+        return new CreateJobResult(HttpStatus.CREATED.value(), job, null);
+    }
+
+    public static CreateJobResult failure(JobCreatorException e) {
+        return new CreateJobResult(e.getHttpStatus().value(), null, e.getMessage());
+    }
+}
@@ -1,8 +1,11 @@
 package uk.co.onsdigital.job.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lombok.NonNull;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -10,9 +13,31 @@ import java.util.List;
  * <pre>{@code
  *      { "id" : "dimension id", "options" : ["dimension", "values"] }
  * }</pre>
+ * Options can also be selected from a hierarchy, as every entry beneath the given entries, or only those at the given
+ * level. These are expanded into a plain list of options when the request is received.
+ * <pre>{@code
+ *      { "id" : "dimension id", "hierarchy" : "hierarchy id", "descendantsOf" : ["entry code"], "level" : "level id" }
+ * }</pre>
  */
 @Data
+@NoArgsConstructor
 public class DimensionFilter {
     private @NonNull String id;
-    private @NonNull List<String> options;
+    private @NonNull List<String> options = Collections.emptyList();
+    private String hierarchy;
+    private @NonNull List<String> descendantsOf = Collections.emptyList();
+    private String level;
+
+    public DimensionFilter(@NonNull String id, @NonNull List<String> options) {
+        this.id = id;
+        this.options = options;
+    }
+
+    /**
+     * @return true if this filter selects options from a hierarchy.
+     */
+    @JsonIgnore
+    public boolean isHierarchical() {
+        return hierarchy != null;
+    }
 }
@@ -0,0 +1,29 @@
+package uk.co.onsdigital.job.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+/**
+ * Event published by the CSV filter when it has finished generating an output file.
+ * <pre>{@code
+ *  { "requestId" : "the filter request id", "outputUrl" : "s3://bucket/path/filename.csv" }
+ * }</pre>
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class FileGeneratedEvent {
+    private String requestId;
+    private String outputUrl;
+
+    /**
+     * @return the name of the generated file, taken from the last part of the output URL.
+     */
+    @JsonIgnore
+    public String getFileName() {
+        if (outputUrl == null) {
+            return null;
+        }
+        return outputUrl.substring(outputUrl.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,32 @@
+package uk.co.onsdigital.job.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NonNull;
+
+/**
+ * Wrapper for a {@link FilterRequest} that has been encoded more compactly than plain JSON. Exactly one of the payload
+ * and the payload URL is set:
+ * <pre>{@code
+ *  { "version" : 2, "encoding" : "gzip", "payload" : "H4sIAAAAAAAAA..." }
+ *  { "version" : 2, "encoding" : "s3", "requestId" : "...", "outputUrl" : "s3://...", "payloadUrl" : "s3://..." }
+ * }</pre>
+ * A gzip payload is the base64 encoded, gzip compressed JSON filter request. An s3 payload is the plain JSON filter
+ * request stored in S3. The request ID and output URL are repeated in the envelope of a stored request so that it can
+ * be identified without fetching it. Filter requests sent as plain JSON have no envelope.
+ */
+@Data @Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FilterRequestEnvelope {
+    public static final int VERSION = 2;
+    public static final String GZIP = "gzip";
+    public static final String S3 = "s3";
+
+    private final int version = VERSION;
+    private @NonNull String encoding;
+    private String requestId;
+    private String outputUrl;
+    private String payload;
+    private String payloadUrl;
+}
@@ -0,0 +1,131 @@
+package uk.co.onsdigital.job.persistence;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A cluster-wide lock held as a Postgres session-level advisory lock. The lock is taken on a connection that is kept
+ * out of the pool for as long as the lock is held, so it is released by the database if this node dies or loses its
+ * connection, at which point another node can take it over.
+ */
+@Component
+public class AdvisoryLock {
+    private static final Logger log = LoggerFactory.getLogger(AdvisoryLock.class);
+
+    static final String TRY_LOCK_QUERY = "SELECT pg_try_advisory_lock(?)";
+    static final String UNLOCK_QUERY = "SELECT pg_advisory_unlock(?)";
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final ConnectionProvider connectionProvider;
+    private final long key;
+
+    /** The connection holding the lock, or null if this node does not hold it. */
+    private Connection connection;
+
+    @Autowired
+    AdvisoryLock(final EntityManagerFactory entityManagerFactory, final @Value("${leader.lock.key}") long key) {
+        this(entityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+                .getService(ConnectionProvider.class), key);
+    }
+
+    AdvisoryLock(final ConnectionProvider connectionProvider, final long key) {
+        log.info("Starting AdvisoryLock. leader.lock.key={}", key);
+        this.connectionProvider = connectionProvider;
+        this.key = key;
+    }
+
+    /**
+     * Takes the lock if no other node holds it, or checks that this node still holds it.
+     *
+     * @return true if this node holds the lock.
+     */
+    public synchronized boolean tryAcquire() {
+        if (connection != null) {
+            if (isValid(connection)) {
+                return true;
+            }
+            log.warn("Lost connection holding advisory lock {} - the lock has been released", key);
+            close(connection);
+            connection = null;
+        }
+
+        Connection candidate = null;
+        try {
+            candidate = connectionProvider.getConnection();
+            // Never leave the connection idle in a transaction while it holds the lock
+            candidate.setAutoCommit(true);
+            if (query(candidate, TRY_LOCK_QUERY)) {
+                log.info("Acquired advisory lock {}", key);
+                connection = candidate;
+                return true;
+            }
+        } catch (SQLException e) {
+            log.error("Unable to acquire advisory lock {}: {}", key, e.toString());
+        }
+        if (candidate != null) {
+            close(candidate);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this node held the lock when it was last acquired or checked.
+     */
+    public synchronized boolean isHeld() {
+        return connection != null;
+    }
+
+    /**
+     * Releases the lock, if held, so that another node can take it over straight away.
+     */
+    public synchronized void release() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            query(connection, UNLOCK_QUERY);
+            log.info("Released advisory lock {}", key);
+        } catch (SQLException e) {
+            log.warn("Unable to release advisory lock {} - it will be released when the connection closes: {}", key,
+                    e.toString());
+        }
+        close(connection);
+        connection = null;
+    }
+
+    private boolean query(final Connection connection, final String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private static boolean isValid(final Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void close(final Connection connection) {
+        try {
+            connectionProvider.closeConnection(connection);
+        } catch (SQLException e) {
+            log.debug("Unable to close connection: {}", e.toString());
+        }
+    }
+}
@@ -1,6 +1,16 @@
 package uk.co.onsdigital.job.persistence;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 import uk.co.onsdigital.discovery.model.*;
@@ -8,6 +18,8 @@ import uk.co.onsdigital.job.exception.NoSuchDataSetException;
 
 import javax.persistence.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.springframework.util.CollectionUtils.isEmpty;
@@ -17,48 +29,251 @@ import static org.springframework.util.CollectionUtils.isEmpty;
  */
 @Component
 public class DataSetRepository {
+    private static final Logger log = LoggerFactory.getLogger(DataSetRepository.class);
 
     /** Query that returns all existing dimensions that match the requested dimensions for a dataset. */
     public static final String DIMENSION_VALUES_QUERY = "SELECT dim.dimension.name, dim.value FROM DimensionValue dim " +
             "WHERE dim.dimension.dataSet.id = :ddsId " +
             "AND dim.dimension.name IN :names " +
             "AND dim.value IN :values";
+    /** Query that returns all dimension values for a dataset, used to build the in-memory {@link DimensionIndex}. */
+    public static final String ALL_DIMENSION_VALUES_QUERY = "SELECT dim.dimension.name, dim.value FROM DimensionValue dim " +
+            "WHERE dim.dimension.dataSet.id = :ddsId";
+    /** Query that counts the dimension values for a dataset, to decide whether it is small enough to index. */
+    public static final String COUNT_DIMENSION_VALUES_QUERY = "SELECT COUNT(dim) FROM DimensionValue dim " +
+            "WHERE dim.dimension.dataSet.id = :ddsId";
+    /** Query that counts the values of each dimension of a dataset, used to estimate the size of filtered output. */
+    public static final String DIMENSION_SIZES_QUERY = "SELECT dim.dimension.name, COUNT(dim) FROM DimensionValue dim " +
+            "WHERE dim.dimension.dataSet.id = :ddsId GROUP BY dim.dimension.name";
     public static final String DATASET_ID_PARAM = "ddsId";
     public static final String NAMES_PARAM = "names";
     public static final String VALUES_PARAM = "values";
 
     private final EntityManager entityManager;
+    private final Cache<UUID, String> s3UrlCache;
+    private final Cache<UUID, Boolean> unknownDataSetCache;
+    private final Cache<UUID, Optional<DimensionIndex>> dimensionIndexCache;
+    private final Cache<UUID, Map<String, Long>> dimensionSizeCache;
+    private final long maxIndexedValuesPerDataSet;
+    private final Timer s3UrlTimer;
+    private final Timer indexLoadTimer;
+    private final Timer dimensionQueryTimer;
+    private final Timer dimensionSizeTimer;
 
     @Autowired
-    public DataSetRepository(EntityManager entityManager) {
+    public DataSetRepository(EntityManager entityManager,
+                             MetricRegistry metricRegistry,
+                             @Value("${dataset.cache.size}") long cacheSize,
+                             @Value("${dataset.cache.ttl.seconds}") long cacheTtlSeconds,
+                             @Value("${dataset.negative.cache.ttl.seconds}") long negativeCacheTtlSeconds,
+                             @Value("${dimension.index.max.values}") long maxIndexedValues,
+                             @Value("${dimension.index.max.values.per.dataset}") long maxIndexedValuesPerDataSet) {
+        log.info("Starting DataSetRepository. dataset.cache.size={}, dataset.cache.ttl.seconds={}, dataset.negative.cache.ttl.seconds={}, " +
+                "dimension.index.max.values={}, dimension.index.max.values.per.dataset={}", cacheSize, cacheTtlSeconds,
+                negativeCacheTtlSeconds, maxIndexedValues, maxIndexedValuesPerDataSet);
         this.entityManager = entityManager;
+        this.maxIndexedValuesPerDataSet = maxIndexedValuesPerDataSet;
+        this.s3UrlCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.unknownDataSetCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(negativeCacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        // Datasets that are too big to index are remembered with a weight of one so that we do not keep counting them
+        this.dimensionIndexCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxIndexedValues)
+                .<UUID, Optional<DimensionIndex>>weigher((id, index) -> index.map(DimensionIndex::size).orElse(1))
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+
+        this.dimensionSizeCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .build();
+
+        this.s3UrlTimer = metricRegistry.timer("db.dataset.s3url");
+        this.indexLoadTimer = metricRegistry.timer("db.dataset.dimension.index.load");
+        this.dimensionQueryTimer = metricRegistry.timer("db.dataset.dimension.values");
+        this.dimensionSizeTimer = metricRegistry.timer("db.dataset.dimension.sizes");
+        metricRegistry.register("cache.dataset.hits", (Gauge<Long>) () -> getS3UrlCacheStats().hitCount());
+        metricRegistry.register("cache.dataset.misses", (Gauge<Long>) () -> getS3UrlCacheStats().missCount());
+        metricRegistry.register("cache.dimension.index.hits", (Gauge<Long>) () -> dimensionIndexCache.stats().hitCount());
+        metricRegistry.register("cache.dimension.index.misses", (Gauge<Long>) () -> dimensionIndexCache.stats().missCount());
+        metricRegistry.register("cache.dimension.index.values", (Gauge<Long>) this::getIndexedDimensionValueCount);
     }
 
 
     /**
-     * Looks up the S3 URL for the given dataset.
+     * Looks up the S3 URL for the given dataset. Results are cached, as are lookups for datasets that do not exist
+     * (for a shorter period), so that repeated requests for the same dataset do not hit the database.
      *
      * @param dataSetId the id of the dataset to lookup.
      * @return the S3 URL of that dataset.
      * @throws NoSuchDataSetException if the dataset does not exist.
      */
     public String findS3urlForDataSet(UUID dataSetId) {
-        try {
-            return entityManager.createNamedQuery(DataSet.LOOKUP_S3_URL, String.class)
+        String s3Url = s3UrlCache.getIfPresent(dataSetId);
+        if (s3Url != null) {
+            return s3Url;
+        }
+        if (unknownDataSetCache.getIfPresent(dataSetId) != null) {
+            throw new NoSuchDataSetException(dataSetId);
+        }
+        try (Timer.Context ignored = s3UrlTimer.time()) {
+            s3Url = entityManager.createNamedQuery(DataSet.LOOKUP_S3_URL, String.class)
                     .setParameter(DataSet.ID_PARAM, dataSetId)
                     .getSingleResult();
         } catch (NoResultException e) {
+            unknownDataSetCache.put(dataSetId, Boolean.TRUE);
             throw new NoSuchDataSetException(dataSetId);
         }
+        s3UrlCache.put(dataSetId, s3Url);
+        return s3Url;
+    }
+
+    /**
+     * Removes any cached S3 URL (or record of the dataset not existing) for the given dataset.
+     *
+     * @param dataSetId the id of the dataset that has changed.
+     */
+    public void evictDataSet(UUID dataSetId) {
+        s3UrlCache.invalidate(dataSetId);
+        unknownDataSetCache.invalidate(dataSetId);
+        dimensionIndexCache.invalidate(dataSetId);
+        dimensionSizeCache.invalidate(dataSetId);
+    }
+
+    /**
+     * Removes all cached S3 URLs and records of unknown datasets.
+     */
+    public void evictAllDataSets() {
+        s3UrlCache.invalidateAll();
+        unknownDataSetCache.invalidateAll();
+        dimensionIndexCache.invalidateAll();
+        dimensionSizeCache.invalidateAll();
+    }
+
+    /**
+     * Returns the combined statistics for the S3 URL lookup caches. A hit is any lookup answered without going to the
+     * database, whether or not the dataset exists; a miss is a lookup that had to query the database.
+     *
+     * @return the cache statistics.
+     */
+    public CacheStats getS3UrlCacheStats() {
+        // Every miss on the S3 URL cache is followed by a lookup in the unknown dataset cache, so only misses on the
+        // latter result in a database query.
+        final CacheStats found = s3UrlCache.stats();
+        final CacheStats unknown = unknownDataSetCache.stats();
+        return new CacheStats(found.hitCount() + unknown.hitCount(), unknown.missCount(), 0, 0, 0,
+                found.evictionCount() + unknown.evictionCount());
+    }
+
+    /**
+     * Returns the statistics for the per-dataset dimension value indexes.
+     *
+     * @return the cache statistics.
+     */
+    public CacheStats getDimensionIndexStats() {
+        return dimensionIndexCache.stats();
+    }
+
+    /**
+     * Returns the total number of dimension values currently held in the in-memory dimension indexes.
+     *
+     * @return the number of indexed dimension values.
+     */
+    public long getIndexedDimensionValueCount() {
+        long count = 0;
+        for (Optional<DimensionIndex> index : dimensionIndexCache.asMap().values()) {
+            count += index.map(DimensionIndex::size).orElse(0);
+        }
+        return count;
     }
 
     /**
-     * Finds all dimension/value combinations that match the requested values for the given dataset.
+     * Finds all dimension/value combinations that match the requested values for the given dataset. The values are
+     * checked against an in-memory index of the dataset's dimensions, which is loaded on first use. Datasets with too
+     * many dimension values to index are checked with a database query instead.
+     *
      * @param datasetId the id of the dataset.
      * @param requestedValues the requested dimension values.
      * @return the subset of requestedValues that actually exist in the dataset.
      */
     public SortedMap<String, SortedSet<String>> findMatchingDimensionValues(UUID datasetId, SortedMap<String, SortedSet<String>> requestedValues) {
+        if (requestedValues.values().stream().allMatch(CollectionUtils::isEmpty)) {
+            return Collections.emptySortedMap();
+        }
+        final Optional<DimensionIndex> index = getDimensionIndex(datasetId);
+        if (index.isPresent()) {
+            return index.get().findMatching(requestedValues);
+        }
+        return queryMatchingDimensionValues(datasetId, requestedValues);
+    }
+
+    /**
+     * Finds the number of values of each dimension of the given dataset. Results are cached.
+     *
+     * @param datasetId the id of the dataset.
+     * @return the number of values of each dimension, keyed by dimension name.
+     */
+    public Map<String, Long> findDimensionSizes(UUID datasetId) {
+        final Map<String, Long> cached = dimensionSizeCache.getIfPresent(datasetId);
+        if (cached != null) {
+            return cached;
+        }
+        final List<Object[]> counts;
+        try (Timer.Context ignored = dimensionSizeTimer.time()) {
+            counts = entityManager.createQuery(DIMENSION_SIZES_QUERY, Object[].class)
+                    .setParameter(DATASET_ID_PARAM, datasetId)
+                    .getResultList();
+        }
+        final Map<String, Long> sizes = new HashMap<>();
+        for (Object[] count : counts) {
+            sizes.put((String) count[0], (Long) count[1]);
+        }
+        dimensionSizeCache.put(datasetId, sizes);
+        return sizes;
+    }
+
+    private Optional<DimensionIndex> getDimensionIndex(UUID datasetId) {
+        try {
+            return dimensionIndexCache.get(datasetId, () -> loadDimensionIndex(datasetId));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private Optional<DimensionIndex> loadDimensionIndex(UUID datasetId) {
+        try (Timer.Context ignored = indexLoadTimer.time()) {
+            return queryDimensionIndex(datasetId);
+        }
+    }
+
+    private Optional<DimensionIndex> queryDimensionIndex(UUID datasetId) {
+        final long count = entityManager.createQuery(COUNT_DIMENSION_VALUES_QUERY, Long.class)
+                .setParameter(DATASET_ID_PARAM, datasetId)
+                .getSingleResult();
+        if (count > maxIndexedValuesPerDataSet) {
+            log.info("Dataset {} has {} dimension values - too many to index", datasetId, count);
+            return Optional.empty();
+        }
+        final List<Object[]> values = entityManager.createQuery(ALL_DIMENSION_VALUES_QUERY, Object[].class)
+                .setParameter(DATASET_ID_PARAM, datasetId)
+                .getResultList();
+        final DimensionIndex index = DimensionIndex.build(values);
+        log.debug("Indexed {} dimension values for dataset {}", index.size(), datasetId);
+        return Optional.of(index);
+    }
+
+    private SortedMap<String, SortedSet<String>> queryMatchingDimensionValues(UUID datasetId, SortedMap<String, SortedSet<String>> requestedValues) {
         Query query = entityManager.createQuery(DIMENSION_VALUES_QUERY);
         query.setParameter(DATASET_ID_PARAM, datasetId);
         Set<String> requestNames = new HashSet<>();
@@ -74,7 +289,10 @@ public class DataSetRepository {
         }
         query.setParameter(NAMES_PARAM, requestNames);
         query.setParameter(VALUES_PARAM, requestValues);
-        List<Object[]> resultList = query.getResultList();
+        List<Object[]> resultList;
+        try (Timer.Context ignored = dimensionQueryTimer.time()) {
+            resultList = query.getResultList();
+        }
         SortedMap<String, SortedSet<String>> filtered = new TreeMap<>();
         for (Object[] pair : resultList) {
             String key = (String) pair[0];
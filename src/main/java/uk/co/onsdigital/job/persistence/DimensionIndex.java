@@ -0,0 +1,66 @@
+package uk.co.onsdigital.job.persistence;
+
+import java.util.*;
+
+/**
+ * Immutable in-memory index of all of the dimension values in a single dataset. Values for each dimension are held as
+ * a sorted array of interned strings so that the index is compact and lookups are a binary search.
+ */
+class DimensionIndex {
+    private final Map<String, String[]> valuesByDimension;
+    private final int size;
+
+    private DimensionIndex(Map<String, String[]> valuesByDimension, int size) {
+        this.valuesByDimension = valuesByDimension;
+        this.size = size;
+    }
+
+    /**
+     * Builds an index from a list of (dimension name, value) pairs.
+     *
+     * @param dimensionValues the dimension name and value pairs, as returned from a query.
+     * @return the index.
+     */
+    static DimensionIndex build(List<Object[]> dimensionValues) {
+        final Map<String, SortedSet<String>> sorted = new HashMap<>();
+        for (Object[] pair : dimensionValues) {
+            sorted.computeIfAbsent(((String) pair[0]).intern(), d -> new TreeSet<>()).add(((String) pair[1]).intern());
+        }
+        final Map<String, String[]> valuesByDimension = new HashMap<>();
+        int size = 0;
+        for (Map.Entry<String, SortedSet<String>> entry : sorted.entrySet()) {
+            valuesByDimension.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+            size += entry.getValue().size();
+        }
+        return new DimensionIndex(valuesByDimension, size);
+    }
+
+    /**
+     * Finds the subset of the requested dimension values that exist in this index.
+     *
+     * @param requestedValues the requested dimension values.
+     * @return the requested values that exist, omitting any dimensions that have no matching values.
+     */
+    SortedMap<String, SortedSet<String>> findMatching(SortedMap<String, SortedSet<String>> requestedValues) {
+        final SortedMap<String, SortedSet<String>> matching = new TreeMap<>();
+        for (Map.Entry<String, SortedSet<String>> entry : requestedValues.entrySet()) {
+            final String[] values = valuesByDimension.get(entry.getKey());
+            if (values == null || entry.getValue() == null) {
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                if (Arrays.binarySearch(values, value) >= 0) {
+                    matching.computeIfAbsent(entry.getKey(), v -> new TreeSet<>()).add(value);
+                }
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * @return the total number of dimension values in the index.
+     */
+    int size() {
+        return size;
+    }
+}
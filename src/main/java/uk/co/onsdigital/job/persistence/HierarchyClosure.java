@@ -0,0 +1,132 @@
+package uk.co.onsdigital.job.persistence;
+
+import java.util.*;
+
+/**
+ * Immutable in-memory ancestor/descendant closure of a single hierarchy. Entries are held in depth-first order, so the
+ * descendants of any entry are the contiguous run of entries that follows it, and the position of the end of that run
+ * is stored for each entry. The positions of the entries at each level are also kept in order, so that the
+ * descendants of an entry at a given level are found with a binary search rather than by walking the tree.
+ */
+class HierarchyClosure {
+    private final String[] codes;
+    private final int[] subtreeEnd;
+    private final Map<String, Integer> positions;
+    private final Map<String, int[]> positionsByLevel;
+
+    private HierarchyClosure(String[] codes, int[] subtreeEnd, Map<String, Integer> positions,
+                             Map<String, int[]> positionsByLevel) {
+        this.codes = codes;
+        this.subtreeEnd = subtreeEnd;
+        this.positions = positions;
+        this.positionsByLevel = positionsByLevel;
+    }
+
+    /**
+     * Builds the closure from a list of (code, parent code, level type id) triples. Entries without a parent, or whose
+     * parent is not in the list, are the roots of the hierarchy.
+     *
+     * @param entries the hierarchy entries, as returned from a query.
+     * @return the closure.
+     */
+    static HierarchyClosure build(List<Object[]> entries) {
+        final Map<String, List<String>> children = new HashMap<>();
+        final Map<String, String> parents = new HashMap<>();
+        final Map<String, String> levels = new HashMap<>();
+        for (Object[] entry : entries) {
+            levels.put(((String) entry[0]).intern(), entry[2] == null ? null : ((String) entry[2]).intern());
+        }
+        final List<String> roots = new ArrayList<>();
+        for (Object[] entry : entries) {
+            final String code = ((String) entry[0]).intern();
+            final String parent = (String) entry[1];
+            if (parent == null || !levels.containsKey(parent)) {
+                roots.add(code);
+            } else {
+                children.computeIfAbsent(parent, p -> new ArrayList<>()).add(code);
+                parents.put(code, parent);
+            }
+        }
+
+        final String[] codes = new String[levels.size()];
+        final Map<String, Integer> positions = new HashMap<>();
+        final Map<String, List<Integer>> levelPositions = new HashMap<>();
+        // Iterative depth-first walk, as geography hierarchies can be deep enough to make recursion a risk
+        final Deque<String> stack = new ArrayDeque<>();
+        int next = 0;
+        for (String root : roots) {
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                final String code = stack.pop();
+                if (positions.containsKey(code)) {
+                    continue;
+                }
+                positions.put(code, next);
+                codes[next] = code;
+                final String level = levels.get(code);
+                if (level != null) {
+                    levelPositions.computeIfAbsent(level, l -> new ArrayList<>()).add(next);
+                }
+                ++next;
+                for (String child : children.getOrDefault(code, Collections.emptyList())) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        // Every entry comes after its parent, so working backwards each subtree is complete before its parent's
+        final int[] subtreeEnd = new int[next];
+        for (int i = next - 1; i >= 0; --i) {
+            subtreeEnd[i] = Math.max(subtreeEnd[i], i + 1);
+            final Integer parent = positions.get(parents.get(codes[i]));
+            if (parent != null) {
+                subtreeEnd[parent] = Math.max(subtreeEnd[parent], subtreeEnd[i]);
+            }
+        }
+
+        final Map<String, int[]> positionsByLevel = new HashMap<>();
+        levelPositions.forEach((level, list) -> positionsByLevel.put(level, list.stream().mapToInt(Integer::intValue).toArray()));
+        // Entries that are only reachable through a cycle are never visited, and are left out
+        return new HierarchyClosure(Arrays.copyOf(codes, next), subtreeEnd, positions,
+                positionsByLevel);
+    }
+
+    /**
+     * Finds the given entry and all of its descendants, or only those of them at the given level.
+     *
+     * @param code the code of the entry.
+     * @param level the id of the level to restrict the descendants to, or null for every level.
+     * @param result the set to add the codes of the descendants to.
+     * @return false if there is no such entry in the hierarchy.
+     */
+    boolean addDescendants(String code, String level, Collection<String> result) {
+        final Integer position = positions.get(code);
+        if (position == null) {
+            return false;
+        }
+        final int end = subtreeEnd[position];
+        if (level == null) {
+            result.addAll(Arrays.asList(codes).subList(position, end));
+            return true;
+        }
+        final int[] atLevel = positionsByLevel.get(level);
+        if (atLevel == null) {
+            return true;
+        }
+        int from = Arrays.binarySearch(atLevel, position);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        for (int i = from; i < atLevel.length && atLevel[i] < end; ++i) {
+            result.add(codes[atLevel[i]]);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of entries in the hierarchy.
+     */
+    int size() {
+        return codes.length;
+    }
+}
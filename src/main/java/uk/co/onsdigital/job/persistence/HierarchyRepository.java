@@ -0,0 +1,133 @@
+package uk.co.onsdigital.job.persistence;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.onsdigital.job.exception.InvalidDimensionException;
+
+import javax.persistence.EntityManager;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository for looking up the entries of hierarchies, such as geographies, so that a filter can select every entry
+ * beneath a node of the hierarchy without listing them. Each hierarchy is loaded into an in-memory
+ * {@link HierarchyClosure} on first use, and is evicted once the cache holds too many entries or the TTL has passed.
+ */
+@Component
+public class HierarchyRepository {
+    private static final Logger log = LoggerFactory.getLogger(HierarchyRepository.class);
+
+    /** Query that returns every entry of a hierarchy with the code of its parent and the id of its level. */
+    public static final String HIERARCHY_ENTRIES_QUERY = "SELECT e.code, p.code, l.id FROM HierarchyEntry e " +
+            "LEFT JOIN e.parent p LEFT JOIN e.levelType l WHERE e.hierarchy.id = :hierarchyId";
+    public static final String HIERARCHY_ID_PARAM = "hierarchyId";
+
+    private final EntityManager entityManager;
+    private final Cache<String, HierarchyClosure> closureCache;
+    private final Timer loadTimer;
+
+    @Autowired
+    public HierarchyRepository(EntityManager entityManager,
+                               MetricRegistry metricRegistry,
+                               @Value("${hierarchy.cache.max.entries}") long maxCachedEntries,
+                               @Value("${hierarchy.cache.ttl.seconds}") long cacheTtlSeconds) {
+        log.info("Starting HierarchyRepository. hierarchy.cache.max.entries={}, hierarchy.cache.ttl.seconds={}",
+                maxCachedEntries, cacheTtlSeconds);
+        this.entityManager = entityManager;
+        this.closureCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCachedEntries)
+                .<String, HierarchyClosure>weigher((id, closure) -> Math.max(1, closure.size()))
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.loadTimer = metricRegistry.timer("db.hierarchy.load");
+        metricRegistry.register("cache.hierarchy.hits", (Gauge<Long>) () -> closureCache.stats().hitCount());
+        metricRegistry.register("cache.hierarchy.misses", (Gauge<Long>) () -> closureCache.stats().missCount());
+        metricRegistry.register("cache.hierarchy.entries", (Gauge<Long>) this::getCachedEntryCount);
+    }
+
+    /**
+     * Finds the codes of the given entries of a hierarchy and of everything beneath them, or only of the entries
+     * beneath them at the given level.
+     *
+     * @param hierarchyId the id of the hierarchy.
+     * @param codes the codes of the entries to expand.
+     * @param level the id of the level to select entries from, or null for every level.
+     * @return the codes of the selected entries.
+     * @throws InvalidDimensionException if the hierarchy or any of the entries does not exist.
+     */
+    public SortedSet<String> findDescendants(String hierarchyId, Collection<String> codes, String level) {
+        final HierarchyClosure closure = getClosure(hierarchyId);
+        final SortedSet<String> result = new TreeSet<>();
+        for (String code : codes) {
+            if (!closure.addDescendants(code, level, result)) {
+                throw new InvalidDimensionException("Hierarchy '" + hierarchyId + "' does not contain '" + code + "'");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the cached closure of the given hierarchy, so that it is loaded again on next use.
+     *
+     * @param hierarchyId the id of the hierarchy that has changed.
+     */
+    public void evictHierarchy(String hierarchyId) {
+        closureCache.invalidate(hierarchyId);
+    }
+
+    /**
+     * Removes all cached hierarchy closures.
+     */
+    public void evictAllHierarchies() {
+        closureCache.invalidateAll();
+    }
+
+    /**
+     * @return the total number of hierarchy entries currently held in memory.
+     */
+    public long getCachedEntryCount() {
+        long count = 0;
+        for (HierarchyClosure closure : closureCache.asMap().values()) {
+            count += closure.size();
+        }
+        return count;
+    }
+
+    private HierarchyClosure getClosure(String hierarchyId) {
+        try {
+            // Unknown hierarchies are not cached, as the loader throws rather than returning a value
+            return closureCache.get(hierarchyId, () -> loadClosure(hierarchyId));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private HierarchyClosure loadClosure(String hierarchyId) {
+        final List<Object[]> entries;
+        try (Timer.Context ignored = loadTimer.time()) {
+            entries = entityManager.createQuery(HIERARCHY_ENTRIES_QUERY, Object[].class)
+                    .setParameter(HIERARCHY_ID_PARAM, hierarchyId)
+                    .getResultList();
+        }
+        if (entries.isEmpty()) {
+            throw new InvalidDimensionException("Hierarchy not found: " + hierarchyId);
+        }
+        final HierarchyClosure closure = HierarchyClosure.build(entries);
+        log.debug("Loaded {} entries of hierarchy {}", closure.size(), hierarchyId);
+        return closure;
+    }
+}
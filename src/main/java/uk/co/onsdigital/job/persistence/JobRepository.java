@@ -1,5 +1,7 @@
 package uk.co.onsdigital.job.persistence;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -9,51 +11,416 @@ import uk.co.onsdigital.job.model.JobDto;
 import uk.co.onsdigital.job.model.StatusDto;
 
 import javax.persistence.*;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 
 @Component
 public class JobRepository {
 
-    @PersistenceContext
+    /** Query that records the time that a batch of files were accepted by the filter request topic. */
+    public static final String MARK_FILES_SUBMITTED_QUERY = "UPDATE File f SET f.submittedAt = :submittedAt WHERE f.name IN :names";
+    /** Query that releases files claimed at the given time, unless another request has claimed them since. */
+    public static final String RELEASE_FILE_CLAIMS_QUERY = "UPDATE File f SET f.submittedAt = NULL " +
+            "WHERE f.name IN :names AND f.submittedAt = :submittedAt";
+    /** Query that records a file as submitted unless it has already been submitted since the given time. */
+    public static final String CLAIM_FILE_QUERY = "UPDATE File f SET f.submittedAt = :submittedAt WHERE f.name = :name " +
+            "AND (f.submittedAt IS NULL OR f.submittedAt < :staleBefore)";
+    /** Query that finds the current submission time of files by name. */
+    public static final String FIND_SUBMISSION_TIMES_QUERY = "SELECT f.name, f.submittedAt FROM File f WHERE f.name IN :names";
+    /** Query that finds files by name. */
+    public static final String FIND_FILES_QUERY = "SELECT f FROM File f WHERE f.name IN :names";
+    /**
+     * Query that finds the earliest submission time of any file that has not yet been generated, ignoring times in the
+     * given range, which are claims that have not yet been acknowledged.
+     */
+    public static final String OLDEST_PENDING_SUBMISSION_QUERY = "SELECT MIN(f.submittedAt) FROM File f " +
+            "WHERE f.status = :status AND f.submittedAt IS NOT NULL " +
+            "AND (f.submittedAt < :after OR f.submittedAt > :before)";
+    /** Query that finds the oldest expired jobs, in order of expiry. */
+    public static final String FIND_EXPIRED_JOBS_QUERY = "SELECT j.id FROM Job j WHERE j.expiryTime < :before " +
+            "ORDER BY j.expiryTime";
+    /** Query that finds which of the given jobs have the given status. */
+    public static final String FIND_JOBS_WITH_STATUS_QUERY = "SELECT j.id FROM Job j WHERE j.id IN :ids AND j.status = :status";
+    /** Query that deletes jobs by ID. The join table rows linking them to their files are deleted with them. */
+    public static final String DELETE_JOBS_QUERY = "DELETE FROM Job j WHERE j.id IN :ids";
+    /** Query that finds the earliest expiry time of any job that expired before the given time. */
+    public static final String OLDEST_EXPIRY_QUERY = "SELECT MIN(j.expiryTime) FROM Job j WHERE j.expiryTime < :before";
+    /** Condition matching files that no job refers to and that have not been submitted since the given time. */
+    private static final String ORPHANED_FILE_CONDITION = "(f.submittedAt IS NULL OR f.submittedAt < :staleBefore) " +
+            "AND NOT EXISTS (SELECT j.id FROM Job j JOIN j.files jf WHERE jf.name = f.name)";
+    /** Query that finds files that no job refers to any more. */
+    public static final String FIND_ORPHANED_FILES_QUERY = "SELECT f.name FROM File f WHERE " + ORPHANED_FILE_CONDITION;
+    /** Query that deletes the named files if they are still orphaned, in case a new job has referred to them since. */
+    public static final String DELETE_ORPHANED_FILES_QUERY = "DELETE FROM File f WHERE f.name IN :names AND " +
+            ORPHANED_FILE_CONDITION;
+    /** Query that finds the next page of submitted files with the given status, in order of submission. */
+    public static final String FIND_SUBMITTED_FILES_QUERY = "SELECT f FROM File f WHERE f.status = :status " +
+            "AND f.submittedAt IS NOT NULL " +
+            "AND (f.submittedAt > :after OR (f.submittedAt = :after AND f.name > :afterName)) " +
+            "ORDER BY f.submittedAt, f.name";
+    /** Query that finds jobs with the given status that include any of the named files. */
+    public static final String FIND_JOBS_WITH_FILES_QUERY = "SELECT DISTINCT j FROM Job j JOIN j.files f " +
+            "WHERE f.name IN :names AND j.status = :status";
+    /** Query that finds jobs by ID together with their files. */
+    public static final String FIND_JOBS_QUERY = "SELECT DISTINCT j FROM Job j LEFT JOIN FETCH j.files WHERE j.id IN :ids";
+    public static final String SUBMITTED_AT_PARAM = "submittedAt";
+    public static final String NAMES_PARAM = "names";
+    public static final String STATUS_PARAM = "status";
+    public static final String NAME_PARAM = "name";
+    public static final String STALE_BEFORE_PARAM = "staleBefore";
+    public static final String BEFORE_PARAM = "before";
+    public static final String IDS_PARAM = "ids";
+    public static final String AFTER_PARAM = "after";
+    public static final String AFTER_NAME_PARAM = "afterName";
+
     private final EntityManager entityManager;
+    private final Timer countJobsTimer;
+    private final Timer deleteExpiredTimer;
+    private final Timer oldestExpiryTimer;
+    private final Timer deleteOrphanedTimer;
+    private final Timer saveTimer;
+    private final Timer findOneTimer;
+    private final Timer findJobsTimer;
+    private final Timer deleteTimer;
+    private final Timer markSubmittedTimer;
+    private final Timer claimTimer;
+    private final Timer releaseClaimsTimer;
+    private final Timer markCompleteTimer;
+    private final Timer findFileTimer;
+    private final Timer oldestPendingTimer;
+    private final Timer findPendingTimer;
+    private final Timer findJobsWithStatusTimer;
 
     @Autowired
-    public JobRepository(EntityManager entityManager) {
+    public JobRepository(EntityManager entityManager, MetricRegistry metricRegistry) {
         this.entityManager = entityManager;
+        this.countJobsTimer = metricRegistry.timer("db.job.count");
+        this.deleteExpiredTimer = metricRegistry.timer("db.job.delete.expired");
+        this.oldestExpiryTimer = metricRegistry.timer("db.job.oldest.expired");
+        this.deleteOrphanedTimer = metricRegistry.timer("db.file.delete.orphaned");
+        this.saveTimer = metricRegistry.timer("db.job.save");
+        this.findOneTimer = metricRegistry.timer("db.job.find");
+        this.findJobsTimer = metricRegistry.timer("db.job.find.ids");
+        this.deleteTimer = metricRegistry.timer("db.job.delete");
+        this.markSubmittedTimer = metricRegistry.timer("db.file.mark.submitted");
+        this.claimTimer = metricRegistry.timer("db.file.claim");
+        this.releaseClaimsTimer = metricRegistry.timer("db.file.release");
+        this.markCompleteTimer = metricRegistry.timer("db.file.mark.complete");
+        this.findFileTimer = metricRegistry.timer("db.file.find");
+        this.oldestPendingTimer = metricRegistry.timer("db.file.oldest.pending");
+        this.findPendingTimer = metricRegistry.timer("db.file.find.pending");
+        this.findJobsWithStatusTimer = metricRegistry.timer("db.job.find.status");
     }
 
     public Long countJobsWithStatus(StatusDto statusDto) {
-        return entityManager.createNamedQuery(Job.COUNT_JOBS_WITH_STATUS, Long.class).setParameter(Job.STATUS_PARAM, StatusDto.convertToModel(statusDto))
-                .getSingleResult();
+        try (Timer.Context ignored = countJobsTimer.time()) {
+            return entityManager.createNamedQuery(Job.COUNT_JOBS_WITH_STATUS, Long.class).setParameter(Job.STATUS_PARAM, StatusDto.convertToModel(statusDto))
+                    .getSingleResult();
+        }
+    }
+
+    /**
+     * Finds which of the given jobs have the given status. Jobs that do not exist are not returned.
+     *
+     * @param jobIds the IDs of the jobs to check.
+     * @param statusDto the status to look for.
+     * @return the IDs of the jobs that have the status.
+     */
+    public Set<String> findJobsWithStatus(Collection<String> jobIds, StatusDto statusDto) {
+        if (jobIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        try (Timer.Context ignored = findJobsWithStatusTimer.time()) {
+            return new HashSet<>(entityManager.createQuery(FIND_JOBS_WITH_STATUS_QUERY, String.class)
+                    .setParameter(IDS_PARAM, jobIds)
+                    .setParameter(STATUS_PARAM, StatusDto.convertToModel(statusDto))
+                    .getResultList());
+        }
+    }
+
+    /**
+     * Deletes a batch of the jobs that expired before the given time, oldest first. Each batch is deleted in its own
+     * short transaction so that a large backlog of expired jobs does not hold locks on the job table for long.
+     *
+     * @param before jobs that expired before this time are deleted.
+     * @param limit the maximum number of jobs to delete.
+     * @return the number of jobs deleted.
+     */
+    @Transactional
+    public int deleteExpiredJobs(Date before, int limit) {
+        try (Timer.Context ignored = deleteExpiredTimer.time()) {
+            final List<String> jobIds = entityManager.createQuery(FIND_EXPIRED_JOBS_QUERY, String.class)
+                    .setParameter(BEFORE_PARAM, before)
+                    .setMaxResults(limit)
+                    .getResultList();
+            if (jobIds.isEmpty()) {
+                return 0;
+            }
+            return entityManager.createQuery(DELETE_JOBS_QUERY).setParameter(IDS_PARAM, jobIds).executeUpdate();
+        }
     }
 
+    /**
+     * Finds the expiry time of the longest-expired job that has not yet been deleted.
+     *
+     * @param before the current time.
+     * @return the earliest expiry time before the given time, or null if no jobs have expired.
+     */
+    public Date findOldestExpiryBefore(Date before) {
+        try (Timer.Context ignored = oldestExpiryTimer.time()) {
+            return entityManager.createQuery(OLDEST_EXPIRY_QUERY, Date.class)
+                    .setParameter(BEFORE_PARAM, before)
+                    .getSingleResult();
+        }
+    }
+
+    /**
+     * Deletes a batch of files that are no longer referred to by any job and have not been submitted to the filter
+     * since the given time, so that a late completion event for a recent submission can still be recorded.
+     *
+     * @param staleBefore only files that have not been submitted since this time are deleted.
+     * @param limit the maximum number of files to delete.
+     * @return the number of files deleted.
+     */
     @Transactional
-    public void deleteJobsExpiringBefore(Date before) {
-        entityManager.createNamedQuery(Job.DELETE_JOBS_EXPIRING_BEFORE).setParameter(Job.BEFORE_DATE_PARAM, before).executeUpdate();
+    public int deleteOrphanedFiles(Date staleBefore, int limit) {
+        try (Timer.Context ignored = deleteOrphanedTimer.time()) {
+            final List<String> names = entityManager.createQuery(FIND_ORPHANED_FILES_QUERY, String.class)
+                    .setParameter(STALE_BEFORE_PARAM, staleBefore)
+                    .setMaxResults(limit)
+                    .getResultList();
+            if (names.isEmpty()) {
+                return 0;
+            }
+            return entityManager.createQuery(DELETE_ORPHANED_FILES_QUERY)
+                    .setParameter(NAMES_PARAM, names)
+                    .setParameter(STALE_BEFORE_PARAM, staleBefore)
+                    .executeUpdate();
+        }
     }
 
     public JobDto save(JobDto jobDto) {
-        return JobDto.convertFromModel(entityManager.merge(jobDto.convertToModel()));
+        try (Timer.Context ignored = saveTimer.time()) {
+            return JobDto.convertFromModel(entityManager.merge(jobDto.convertToModel()));
+        }
     }
 
     public JobDto findOne(String jobId) {
-        Job job = entityManager.find(Job.class, jobId);
+        final Job job;
+        try (Timer.Context ignored = findOneTimer.time()) {
+            job = entityManager.find(Job.class, jobId);
+        }
         if (job == null) {
             return null;
         }
         return JobDto.convertFromModel(job);
     }
 
+    /**
+     * Finds several jobs at once with a single query.
+     *
+     * @param jobIds the IDs of the jobs to find.
+     * @return the jobs that exist, by ID.
+     */
+    public Map<String, JobDto> findAll(Collection<String> jobIds) {
+        if (jobIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final List<Job> jobs;
+        try (Timer.Context ignored = findJobsTimer.time()) {
+            jobs = entityManager.createQuery(FIND_JOBS_QUERY, Job.class)
+                    .setParameter(IDS_PARAM, jobIds)
+                    .getResultList();
+        }
+        final Map<String, JobDto> result = new HashMap<>();
+        for (Job job : jobs) {
+            result.put(job.getId(), JobDto.convertFromModel(job));
+        }
+        return result;
+    }
+
     public void delete(String jobId) {
-        entityManager.createNamedQuery(Job.DELETE_ONE_QUERY).setParameter(Job.ID_PARAM, jobId);
+        try (Timer.Context ignored = deleteTimer.time()) {
+            entityManager.createNamedQuery(Job.DELETE_ONE_QUERY).setParameter(Job.ID_PARAM, jobId).executeUpdate();
+        }
+    }
+
+    /**
+     * Records that the given files have been submitted to the filter.
+     *
+     * @param filenames the names of the files that have been submitted.
+     * @param submittedAt the time that they were submitted.
+     * @return the number of files updated.
+     */
+    @Transactional
+    public int markFilesSubmitted(Collection<String> filenames, Date submittedAt) {
+        try (Timer.Context ignored = markSubmittedTimer.time()) {
+            return entityManager.createQuery(MARK_FILES_SUBMITTED_QUERY)
+                    .setParameter(SUBMITTED_AT_PARAM, submittedAt)
+                    .setParameter(NAMES_PARAM, filenames)
+                    .executeUpdate();
+        }
+    }
+
+    /**
+     * Claims the given files for submission to the filter, so that only one request across all nodes submits each
+     * file. A file is claimed by recording it as submitted, which only succeeds if no other request has submitted it
+     * since {@code staleBefore}. The claim is replaced by {@link #markFilesSubmitted} once the submission has been
+     * acknowledged, or removed by {@link #releaseFileClaims} if it fails. The database row lock taken by the update makes this safe against concurrent claims.
+     * Files that do not exist yet are always claimed, as inserting them will fail if another request has inserted them
+     * first.
+     *
+     * @param filenames the names of the files to claim.
+     * @param submittedAt the submission time to claim the files with, which should identify the claim.
+     * @param staleBefore earlier submissions than this are assumed to have been lost and can be claimed again.
+     * @return the names of the files that were claimed.
+     */
+    @Transactional
+    public Set<String> claimFilesForSubmission(Collection<String> filenames, Date submittedAt, Date staleBefore) {
+        try (Timer.Context ignored = claimTimer.time()) {
+            final Set<String> claimed = new HashSet<>();
+            for (String filename : filenames) {
+                final int updated = entityManager.createQuery(CLAIM_FILE_QUERY)
+                        .setParameter(SUBMITTED_AT_PARAM, submittedAt)
+                        .setParameter(NAME_PARAM, filename)
+                        .setParameter(STALE_BEFORE_PARAM, staleBefore)
+                        .executeUpdate();
+                if (updated > 0 || entityManager.find(File.class, filename) == null) {
+                    claimed.add(filename);
+                }
+            }
+            return claimed;
+        }
+    }
+
+    /**
+     * Releases the given files for submission again, unless they have been claimed or acknowledged since they were
+     * claimed at the given time, e.g. by a request on another node after this claim went stale.
+     *
+     * @param filenames the names of the files to release.
+     * @param claimedAt the submission time the files were claimed with.
+     * @return the number of files released.
+     */
+    @Transactional
+    public int releaseFileClaims(Collection<String> filenames, Date claimedAt) {
+        try (Timer.Context ignored = releaseClaimsTimer.time()) {
+            return entityManager.createQuery(RELEASE_FILE_CLAIMS_QUERY)
+                    .setParameter(SUBMITTED_AT_PARAM, claimedAt)
+                    .setParameter(NAMES_PARAM, filenames)
+                    .executeUpdate();
+        }
+    }
+
+    /**
+     * Finds the current submission time of the given files, as recorded in the database rather than the persistence
+     * context, e.g. so that files claimed by another request are not saved with an out of date submission time.
+     *
+     * @param filenames the names of the files to find.
+     * @return the submission time of each file that exists, which may be null if it has not been submitted.
+     */
+    public Map<String, Date> findSubmissionTimes(Collection<String> filenames) {
+        try (Timer.Context ignored = findFileTimer.time()) {
+            final Map<String, Date> result = new HashMap<>();
+            for (Object[] row : entityManager.createQuery(FIND_SUBMISSION_TIMES_QUERY, Object[].class)
+                    .setParameter(NAMES_PARAM, filenames)
+                    .getResultList()) {
+                result.put((String) row[0], (Date) row[1]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Marks the given files as complete, along with any pending jobs that have no other incomplete files.
+     *
+     * @param downloadUrls the download URL of each completed file, keyed by file name.
+     * @return the number of files updated.
+     */
+    @Transactional
+    public int markFilesComplete(Map<String, String> downloadUrls) {
+        try (Timer.Context ignored = markCompleteTimer.time()) {
+            return updateCompletedFiles(downloadUrls);
+        }
+    }
+
+    private int updateCompletedFiles(Map<String, String> downloadUrls) {
+        final List<File> files = entityManager.createQuery(FIND_FILES_QUERY, File.class)
+                .setParameter(NAMES_PARAM, downloadUrls.keySet())
+                .getResultList();
+        for (File file : files) {
+            file.setStatus(Status.COMPLETE);
+            file.setUrl(downloadUrls.get(file.getName()));
+        }
+
+        final List<Job> jobs = entityManager.createQuery(FIND_JOBS_WITH_FILES_QUERY, Job.class)
+                .setParameter(NAMES_PARAM, downloadUrls.keySet())
+                .setParameter(STATUS_PARAM, Status.PENDING)
+                .getResultList();
+        for (Job job : jobs) {
+            if (job.getFiles().stream().allMatch(f -> f.getStatus() == Status.COMPLETE)) {
+                job.setStatus(Status.COMPLETE);
+            }
+        }
+        return files.size();
     }
 
     public FileDto findFileStatus(String filename) {
-        File file = entityManager.find(File.class, filename);
+        final File file;
+        try (Timer.Context ignored = findFileTimer.time()) {
+            file = entityManager.find(File.class, filename);
+        }
         if (file != null) {
             return FileDto.convertFromModel(file);
         }
         return null;
     }
+
+    /**
+     * Finds a page of the files that have been submitted to the filter but not yet generated, in order of submission
+     * time and then name. The next page starts after the last file of the previous page.
+     *
+     * @param after the submission time of the last file of the previous page, or the epoch for the first page.
+     * @param afterName the name of the last file of the previous page, or the empty string for the first page.
+     * @param limit the maximum number of files to return.
+     * @return the next page of pending files.
+     */
+    public List<FileDto> findPendingFiles(Date after, String afterName, int limit) {
+        final List<File> files;
+        try (Timer.Context ignored = findPendingTimer.time()) {
+            files = entityManager.createQuery(FIND_SUBMITTED_FILES_QUERY, File.class)
+                    .setParameter(STATUS_PARAM, Status.PENDING)
+                    .setParameter(AFTER_PARAM, after)
+                    .setParameter(AFTER_NAME_PARAM, afterName)
+                    .setMaxResults(limit)
+                    .getResultList();
+        }
+        return files.stream().map(FileDto::convertFromModel).collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the earliest time that any file that has not yet been generated was submitted to the filter. Claims that
+     * have not yet been acknowledged are recorded with backdated submission times, so the range they fall in is
+     * ignored.
+     *
+     * @param unacknowledgedAfter the earliest submission time of a claim that has not yet gone stale.
+     * @param unacknowledgedBefore the latest submission time of a claim that has not yet gone stale.
+     * @return the earliest submission time, or null if no submitted files are pending.
+     */
+    public Date findOldestPendingSubmission(Date unacknowledgedAfter, Date unacknowledgedBefore) {
+        try (Timer.Context ignored = oldestPendingTimer.time()) {
+            return entityManager.createQuery(OLDEST_PENDING_SUBMISSION_QUERY, Date.class)
+                    .setParameter(STATUS_PARAM, Status.PENDING)
+                    .setParameter(AFTER_PARAM, unacknowledgedAfter)
+                    .setParameter(BEFORE_PARAM, unacknowledgedBefore)
+                    .getSingleResult();
+        }
+    }
 }
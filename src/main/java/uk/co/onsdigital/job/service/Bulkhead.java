@@ -0,0 +1,78 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of threads dedicated to calls to one dependency, such as the database or S3, with a bounded queue of
+ * work waiting for them. A slow dependency can only tie up its own threads. Once they are busy and the queue is full,
+ * further work is rejected straight away with a {@link ServiceUnavailableException}, rather than holding on to
+ * servlet threads until the whole server stops responding.
+ */
+public class Bulkhead implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(Bulkhead.class);
+
+    /** Qualifies the bulkhead for calls to the database. */
+    public static final String DATABASE = "database";
+    /** Qualifies the bulkhead for calls to S3. */
+    public static final String S3 = "s3";
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final Counter rejections;
+
+    /**
+     * @param name the name of the dependency, used to name the threads and metrics.
+     * @param threads the maximum number of concurrent calls to the dependency.
+     * @param queueSize the maximum number of calls waiting for a thread, or zero for none.
+     */
+    public Bulkhead(final String name, final int threads, final int queueSize, final MetricRegistry metricRegistry) {
+        log.info("Starting Bulkhead {}. threads={}, queue.size={}", name, threads, queueSize);
+        this.name = name;
+        final BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        // Idle threads are not kept around for dependencies that are rarely called
+        executor.allowCoreThreadTimeOut(true);
+        this.rejections = metricRegistry.counter(MetricRegistry.name("bulkhead", name, "rejected"));
+        metricRegistry.register(MetricRegistry.name("bulkhead", name, "active"), (Gauge<Integer>) executor::getActiveCount);
+        metricRegistry.register(MetricRegistry.name("bulkhead", name, "queued"), (Gauge<Integer>) () -> executor.getQueue().size());
+    }
+
+    /**
+     * Runs the given task on one of the threads of this bulkhead.
+     *
+     * @throws ServiceUnavailableException if all of the threads are busy and the queue is full.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejections.inc();
+            log.warn("Rejecting call to {} - {} calls in progress and {} waiting", name, executor.getActiveCount(),
+                    executor.getQueue().size());
+            throw new ServiceUnavailableException("Sorry - the " + name + " is busy. Please try again later");
+        }
+    }
+
+    /**
+     * Stops accepting work, and lets any work already accepted finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,152 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of requests from each client with a token bucket per client, so that one client cannot use up a
+ * limit shared by everyone. Each bucket holds up to {@code burst} tokens and refills at {@code permitsPerSecond}.
+ * <p>
+ * A bucket is a single timestamp, the time at which it would be full again, which is advanced with a lock-free
+ * compare-and-set for every request taken from it. A request may take several tokens at once, e.g. one for each job in
+ * a batch. It is allowed as long as the bucket holds as many tokens, or is full, and leaves the bucket in debt for any
+ * tokens beyond a full bucket, so that a batch larger than the burst is possible but is paid for before the next one. Buckets are held in a cache that is striped by client, and are
+ * evicted once their client has been idle for long enough that the bucket would have refilled anyway. If there are
+ * more active clients than the cache holds, the least recently seen clients are given a full bucket when they return.
+ */
+public class ClientRateLimiter {
+    private final String name;
+    private final double permitsPerSecond;
+    private final long burst;
+    private final long nanosPerPermit;
+    private final long burstNanos;
+    private final Ticker ticker;
+    private final Cache<String, TokenBucket> buckets;
+    private final Counter rejections;
+
+    /**
+     * @param name the name of the limiter, used to name its metrics.
+     * @param permitsPerSecond the rate at which each client may make requests, or zero to disable the limiter.
+     * @param burst the number of requests that each client may make at once.
+     * @param maxClients the maximum number of clients to keep track of.
+     * @param idleSeconds how long after a client's last request its bucket is evicted, at least as long as it takes
+     *                    the bucket to refill.
+     */
+    public ClientRateLimiter(final String name, final double permitsPerSecond, final long burst, final long maxClients,
+                             final long idleSeconds, final MetricRegistry metricRegistry) {
+        this(name, permitsPerSecond, burst, maxClients, idleSeconds, metricRegistry, Ticker.systemTicker());
+    }
+
+    ClientRateLimiter(final String name, final double permitsPerSecond, final long burst, final long maxClients,
+                      final long idleSeconds, final MetricRegistry metricRegistry, final Ticker ticker) {
+        this.name = name;
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.nanosPerPermit = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+        this.burstNanos = nanosPerPermit * this.burst;
+        this.ticker = ticker;
+        // Evicting a bucket before it has refilled would hand the client extra tokens
+        final long idleNanos = Math.max(TimeUnit.SECONDS.toNanos(idleSeconds), burstNanos);
+        this.buckets = CacheBuilder.newBuilder()
+                .maximumSize(maxClients)
+                .expireAfterAccess(idleNanos, TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .build();
+        this.rejections = metricRegistry.counter(MetricRegistry.name("ratelimit", name, "rejected"));
+        metricRegistry.register(MetricRegistry.name("ratelimit", name, "clients"), (Gauge<Long>) this::getClientCount);
+    }
+
+    /**
+     * Takes a token from the client's bucket, if there is one.
+     *
+     * @param clientId identifies the client making the request.
+     * @return zero if the request is allowed, otherwise how long in nanoseconds until the client's next token.
+     */
+    public long tryAcquire(final String clientId) {
+        return tryAcquire(clientId, 1);
+    }
+
+    /**
+     * Takes several tokens from the client's bucket at once, if it holds them all or is full.
+     *
+     * @param clientId identifies the client making the request.
+     * @param permits the number of tokens to take.
+     * @return zero if the request is allowed, otherwise how long in nanoseconds until the client has enough tokens.
+     */
+    public long tryAcquire(final String clientId, final int permits) {
+        if (!isEnabled() || permits <= 0) {
+            return 0;
+        }
+        final TokenBucket bucket;
+        try {
+            bucket = buckets.get(clientId, TokenBucket::new);
+        } catch (ExecutionException e) {
+            // Creating a bucket cannot fail
+            throw new IllegalStateException(e);
+        }
+        final long wait = bucket.tryAcquire(ticker.read(), permits);
+        if (wait > 0) {
+            rejections.inc();
+        }
+        return wait;
+    }
+
+    /**
+     * @return false if the limiter has been disabled by setting its rate to zero.
+     */
+    public boolean isEnabled() {
+        return nanosPerPermit > 0;
+    }
+
+    /**
+     * @return the name of the limiter.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of clients that currently have a bucket.
+     */
+    public long getClientCount() {
+        // Idle buckets are otherwise only evicted as a side effect of later requests
+        buckets.cleanUp();
+        return buckets.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + permitsPerSecond + "/s, burst " + burst + "]";
+    }
+
+    /**
+     * A token bucket held as the time at which it will next be full. Taking tokens moves that time forward by the
+     * interval between tokens for each one, and is refused if, counting no more than a full bucket's worth of them, it
+     * would then be more than a full bucket's worth of time away.
+     */
+    private final class TokenBucket {
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+        long tryAcquire(final long now, final int permits) {
+            final long requiredNanos = nanosPerPermit * Math.min(permits, burst);
+            long current;
+            long from;
+            do {
+                current = fullAt.get();
+                from = Math.max(current, now);
+                if (from + requiredNanos - now > burstNanos) {
+                    return from + requiredNanos - now - burstNanos;
+                }
+            } while (!fullAt.compareAndSet(current, from + nanosPerPermit * permits));
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package uk.co.onsdigital.job.service;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sends all filter requests for the same dataset to the same partition, so that the filter worker that consumes the
+ * partition can reuse the dataset it has already downloaded rather than every worker fetching it. Filter requests are
+ * keyed by the dataset ID and the name of the output file, which is a fingerprint of the filter. Only the dataset ID
+ * is used to choose the partition, while the whole key identifies duplicate requests, so the topic can be compacted.
+ * <p>
+ * This is the default {@code kafka.producer.partitioner.class}. Kafka's own
+ * {@code org.apache.kafka.clients.producer.internals.DefaultPartitioner} can be configured instead to spread the
+ * requests for each dataset by output file.
+ */
+public class DataSetPartitioner implements Partitioner {
+    /** Separates the dataset ID from the output file name in the record key. */
+    static final char KEY_SEPARATOR = '/';
+
+    private final Partitioner unkeyed = new DefaultPartitioner();
+
+    /**
+     * @return the record key for the filter request that generates the given file from the given dataset.
+     */
+    public static String recordKey(final UUID dataSetId, final String fileName) {
+        return dataSetId.toString() + KEY_SEPARATOR + fileName;
+    }
+
+    @Override
+    public int partition(final String topic, final Object key, final byte[] keyBytes, final Object value,
+                         final byte[] valueBytes, final Cluster cluster) {
+        if (keyBytes == null) {
+            return unkeyed.partition(topic, null, null, value, valueBytes, cluster);
+        }
+        final int partitions = cluster.partitionsForTopic(topic).size();
+        final String recordKey = new String(keyBytes, StandardCharsets.UTF_8);
+        final int separator = recordKey.indexOf(KEY_SEPARATOR);
+        final byte[] dataSetKey = separator < 0 ? keyBytes
+                : recordKey.substring(0, separator).getBytes(StandardCharsets.UTF_8);
+        return Utils.toPositive(Utils.murmur2(dataSetKey)) % partitions;
+    }
+
+    @Override
+    public void close() {
+        unkeyed.close();
+    }
+
+    @Override
+    public void configure(final Map<String, ?> configs) {
+        unkeyed.configure(configs);
+    }
+}
@@ -0,0 +1,151 @@
+package uk.co.onsdigital.job.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriTemplate;
+import uk.co.onsdigital.job.model.FileGeneratedEvent;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Listens for events from the CSV filter indicating that output files have been generated, and marks the files (and
+ * any jobs that are now finished) as complete in the database. Each batch of polled events is written in a single
+ * transaction before the consumer offsets are committed, and a batch that cannot be written is polled again. Checking
+ * S3 for the files is then only a fallback for events that are delayed or lost.
+ */
+@Component
+public class FileCompletionListener {
+    private static final Logger log = LoggerFactory.getLogger(FileCompletionListener.class);
+
+    private final Consumer<String, String> kafkaConsumer;
+    private final ObjectMapper jsonObjectMapper;
+    private final JobRepository jobRepository;
+    private final UriTemplate downloadUrlTemplate;
+    private final String kafkaTopic;
+    private final long pollTimeoutMillis;
+
+    private volatile boolean running;
+    private Thread listenerThread;
+
+    @Autowired
+    FileCompletionListener(final Consumer<String, String> kafkaConsumer,
+                           final ObjectMapper jsonObjectMapper,
+                           final JobRepository jobRepository,
+                           final @Value("${download.url.template}") UriTemplate downloadUrlTemplate,
+                           final @Value("${kafka.completion.topic}") String kafkaTopic,
+                           final @Value("${kafka.completion.poll.timeout.ms}") long pollTimeoutMillis) {
+        log.info("Starting FileCompletionListener. kafka.completion.topic={}, kafka.completion.poll.timeout.ms={}",
+                kafkaTopic, pollTimeoutMillis);
+
+        this.kafkaConsumer = kafkaConsumer;
+        this.jsonObjectMapper = jsonObjectMapper;
+        this.jobRepository = jobRepository;
+        this.downloadUrlTemplate = downloadUrlTemplate;
+        this.kafkaTopic = kafkaTopic;
+        this.pollTimeoutMillis = pollTimeoutMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        listenerThread = new Thread(this::run, "file-completion-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        kafkaConsumer.wakeup();
+        listenerThread.join(pollTimeoutMillis * 2);
+    }
+
+    private void run() {
+        try {
+            kafkaConsumer.subscribe(Collections.singletonList(kafkaTopic));
+            while (running) {
+                try {
+                    processEvents();
+                } catch (WakeupException e) {
+                    // Shutting down
+                } catch (RuntimeException e) {
+                    log.error("Unable to process file generated events - will retry", e);
+                    Thread.sleep(pollTimeoutMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            kafkaConsumer.close();
+        }
+    }
+
+    /**
+     * Polls for a batch of events and marks the generated files as complete.
+     *
+     * @return the number of files marked as complete.
+     */
+    @VisibleForTesting
+    int processEvents() {
+        final ConsumerRecords<String, String> records = kafkaConsumer.poll(pollTimeoutMillis);
+        if (records.isEmpty()) {
+            return 0;
+        }
+
+        final Map<String, String> downloadUrls = new HashMap<>();
+        for (ConsumerRecord<String, String> record : records) {
+            try {
+                final FileGeneratedEvent event = jsonObjectMapper.readValue(record.value(), FileGeneratedEvent.class);
+                final String fileName = event.getFileName();
+                if (fileName == null || fileName.isEmpty()) {
+                    log.warn("Ignoring file generated event with no output URL: {}", record.value());
+                    continue;
+                }
+                downloadUrls.put(fileName, downloadUrlTemplate.expand(fileName).toString());
+            } catch (IOException e) {
+                log.warn("Ignoring malformed file generated event: {}", record.value());
+            }
+        }
+
+        int updated = 0;
+        if (!downloadUrls.isEmpty()) {
+            try {
+                updated = jobRepository.markFilesComplete(downloadUrls);
+            } catch (RuntimeException e) {
+                rewind(records);
+                throw e;
+            }
+            log.debug("Marked {} of {} generated files as complete", updated, downloadUrls.size());
+        }
+        kafkaConsumer.commitSync();
+        return updated;
+    }
+
+    /**
+     * Moves the consumer back to the start of a batch that could not be written, so that it is polled again rather
+     * than committed past by the next batch.
+     */
+    private void rewind(final ConsumerRecords<String, String> records) {
+        for (TopicPartition partition : records.partitions()) {
+            final List<ConsumerRecord<String, String>> partitionRecords = records.records(partition);
+            kafkaConsumer.seek(partition, partitionRecords.get(0).offset());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.util.UriTemplate;
+import uk.co.onsdigital.job.model.FileDto;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Periodically checks every submitted pending file against the S3 output listing and marks those that have been
+ * generated, and any jobs that are now finished, as complete. Files are scanned in pages in order of submission. This
+ * keeps the status in the database up to date without waiting for a client to ask, so status requests can be served
+ * from the database alone, and catches files whose completion events were lost. Only the elected leader runs the
+ * reconciler.
+ * <p>
+ * Files whose filter request could not be sent have their submission time cleared by
+ * {@link FilterServiceClient#recordSubmissions()}, and are not checked here. The next request for the same files
+ * checks whether they exist and, if they do not, submits them again.
+ */
+@Service
+public class FileStatusReconciler {
+    private static final Logger log = LoggerFactory.getLogger(FileStatusReconciler.class);
+
+    private final JobRepository jobRepository;
+    private final OutputFileListing outputFileListing;
+    private final LeaderElection leaderElection;
+    private final UriTemplate downloadUrlTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Timer passTimer;
+    private final Counter completedFiles;
+
+    /** When the last complete pass over the pending files started. */
+    private volatile long lastPassStarted = System.currentTimeMillis();
+
+    @Autowired
+    FileStatusReconciler(final JobRepository jobRepository,
+                         final OutputFileListing outputFileListing,
+                         final LeaderElection leaderElection,
+                         final MetricRegistry metricRegistry,
+                         final @Value("${download.url.template}") UriTemplate downloadUrlTemplate,
+                         final @Value("${file.reconciler.enabled}") boolean enabled,
+                         final @Value("${file.reconciler.batch.size}") int batchSize) {
+        log.info("Starting FileStatusReconciler. file.reconciler.enabled={}, file.reconciler.batch.size={}", enabled,
+                batchSize);
+
+        this.jobRepository = jobRepository;
+        this.outputFileListing = outputFileListing;
+        this.leaderElection = leaderElection;
+        this.downloadUrlTemplate = downloadUrlTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.passTimer = metricRegistry.timer("reconciler.pass");
+        this.completedFiles = metricRegistry.counter("reconciler.files.completed");
+        metricRegistry.register("reconciler.lag.ms", (Gauge<Long>) this::getLagMillis);
+    }
+
+    @Scheduled(initialDelayString = "${file.reconciler.interval.ms}", fixedDelayString = "${file.reconciler.interval.ms}")
+    void reconcile() {
+        if (enabled && !leaderElection.runIfLeader("file status reconciler", this::reconcilePendingFiles)) {
+            // Lag is measured from when this node becomes the leader, not from its last pass as leader
+            lastPassStarted = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Checks all pending files, a page at a time.
+     *
+     * @return the number of files marked as complete.
+     */
+    int reconcilePendingFiles() {
+        final long started = System.currentTimeMillis();
+        int completed = 0;
+        int checked = 0;
+        try (Timer.Context ignored = passTimer.time()) {
+            Date after = new Date(0);
+            String afterName = "";
+            List<FileDto> page;
+            do {
+                page = jobRepository.findPendingFiles(after, afterName, batchSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                checked += page.size();
+                completed += reconcile(page);
+                final FileDto last = page.get(page.size() - 1);
+                after = last.getSubmittedAt();
+                afterName = last.getName();
+            } while (page.size() == batchSize);
+        }
+        lastPassStarted = started;
+        log.debug("Reconciled {} pending files - {} now complete", checked, completed);
+        return completed;
+    }
+
+    private int reconcile(final List<FileDto> files) {
+        final Set<String> existing = outputFileListing.findExisting(
+                files.stream().map(FileDto::getName).collect(Collectors.toList()));
+        if (existing.isEmpty()) {
+            return 0;
+        }
+        final Map<String, String> downloadUrls = new HashMap<>();
+        for (String fileName : existing) {
+            downloadUrls.put(fileName, downloadUrlTemplate.expand(fileName).toString());
+        }
+        final int updated = jobRepository.markFilesComplete(downloadUrls);
+        completedFiles.inc(updated);
+        return updated;
+    }
+
+    /**
+     * @return the time since the start of the last complete pass, which is how out of date the status of a pending
+     * file in the database may be, in milliseconds, or zero if this node does not run the reconciler.
+     */
+    public long getLagMillis() {
+        if (!enabled || !leaderElection.isLeader()) {
+            return 0;
+        }
+        return System.currentTimeMillis() - lastPassStarted;
+    }
+}
@@ -0,0 +1,226 @@
+package uk.co.onsdigital.job.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.springframework.stereotype.Component;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.model.DimensionFilter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * Generates a fingerprint of a job request that identifies the output files it will produce, so that all requests for
+ * the same filtering of the same dataset result in the same file names.
+ * <p>
+ * The fingerprint is a SHA-256 hash of a canonical binary encoding of the request: the encoding version, the dataset
+ * ID, and then each dimension (sorted by ID) followed by its distinct options (sorted), with every string prefixed by
+ * its length and every list prefixed by its size. This is unambiguous whatever characters the options contain, and is
+ * streamed straight into a digest that is reused by each thread, rather than building sorted collections and a
+ * string representation of the whole request first.
+ * <p>
+ * Files named with the {@linkplain #legacyFingerprint(CreateJobRequest) previous version} of the fingerprint can still
+ * be found while they remain in use.
+ */
+@Component
+public class FilterFingerprinter {
+    /** Version of the canonical encoding. This is part of the hash so that a change of encoding changes every name. */
+    static final byte VERSION = 2;
+
+    private static final Base64.Encoder filenameEncoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Comparator<DimensionFilter> BY_ID = Comparator.comparing(DimensionFilter::getId);
+    private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+    /**
+     * @param request the job request.
+     * @return the fingerprint of the request, suitable for use as a file name.
+     */
+    public String fingerprint(final CreateJobRequest request) {
+        final Encoder encoder = encoders.get().reset();
+        encoder.writeByte(VERSION);
+        final UUID dataSetId = request.getDataSetId();
+        encoder.writeLong(dataSetId.getMostSignificantBits());
+        encoder.writeLong(dataSetId.getLeastSignificantBits());
+
+        // Sort a copy of the dimensions, keeping the last of any repeated dimension as a map would
+        final DimensionFilter[] dimensions = request.getDimensions().toArray(new DimensionFilter[0]);
+        Arrays.sort(dimensions, BY_ID);
+        int count = 0;
+        for (int i = 0; i < dimensions.length; ++i) {
+            if (!isRepeated(dimensions, i)) {
+                ++count;
+            }
+        }
+        encoder.writeInt(count);
+
+        for (int i = 0; i < dimensions.length; ++i) {
+            if (isRepeated(dimensions, i)) {
+                continue;
+            }
+            encoder.writeString(dimensions[i].getId());
+            final String[] options = dimensions[i].getOptions().toArray(new String[0]);
+            Arrays.sort(options);
+            encoder.writeInt(countDistinct(options));
+            for (int j = 0; j < options.length; ++j) {
+                if (j == 0 || !options[j].equals(options[j - 1])) {
+                    encoder.writeString(options[j]);
+                }
+            }
+        }
+        return filenameEncoder.encodeToString(encoder.digest());
+    }
+
+    /**
+     * Generates the fingerprint used for file names before versioning was introduced: a hash of the dataset ID and the
+     * string form of the sorted dimension filters. This is only used to find files generated before the change.
+     *
+     * @param request the job request.
+     * @return the previous version of the fingerprint of the request.
+     */
+    public String legacyFingerprint(final CreateJobRequest request) {
+        final Encoder encoder = encoders.get().reset();
+        encoder.writeBytes(request.getDataSetId().toString().getBytes(StandardCharsets.UTF_8));
+        encoder.writeBytes(request.getSortedDimensionFilters().toString().getBytes(StandardCharsets.UTF_8));
+        return filenameEncoder.encodeToString(encoder.digest());
+    }
+
+    private static boolean isRepeated(final DimensionFilter[] sorted, final int index) {
+        return index + 1 < sorted.length && sorted[index + 1].getId().equals(sorted[index].getId());
+    }
+
+    private static int countDistinct(final String[] sorted) {
+        int count = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes a string as UTF-8 into the given buffer, which must have room for three bytes per character from the
+     * offset. Unpaired surrogates are replaced with '?', as {@link String#getBytes(java.nio.charset.Charset)} does.
+     *
+     * @return the number of bytes written.
+     */
+    @VisibleForTesting
+    static int encodeUtf8(final String value, final byte[] buffer, final int offset) {
+        int length = offset;
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    buffer[length++] = '?';
+                }
+            } else {
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return length - offset;
+    }
+
+    /**
+     * Per-thread digest and the buffer that values are encoded into before being passed to the digest in blocks.
+     */
+    private static final class Encoder {
+        private static final int BLOCK_SIZE = 8192;
+
+        private final MessageDigest digest;
+        private byte[] buffer = new byte[BLOCK_SIZE];
+        private int position;
+
+        Encoder() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support SHA-256
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        /** Discards anything left from a previous fingerprint that failed part way through. */
+        Encoder reset() {
+            digest.reset();
+            position = 0;
+            return this;
+        }
+
+        void writeByte(final byte value) {
+            ensureCapacity(1);
+            buffer[position++] = value;
+        }
+
+        void writeBytes(final byte[] bytes) {
+            flush();
+            digest.update(bytes);
+        }
+
+        void writeInt(final int value) {
+            ensureCapacity(Integer.BYTES);
+            putInt(position, value);
+            position += Integer.BYTES;
+        }
+
+        void writeLong(final long value) {
+            ensureCapacity(Long.BYTES);
+            for (int i = 0; i < Long.BYTES; ++i) {
+                buffer[position++] = (byte) (value >>> (56 - 8 * i));
+            }
+        }
+
+        void writeString(final String value) {
+            ensureCapacity(Integer.BYTES + value.length() * 3);
+            final int length = encodeUtf8(value, buffer, position + Integer.BYTES);
+            putInt(position, length);
+            position += Integer.BYTES + length;
+        }
+
+        /** Completes the hash and resets the digest ready for the next fingerprint. */
+        byte[] digest() {
+            flush();
+            return digest.digest();
+        }
+
+        private void putInt(final int offset, final int value) {
+            for (int i = 0; i < Integer.BYTES; ++i) {
+                buffer[offset + i] = (byte) (value >>> (24 - 8 * i));
+            }
+        }
+
+        private void ensureCapacity(final int required) {
+            if (buffer.length - position < required) {
+                flush();
+                if (buffer.length < required) {
+                    buffer = new byte[required];
+                }
+            }
+        }
+
+        private void flush() {
+            digest.update(buffer, 0, position);
+            position = 0;
+            if (buffer.length > BLOCK_SIZE) {
+                // Don't hold on to the space needed for an unusually long value
+                buffer = new byte[BLOCK_SIZE];
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package uk.co.onsdigital.job.service;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
+import uk.co.onsdigital.job.model.FilterRequest;
+import uk.co.onsdigital.job.model.FilterRequestEnvelope;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes filter requests as Kafka messages. Requests are sent either as plain JSON, which every version of the filter
+ * understands, or gzip compressed inside a versioned {@link FilterRequestEnvelope}. Dimension options repeat the same
+ * few words many times, so a large filter typically compresses to a small fraction of its JSON size. Requests that are
+ * still larger than the claim check size once encoded are stored in S3, and only a reference to them is sent, so that
+ * no request exceeds the maximum message size that Kafka accepts.
+ */
+@Component
+public class FilterRequestEncoder {
+    private static final Logger log = LoggerFactory.getLogger(FilterRequestEncoder.class);
+
+    /** How filter requests are encoded as messages. */
+    public enum Encoding {
+        /** Plain JSON. */
+        JSON,
+        /** Gzip compressed JSON within an envelope. */
+        GZIP
+    }
+
+    private final ObjectMapper jsonObjectMapper;
+    private final AmazonS3 s3Client;
+    private final Encoding encoding;
+    private final int claimCheckBytes;
+    private final String claimCheckBucket;
+    private final String claimCheckPrefix;
+    private final Histogram messageSizes;
+    private final Counter claimChecks;
+    private final Timer storeTimer;
+
+    @Autowired
+    FilterRequestEncoder(final ObjectMapper jsonObjectMapper,
+                         final AmazonS3 s3Client,
+                         final MetricRegistry metricRegistry,
+                         final @Value("${kafka.filter.request.encoding}") Encoding encoding,
+                         final @Value("${kafka.filter.request.claim.check.bytes}") int claimCheckBytes,
+                         final @Value("${kafka.filter.request.claim.check.s3.location}") String claimCheckLocation) {
+        log.info("Starting FilterRequestEncoder. kafka.filter.request.encoding={}, kafka.filter.request.claim.check.bytes={}, " +
+                "kafka.filter.request.claim.check.s3.location={}", encoding, claimCheckBytes, claimCheckLocation);
+
+        this.jsonObjectMapper = jsonObjectMapper;
+        this.s3Client = s3Client;
+        this.encoding = encoding;
+        this.claimCheckBytes = claimCheckBytes;
+        // The location may include a path within the bucket
+        final int slash = claimCheckLocation.indexOf('/');
+        this.claimCheckBucket = slash < 0 ? claimCheckLocation : claimCheckLocation.substring(0, slash);
+        this.claimCheckPrefix = slash < 0 ? "" : claimCheckLocation.substring(slash + 1) + "/";
+        this.messageSizes = metricRegistry.histogram("kafka.filter.request.bytes");
+        this.claimChecks = metricRegistry.counter("kafka.filter.request.claim.checks");
+        this.storeTimer = metricRegistry.timer("s3.put.filter.request");
+    }
+
+    /**
+     * Encodes the given request as a message.
+     *
+     * @param filterRequest the request to encode.
+     * @param fileName the name of the file that the request creates, which identifies the request if it is stored.
+     * @return the message to send.
+     * @throws ServiceUnavailableException if the request could not be encoded or stored.
+     */
+    public String encode(final FilterRequest filterRequest, final String fileName) {
+        try {
+            final byte[] json = jsonObjectMapper.writeValueAsBytes(filterRequest);
+            String message;
+            if (encoding == Encoding.GZIP) {
+                message = jsonObjectMapper.writeValueAsString(FilterRequestEnvelope.builder()
+                        .encoding(FilterRequestEnvelope.GZIP)
+                        .payload(Base64.getEncoder().encodeToString(gzip(json)))
+                        .build());
+            } else {
+                message = new String(json, StandardCharsets.UTF_8);
+            }
+
+            // Base64 and JSON field names are ASCII, so only plain JSON messages can have more bytes than characters
+            int size = encoding == Encoding.GZIP ? message.length() : json.length;
+            if (claimCheckBytes > 0 && size > claimCheckBytes) {
+                message = store(filterRequest, fileName, json);
+                size = message.length();
+            }
+            messageSizes.update(size);
+            return message;
+        } catch (IOException e) {
+            log.error("Unable to serialise filter request: {}", e);
+            throw new ServiceUnavailableException(e.getMessage());
+        }
+    }
+
+    private String store(final FilterRequest filterRequest, final String fileName, final byte[] json) throws IOException {
+        final String key = claimCheckPrefix + fileName + ".json";
+        log.debug("Filter request for {} is too large to send - storing in S3: {}/{}", fileName, claimCheckBucket, key);
+        try (Timer.Context ignored = storeTimer.time()) {
+            s3Client.putObject(claimCheckBucket, key, new String(json, StandardCharsets.UTF_8));
+        } catch (AmazonClientException e) {
+            log.error("Unable to store filter request in S3: {}", e.toString());
+            throw new ServiceUnavailableException("Unable to store filter request - please try again later");
+        }
+        claimChecks.inc();
+        return jsonObjectMapper.writeValueAsString(FilterRequestEnvelope.builder()
+                .encoding(FilterRequestEnvelope.S3)
+                .requestId(filterRequest.getRequestId())
+                .outputUrl(filterRequest.getOutputUrl())
+                .payloadUrl("s3://" + claimCheckBucket + "/" + key)
+                .build());
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -1,71 +1,113 @@
 package uk.co.onsdigital.job.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import uk.co.onsdigital.job.exception.ServiceUnavailableException;
 import uk.co.onsdigital.job.model.FileFormat;
 import uk.co.onsdigital.job.model.FileDto;
 import uk.co.onsdigital.job.model.FilterRequest;
+import uk.co.onsdigital.job.persistence.JobRepository;
 import uk.co.onsdigital.logging.RequestIdProvider;
 
-import java.io.IOException;
 import java.time.Instant;
-import java.util.Date;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 import static java.time.Instant.now;
 import static java.time.temporal.ChronoUnit.HOURS;
 
 /**
- * Client for requesting that an input dataset is filtered to create one or more output files.
+ * Client for requesting that an input dataset is filtered to create one or more output files. Requests are sent to
+ * Kafka asynchronously once the current transaction has committed, keyed by the dataset and output file so that the
+ * {@link DataSetPartitioner} can send all requests for a dataset to the same partition. Each file is first claimed with
+ * a short lease, so that only one request across all nodes submits it, and is only recorded as submitted once Kafka has
+ * acknowledged it. The lease is recorded as a submission time backdated so that it goes stale after the claim timeout,
+ * which means a file claimed by a node that stops before sending it is submitted again by the next request for it
+ * rather than an hour later. The number of unacknowledged requests is bounded so that a slow or
+ * unavailable broker results in a fast failure rather than blocking request threads.
  */
 @Service
 public class FilterServiceClient {
     private static final Logger log = LoggerFactory.getLogger(FilterServiceClient.class);
 
     private final KafkaProducer<String, String> kafkaProducer;
-    private final ObjectMapper jsonObjectMapper;
+    private final FilterRequestEncoder filterRequestEncoder;
     private final String outputS3Bucket;
     private final String kafkaTopic;
     private final RequestIdProvider requestIdProvider;
-
+    private final JobRepository jobRepository;
+    private final int maxPendingSends;
+    private final long claimTimeoutMillis;
+    private final Semaphore pendingSends;
+    private final Queue<String> acknowledgedFiles = new ConcurrentLinkedQueue<>();
+    private final Queue<FileClaim> failedFiles = new ConcurrentLinkedQueue<>();
+    private final Timer sendTimer;
+    private final Counter sendFailures;
+    private final Counter resubmissions;
 
     @Autowired
     FilterServiceClient(final KafkaProducer<String, String> kafkaProducer,
-                        final ObjectMapper jsonObjectMapper,
+                        final FilterRequestEncoder filterRequestEncoder,
                         final RequestIdProvider requestIdProvider,
+                        final JobRepository jobRepository,
+                        final MetricRegistry metricRegistry,
                         final @Value("${output.s3.bucket}") String outputS3Bucket,
-                        final @Value("${kafka.topic}") String kafkaTopic) {
-        log.info("Starting FilterServiceClient. kafka.topic={}, output.s3.bucket={}", kafkaTopic, outputS3Bucket);
+                        final @Value("${kafka.topic}") String kafkaTopic,
+                        final @Value("${kafka.max.pending.sends}") int maxPendingSends,
+                        final @Value("${kafka.submission.claim.timeout.ms}") long claimTimeoutMillis) {
+        log.info("Starting FilterServiceClient. kafka.topic={}, output.s3.bucket={}, kafka.max.pending.sends={}, " +
+                "kafka.submission.claim.timeout.ms={}", kafkaTopic, outputS3Bucket, maxPendingSends, claimTimeoutMillis);
 
         this.kafkaProducer = kafkaProducer;
-        this.jsonObjectMapper = jsonObjectMapper;
+        this.filterRequestEncoder = filterRequestEncoder;
         this.outputS3Bucket = outputS3Bucket;
         this.kafkaTopic = kafkaTopic;
         this.requestIdProvider = requestIdProvider;
+        this.jobRepository = jobRepository;
+        this.maxPendingSends = maxPendingSends;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.pendingSends = new Semaphore(maxPendingSends);
+        this.sendTimer = metricRegistry.timer("kafka.send");
+        this.sendFailures = metricRegistry.counter("kafka.send.failures");
+        this.resubmissions = metricRegistry.counter("files.resubmitted");
+        metricRegistry.register("kafka.pending.sends", (Gauge<Integer>) this::getPendingSends);
     }
 
     /**
-     * Submits a request to the CSV filter component to produce the given output formats.
+     * Submits a request to the CSV filter component to produce the given output formats. If called within a
+     * transaction, the request is sent once the transaction has committed, together with any other requests made in
+     * the same transaction.
      *
+     * @param dataSetId     the ID of the dataset to filter.
      * @param dataSetS3Url  the S3 URL of the dataset to filter.
      * @param files         the files to create.
      * @param filters       the set of dimension filters to apply.
+     * @throws ServiceUnavailableException if too many requests are already waiting to be acknowledged by Kafka.
      */
-    public void submitFilterRequest(final String dataSetS3Url, final Map<FileFormat, FileDto> files,
+    public void submitFilterRequest(final UUID dataSetId, final String dataSetS3Url, final Map<FileFormat, FileDto> files,
                                     final Map<String, ? extends Set<String>> filters) {
 
         if (files == null || files.isEmpty()) {
             throw new IllegalArgumentException("No files specified");
         }
 
+        final Map<String, FileDto> candidates = new LinkedHashMap<>();
+        final Instant oneHourAgo = now().minus(1, HOURS);
+
         for (FileDto file : files.values()) {
             if (file.isComplete()) {
                 log.debug("Skipping file - already exists: {}", file);
@@ -73,16 +115,35 @@ public class FilterServiceClient {
             }
 
             if (file.isSubmitted()) {
-                // Check to see how long ago the file was submitted. If more than one hour, then submit again. This will
-                // also update the submittedAt time so that we wait another hour before submitting it again.
-                final Instant oneHourAgo = now().minus(1, HOURS);
+                // Check to see how long ago the file was submitted. If more than one hour, or if it was claimed but never
+                // acknowledged, then submit again. This will also claim it again so that no other request submits it.
                 if (file.getSubmittedAt().toInstant().isBefore(oneHourAgo)) {
-                    log.warn("File was submitted more than 1 hour ago but has not been generated - resubmitting: {}", file);
+                    log.warn("File submission has timed out but the file has not been generated - resubmitting: {}", file);
+                    resubmissions.inc();
                 } else {
                     log.debug("Skipping file - has already been submitted recently: {}", file);
                     continue;
                 }
             }
+            candidates.put(file.getName(), file);
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        // Requests already being made by this transaction are not made again. Their files are saved with the same
+        // submission time as the first request for them.
+        final Date claimTime = Date.from(oneHourAgo.plusMillis(claimTimeoutMillis));
+        final TransactionRecords transaction =
+                TransactionSynchronizationManager.isSynchronizationActive() ? getTransactionRecords(claimTime) : null;
+        final Date claimedAt = transaction != null ? transaction.claimedAt : claimTime;
+        final Map<String, ProducerRecord<String, String>> records = new LinkedHashMap<>();
+
+        for (FileDto file : candidates.values()) {
+            if (transaction != null && transaction.records.containsKey(file.getName())) {
+                file.setSubmittedAt(claimedAt);
+                continue;
+            }
 
             final FilterRequest filterRequest = FilterRequest.builder()
                     .requestId(requestIdProvider.getId())
@@ -91,16 +152,169 @@ public class FilterServiceClient {
                     .dimensions(filters)
                     .build();
 
+            final String message = filterRequestEncoder.encode(filterRequest, file.getName());
+            final String key = DataSetPartitioner.recordKey(dataSetId, file.getName());
+            records.put(file.getName(), new ProducerRecord<>(kafkaTopic, key, message));
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+
+        // Only claim the files once their requests are ready to send, so that a file is never left claimed but unsent.
+        // Another request, possibly on another node, may have submitted the same files since their status was read.
+        acquirePermits(records.size());
+        final Set<String> claimed;
+        try {
+            claimed = jobRepository.claimFilesForSubmission(records.keySet(), claimedAt, Date.from(oneHourAgo));
+        } catch (RuntimeException e) {
+            pendingSends.release(records.size());
+            throw e;
+        }
+
+        final Set<String> unclaimed = new HashSet<>(records.keySet());
+        unclaimed.removeAll(claimed);
+        if (!unclaimed.isEmpty()) {
+            log.debug("Skipping files - have just been submitted by another request: {}", unclaimed);
+            records.keySet().removeAll(unclaimed);
+            pendingSends.release(unclaimed.size());
+            // Keep the other request's submission time when the files are saved
+            jobRepository.findSubmissionTimes(unclaimed)
+                    .forEach((fileName, otherSubmittedAt) -> candidates.get(fileName).setSubmittedAt(otherSubmittedAt));
+        }
+        for (String fileName : records.keySet()) {
+            candidates.get(fileName).setSubmittedAt(claimedAt);
+        }
+
+        if (records.isEmpty()) {
+            return;
+        }
+        if (transaction == null) {
+            send(records, claimedAt);
+            return;
+        }
+
+        // Only send once the files have been saved, so that they exist when the acknowledgement is recorded. All
+        // requests made within the same transaction are sent together, and each file is only requested once.
+        transaction.records.putAll(records);
+    }
+
+    private void acquirePermits(final int count) {
+        if (count > 0 && !pendingSends.tryAcquire(count)) {
+            throw new ServiceUnavailableException("Too many filter requests waiting to be sent - please try again later");
+        }
+    }
+
+    private TransactionRecords getTransactionRecords(final Date claimedAt) {
+        TransactionRecords transaction = (TransactionRecords) TransactionSynchronizationManager.getResource(this);
+        if (transaction == null) {
+            final TransactionRecords transactionRecords = new TransactionRecords(claimedAt);
+            TransactionSynchronizationManager.bindResource(this, transactionRecords);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(FilterServiceClient.this);
+                    if (status == STATUS_COMMITTED) {
+                        send(transactionRecords.records, transactionRecords.claimedAt);
+                    } else {
+                        pendingSends.release(transactionRecords.records.size());
+                    }
+                }
+            });
+            transaction = transactionRecords;
+        }
+        return transaction;
+    }
+
+    private void send(final Map<String, ProducerRecord<String, String>> records, final Date claimedAt) {
+        for (Map.Entry<String, ProducerRecord<String, String>> entry : records.entrySet()) {
+            final String fileName = entry.getKey();
+            log.debug("Sending filter request to Kafka: {}", entry.getValue().value());
+            // Timed until Kafka acknowledges the request, not just until it has been buffered
+            final Timer.Context sendTime = sendTimer.time();
             try {
-                final String json = jsonObjectMapper.writeValueAsString(filterRequest);
-                log.debug("Sending filter request to Kafka: {}", json);
-                kafkaProducer.send(new ProducerRecord<>(kafkaTopic, json));
-                file.setSubmittedAt(new Date());
-                log.debug("Request successfully queued: {}", file.getName());
-            } catch (IOException e) {
-                log.error("Unable to send message to Kafka: {}", e);
-                throw new ServiceUnavailableException(e.getMessage());
+                kafkaProducer.send(entry.getValue(), (metadata, exception) -> {
+                    sendTime.stop();
+                    pendingSends.release();
+                    if (exception == null) {
+                        acknowledgedFiles.add(fileName);
+                    } else {
+                        log.error("Filter request not accepted by Kafka for file {}: {}", fileName, exception.toString());
+                        sendFailures.inc();
+                        failedFiles.add(new FileClaim(fileName, claimedAt));
+                    }
+                });
+            } catch (KafkaException e) {
+                sendTime.stop();
+                pendingSends.release();
+                log.error("Unable to send message to Kafka for file {}: {}", fileName, e.toString());
+                sendFailures.inc();
+                failedFiles.add(new FileClaim(fileName, claimedAt));
             }
         }
     }
+
+    /**
+     * Records the submission time of all files whose filter requests have been acknowledged by Kafka since this was
+     * last called, replacing their claims. Files whose requests failed are released so that the next request for them
+     * submits them again, unless another request has claimed them since.
+     */
+    @Scheduled(fixedDelayString = "${kafka.submission.flush.interval.ms}")
+    public void recordSubmissions() {
+        final Set<String> fileNames = drain(acknowledgedFiles);
+        if (!fileNames.isEmpty()) {
+            final int updated = jobRepository.markFilesSubmitted(fileNames, new Date());
+            log.debug("Recorded {} acknowledged filter requests ({} files updated)", fileNames.size(), updated);
+        }
+        final Map<Date, Set<String>> failed = new HashMap<>();
+        FileClaim claim;
+        while ((claim = failedFiles.poll()) != null) {
+            failed.computeIfAbsent(claim.claimedAt, claimedAt -> new HashSet<>()).add(claim.fileName);
+        }
+        failed.forEach((claimedAt, failedNames) -> {
+            final int updated = jobRepository.releaseFileClaims(failedNames, claimedAt);
+            log.debug("Released {} failed filter requests ({} files updated)", failedNames.size(), updated);
+        });
+    }
+
+    private static Set<String> drain(final Queue<String> queue) {
+        final Set<String> fileNames = new HashSet<>();
+        String fileName;
+        while ((fileName = queue.poll()) != null) {
+            fileNames.add(fileName);
+        }
+        return fileNames;
+    }
+
+    /**
+     * @return the number of filter requests that have not yet been acknowledged by Kafka.
+     */
+    public int getPendingSends() {
+        return maxPendingSends - pendingSends.availablePermits();
+    }
+
+    /**
+     * The filter requests made within a transaction, which are sent once it commits. All of their files are claimed
+     * with the same submission time.
+     */
+    private static final class TransactionRecords {
+        private final Date claimedAt;
+        private final Map<String, ProducerRecord<String, String>> records = new LinkedHashMap<>();
+
+        private TransactionRecords(final Date claimedAt) {
+            this.claimedAt = claimedAt;
+        }
+    }
+
+    /**
+     * A file whose filter request failed, and the submission time it was claimed with.
+     */
+    private static final class FileClaim {
+        private final String fileName;
+        private final Date claimedAt;
+
+        private FileClaim(final String fileName, final Date claimedAt) {
+            this.fileName = fileName;
+            this.claimedAt = claimedAt;
+        }
+    }
 }
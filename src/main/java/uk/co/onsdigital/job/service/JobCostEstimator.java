@@ -0,0 +1,54 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import uk.co.onsdigital.job.persistence.DataSetRepository;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+
+/**
+ * Estimates how much work a job is from the number of rows that its output will contain: the product, over every
+ * dimension of the dataset, of the number of values selected, or of all of the dimension's values if it is not
+ * filtered. This assumes that the dataset has a row for every combination of dimension values, so it is an upper
+ * bound for sparse datasets, but it distinguishes a single-cell extract from a request for the whole dataset.
+ */
+@Service
+public class JobCostEstimator {
+    private final DataSetRepository dataSetRepository;
+    private final Histogram estimates;
+
+    @Autowired
+    JobCostEstimator(final DataSetRepository dataSetRepository, final MetricRegistry metricRegistry) {
+        this.dataSetRepository = dataSetRepository;
+        this.estimates = metricRegistry.histogram("jobs.estimated.rows");
+    }
+
+    /**
+     * @param dataSetId the dataset to be filtered.
+     * @param filters the validated dimension filters, which only contain values that exist in the dataset.
+     * @return the estimated number of rows of output, or {@link Long#MAX_VALUE} if that would overflow.
+     */
+    public long estimateRows(final UUID dataSetId, final SortedMap<String, ? extends Set<String>> filters) {
+        long rows = 1;
+        for (Map.Entry<String, Long> dimension : dataSetRepository.findDimensionSizes(dataSetId).entrySet()) {
+            final Set<String> selected = filters.get(dimension.getKey());
+            final long values = selected == null || selected.isEmpty() ? dimension.getValue() : selected.size();
+            rows = multiply(rows, values);
+        }
+        estimates.update(rows);
+        return rows;
+    }
+
+    private static long multiply(final long a, final long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uk.co.onsdigital.job.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import uk.co.onsdigital.job.exception.JobCreatorException;
+import uk.co.onsdigital.job.model.JobDto;
+
+import java.util.Date;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical job requests that arrive while one is already being processed. The first request for a given
+ * fingerprint does the work, and any identical requests that arrive before it has committed share its result rather
+ * than validating, checking and submitting the same files again. Waiting requests hold no thread, transaction or
+ * connection. If the first request fails unexpectedly or takes too long, the waiting requests fall back on doing the
+ * work themselves.
+ */
+@Service
+public class JobRequestCoalescer {
+    private static final Logger log = LoggerFactory.getLogger(JobRequestCoalescer.class);
+
+    private final TaskScheduler taskScheduler;
+    private final long maxWaitMillis;
+    private final ConcurrentMap<String, CompletableFuture<JobDto>> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    JobRequestCoalescer(final TaskScheduler taskScheduler,
+                        final @Value("${job.coalesce.max.wait.ms}") long maxWaitMillis) {
+        log.info("Starting JobRequestCoalescer. job.coalesce.max.wait.ms={}", maxWaitMillis);
+        this.taskScheduler = taskScheduler;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Creates a job, or shares the result of an identical job that is already being created.
+     *
+     * @param fingerprint identifies requests that would create the same job.
+     * @param createJob starts creating the job, and returns a result that completes once the job has been committed.
+     * @return the created job, which may be shared with other requests. This fails with a {@link JobCreatorException}
+     * if the job could not be created, including when the request being waited on failed for the same reason.
+     * @throws RuntimeException if the job could not be started, e.g. because the database bulkhead is full.
+     */
+    public CompletableFuture<JobDto> coalesce(final String fingerprint,
+                                              final Supplier<CompletableFuture<JobDto>> createJob) {
+        final CompletableFuture<JobDto> result = new CompletableFuture<>();
+        final CompletableFuture<JobDto> existing = inFlight.putIfAbsent(fingerprint, result);
+        if (existing != null) {
+            return share(fingerprint, existing, createJob);
+        }
+
+        final CompletableFuture<JobDto> created;
+        try {
+            created = createJob.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(fingerprint, result);
+            result.completeExceptionally(e);
+            throw e;
+        }
+        created.whenComplete((jobDto, e) -> {
+            inFlight.remove(fingerprint, result);
+            complete(result, jobDto, e);
+        });
+        return result;
+    }
+
+    /**
+     * @return the number of distinct job requests currently being processed.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Waits for the result of an identical request, without holding a thread, and falls back on creating the job if it
+     * fails unexpectedly or does not finish in time.
+     */
+    private CompletableFuture<JobDto> share(final String fingerprint, final CompletableFuture<JobDto> existing,
+                                            final Supplier<CompletableFuture<JobDto>> createJob) {
+        final CompletableFuture<JobDto> result = new CompletableFuture<>();
+        // Set by whichever of the shared result and the timeout comes first
+        final AtomicBoolean decided = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = taskScheduler.schedule(() -> {
+            if (decided.compareAndSet(false, true)) {
+                log.warn("Timed out waiting for identical request {} - processing independently", fingerprint);
+                createIndependently(result, createJob);
+            }
+        }, new Date(System.currentTimeMillis() + maxWaitMillis));
+
+        existing.whenComplete((jobDto, e) -> {
+            if (!decided.compareAndSet(false, true)) {
+                return;
+            }
+            timeout.cancel(false);
+            final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause == null) {
+                log.debug("Sharing job {} with identical request {}", jobDto.getId(), fingerprint);
+                result.complete(jobDto);
+            } else if (cause instanceof JobCreatorException) {
+                result.completeExceptionally(cause);
+            } else {
+                log.warn("Identical request {} failed - processing independently: {}", fingerprint, cause.toString());
+                createIndependently(result, createJob);
+            }
+        });
+        return result;
+    }
+
+    private static void createIndependently(final CompletableFuture<JobDto> result,
+                                            final Supplier<CompletableFuture<JobDto>> createJob) {
+        try {
+            createJob.get().whenComplete((jobDto, e) -> complete(result, jobDto, e));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static void complete(final CompletableFuture<JobDto> result, final JobDto jobDto, final Throwable e) {
+        if (e == null) {
+            result.complete(jobDto);
+        } else {
+            result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+        }
+    }
+}
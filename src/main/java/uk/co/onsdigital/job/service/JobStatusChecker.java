@@ -1,6 +1,7 @@
 package uk.co.onsdigital.job.service;
 
-import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,6 +12,11 @@ import uk.co.onsdigital.job.model.FileDto;
 import uk.co.onsdigital.job.model.JobDto;
 import uk.co.onsdigital.job.model.StatusDto;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 /**
  * Service for checking the status of file creation jobs.
  */
@@ -18,41 +24,97 @@ import uk.co.onsdigital.job.model.StatusDto;
 public class JobStatusChecker {
     private static final Logger log = LoggerFactory.getLogger(JobStatusChecker.class);
 
-    private final AmazonS3 s3Client;
-    private final String outputS3Bucket;
+    private final OutputFileListing outputFileListing;
     private final UriTemplate downloadUrlTemplate;
 
+    /** Whether status reads check S3, rather than relying on the {@link FileStatusReconciler} to have done so. */
+    private final boolean checkOutputOnRead;
+
+    /** Names of files known to have been generated, mapped to their download URLs. */
+    private final Cache<String, String> completedFiles;
+
     @Autowired
-    JobStatusChecker(final AmazonS3 s3Client,
-                     final @Value("${output.s3.bucket}") String outputS3Bucket,
-                     final @Value("${download.url.template}") UriTemplate downloadUrlTemplate) {
-        log.info("Starting JobStatusChecker. s3.bucket={}, url.template={}", outputS3Bucket, downloadUrlTemplate);
+    JobStatusChecker(final OutputFileListing outputFileListing,
+                     final @Value("${download.url.template}") UriTemplate downloadUrlTemplate,
+                     final @Value("${completed.file.cache.size}") long completedFileCacheSize,
+                     final @Value("${file.reconciler.enabled}") boolean reconcilerEnabled) {
+        log.info("Starting JobStatusChecker. url.template={}, completed.file.cache.size={}, file.reconciler.enabled={}",
+                downloadUrlTemplate, completedFileCacheSize, reconcilerEnabled);
 
-        this.s3Client = s3Client;
-        this.outputS3Bucket = outputS3Bucket;
+        this.outputFileListing = outputFileListing;
         this.downloadUrlTemplate = downloadUrlTemplate;
+        this.checkOutputOnRead = !reconcilerEnabled;
+        this.completedFiles = CacheBuilder.newBuilder().maximumSize(completedFileCacheSize).build();
     }
 
     /**
-     * Updates the status of the given jobDto by polling S3 to see if the output files have been created.
+     * Updates the status of the given jobDto by checking S3 with the {@link OutputFileListing} to see if the output
+     * files have been created. Files that are already known to be complete are not checked again.
      *
      * @param jobDto the jobDto to check and update the status of.
+     * @return true if the status of the job or any of its files changed and so needs to be saved.
      */
-    public void updateStatus(JobDto jobDto) {
+    public boolean updateStatus(JobDto jobDto) {
+        return updateStatus(jobDto, true);
+    }
+
+    /**
+     * Updates the status of an existing job when its status is read. When the {@link FileStatusReconciler} is enabled
+     * it keeps the status of files in the database up to date, so S3 is not checked; files are only marked complete
+     * if they are already known to be, and the job is marked complete once all of its files are.
+     *
+     * @param jobDto the jobDto to update the status of.
+     * @return true if the status of the job or any of its files changed and so needs to be saved.
+     */
+    public boolean refreshStatus(JobDto jobDto) {
+        return updateStatus(jobDto, checkOutputOnRead);
+    }
+
+    private boolean updateStatus(JobDto jobDto, boolean checkOutput) {
         log.debug("Checking status of job: {}", jobDto);
+        boolean changed = false;
         if (!jobDto.isComplete()) {
+            final List<FileDto> unknown = new ArrayList<>();
             for (FileDto fileDto : jobDto.getFiles()) {
-                if (!fileDto.isComplete()) {
-                    if (s3Client.doesObjectExist(outputS3Bucket, fileDto.getName())) {
-                        fileDto.setStatus(StatusDto.COMPLETE);
-                        fileDto.setUrl(downloadUrlTemplate.expand(fileDto.getName()).toString());
+                if (fileDto.isComplete()) {
+                    if (fileDto.getUrl() != null) {
+                        completedFiles.put(fileDto.getName(), fileDto.getUrl());
                     }
+                    continue;
+                }
+                final String url = completedFiles.getIfPresent(fileDto.getName());
+                if (url != null) {
+                    markComplete(fileDto, url);
+                    changed = true;
+                } else {
+                    unknown.add(fileDto);
                 }
             }
+
+            if (checkOutput && !unknown.isEmpty()) {
+                final Set<String> existing = outputFileListing.findExisting(
+                        unknown.stream().map(FileDto::getName).collect(Collectors.toList()));
+                for (FileDto fileDto : unknown) {
+                    if (existing.contains(fileDto.getName())) {
+                        final String url = downloadUrlTemplate.expand(fileDto.getName()).toString();
+                        completedFiles.put(fileDto.getName(), url);
+                        markComplete(fileDto, url);
+                        changed = true;
+                    }
+                }
+            }
+
             if (jobDto.getFiles().stream().allMatch(FileDto::isComplete)) {
                 jobDto.setStatus(StatusDto.COMPLETE);
+                changed = true;
             }
         }
         log.debug("Checked status of job: {}", jobDto);
+        return changed;
+    }
+
+    private static void markComplete(FileDto fileDto, String url) {
+        fileDto.setStatus(StatusDto.COMPLETE);
+        fileDto.setUrl(url);
     }
 }
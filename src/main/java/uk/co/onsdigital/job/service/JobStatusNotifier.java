@@ -0,0 +1,281 @@
+package uk.co.onsdigital.job.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import uk.co.onsdigital.job.exception.NoSuchJobException;
+import uk.co.onsdigital.job.model.FileDto;
+import uk.co.onsdigital.job.model.JobDto;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Notifies clients waiting on a job when its status changes, either as a long-poll {@link DeferredResult} or as a
+ * stream of server-sent events. Waiting clients do not hold a servlet thread. Each watched job is checked once per
+ * interval, however many clients are waiting on it. The watched jobs are loaded together, and each change is saved in
+ * its own transaction so that a failure to save one job does not lose the changes to the others.
+ */
+@Service
+public class JobStatusNotifier {
+    private static final Logger log = LoggerFactory.getLogger(JobStatusNotifier.class);
+
+    static final String STATUS_EVENT = "status";
+
+    private final JobRepository jobRepository;
+    private final JobStatusChecker jobStatusChecker;
+    private final TransactionTemplate transactionTemplate;
+    private final long maxWaitSeconds;
+    private final long eventStreamTimeoutMillis;
+
+    private final ConcurrentMap<String, Set<JobWatcher>> watchers = new ConcurrentHashMap<>();
+
+    @Autowired
+    JobStatusNotifier(final JobRepository jobRepository,
+                      final JobStatusChecker jobStatusChecker,
+                      final PlatformTransactionManager transactionManager,
+                      final @Value("${job.events.max.wait.seconds}") long maxWaitSeconds,
+                      final @Value("${job.events.stream.timeout.ms}") long eventStreamTimeoutMillis) {
+        log.info("Starting JobStatusNotifier. job.events.max.wait.seconds={}, job.events.stream.timeout.ms={}",
+                maxWaitSeconds, eventStreamTimeoutMillis);
+
+        this.jobRepository = jobRepository;
+        this.jobStatusChecker = jobStatusChecker;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxWaitSeconds = maxWaitSeconds;
+        this.eventStreamTimeoutMillis = eventStreamTimeoutMillis;
+    }
+
+    /**
+     * Waits for the status of the given job to change. The result is set as soon as the job or any of its files
+     * changes status, or with the current status of the job once the wait times out. Complete jobs are returned
+     * immediately.
+     *
+     * @param jobDto the current status of the job.
+     * @param waitSeconds how long to wait for a change, capped at the configured maximum.
+     * @return the deferred status of the job.
+     */
+    public DeferredResult<JobDto> awaitChange(final JobDto jobDto, final long waitSeconds) {
+        final long timeoutMillis = Math.max(0, Math.min(waitSeconds, maxWaitSeconds)) * 1000L;
+        final DeferredResult<JobDto> result = new DeferredResult<>(timeoutMillis);
+        if (jobDto.isComplete() || timeoutMillis == 0) {
+            result.setResult(jobDto);
+            return result;
+        }
+
+        final LongPollWatcher watcher = new LongPollWatcher(jobDto, result);
+        result.onTimeout(() -> {
+            removeWatcher(jobDto.getId(), watcher);
+            result.setResult(watcher.latest);
+        });
+        result.onCompletion(() -> removeWatcher(jobDto.getId(), watcher));
+        addWatcher(jobDto.getId(), watcher);
+        return result;
+    }
+
+    /**
+     * Opens a stream of server-sent events for the given job. The current status is sent straight away, followed by
+     * the status each time it changes. The stream is closed once the job is complete.
+     *
+     * @param jobDto the current status of the job.
+     * @return the event stream.
+     */
+    public SseEmitter subscribe(final JobDto jobDto) {
+        final SseEmitter emitter = new SseEmitter(eventStreamTimeoutMillis);
+        final EventStreamWatcher watcher = new EventStreamWatcher(jobDto, emitter);
+        if (watcher.onChange(jobDto)) {
+            return emitter;
+        }
+        emitter.onTimeout(() -> removeWatcher(jobDto.getId(), watcher));
+        emitter.onCompletion(() -> removeWatcher(jobDto.getId(), watcher));
+        addWatcher(jobDto.getId(), watcher);
+        return emitter;
+    }
+
+    /**
+     * Checks the status of every job that has a client waiting on it and notifies the clients of any changes.
+     */
+    @Scheduled(fixedDelayString = "${job.events.check.interval.ms}")
+    public void checkWatchedJobs() {
+        final List<String> jobIds = new ArrayList<>(watchers.keySet());
+        if (jobIds.isEmpty()) {
+            return;
+        }
+        final Map<String, JobDto> jobs;
+        try {
+            jobs = transactionTemplate.execute(status -> jobRepository.findAll(jobIds));
+        } catch (RuntimeException e) {
+            log.error("Unable to load {} watched jobs", jobIds.size(), e);
+            return;
+        }
+        for (String jobId : jobIds) {
+            try {
+                checkJob(jobId, jobs.get(jobId));
+            } catch (RuntimeException e) {
+                log.error("Unable to check status of watched job {}", jobId, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of jobs that currently have clients waiting on them.
+     */
+    public int getWatchedJobCount() {
+        return watchers.size();
+    }
+
+    private void checkJob(final String jobId, final JobDto jobDto) {
+        if (jobDto == null || jobDto.getExpiryTime().before(new Date())) {
+            notifyWatchers(jobId, watcher -> {
+                watcher.onMissing(new NoSuchJobException(jobId));
+                return true;
+            });
+            return;
+        }
+        if (jobStatusChecker.refreshStatus(jobDto)) {
+            log.debug("Saving updated status for watched job: {}", jobDto);
+            transactionTemplate.execute(status -> jobRepository.save(jobDto));
+        }
+        notifyWatchers(jobId, watcher -> watcher.hasProgressed(jobDto) && watcher.onChange(jobDto));
+    }
+
+    private void notifyWatchers(final String jobId, final WatcherAction action) {
+        final Set<JobWatcher> jobWatchers = watchers.get(jobId);
+        if (jobWatchers == null) {
+            return;
+        }
+        for (JobWatcher watcher : jobWatchers) {
+            if (action.apply(watcher)) {
+                removeWatcher(jobId, watcher);
+            }
+        }
+    }
+
+    private void addWatcher(final String jobId, final JobWatcher watcher) {
+        watchers.compute(jobId, (id, jobWatchers) -> {
+            final Set<JobWatcher> result = jobWatchers == null ? ConcurrentHashMap.newKeySet() : jobWatchers;
+            result.add(watcher);
+            return result;
+        });
+    }
+
+    private void removeWatcher(final String jobId, final JobWatcher watcher) {
+        watchers.computeIfPresent(jobId, (id, jobWatchers) -> {
+            jobWatchers.remove(watcher);
+            return jobWatchers.isEmpty() ? null : jobWatchers;
+        });
+    }
+
+    /**
+     * Measures how far a job has progressed. Files and jobs only ever move from pending to complete, so any change in
+     * status increases this value.
+     */
+    private static int progress(final JobDto jobDto) {
+        int progress = jobDto.isComplete() ? 1 : 0;
+        for (FileDto fileDto : jobDto.getFiles()) {
+            if (fileDto.isComplete()) {
+                ++progress;
+            }
+        }
+        return progress;
+    }
+
+    @FunctionalInterface
+    private interface WatcherAction {
+        boolean apply(JobWatcher watcher);
+    }
+
+    private abstract static class JobWatcher {
+        volatile JobDto latest;
+        private volatile int lastProgress;
+
+        JobWatcher(JobDto jobDto) {
+            this.latest = jobDto;
+            this.lastProgress = progress(jobDto);
+        }
+
+        boolean hasProgressed(JobDto jobDto) {
+            final int progress = progress(jobDto);
+            latest = jobDto;
+            if (progress > lastProgress) {
+                lastProgress = progress;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Called when the status of the job changes.
+         *
+         * @return true if the watcher no longer needs to be notified.
+         */
+        abstract boolean onChange(JobDto jobDto);
+
+        abstract void onMissing(NoSuchJobException e);
+    }
+
+    private static class LongPollWatcher extends JobWatcher {
+        private final DeferredResult<JobDto> result;
+
+        LongPollWatcher(JobDto jobDto, DeferredResult<JobDto> result) {
+            super(jobDto);
+            this.result = result;
+        }
+
+        @Override
+        boolean onChange(JobDto jobDto) {
+            result.setResult(jobDto);
+            return true;
+        }
+
+        @Override
+        void onMissing(NoSuchJobException e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    private static class EventStreamWatcher extends JobWatcher {
+        private final SseEmitter emitter;
+
+        EventStreamWatcher(JobDto jobDto, SseEmitter emitter) {
+            super(jobDto);
+            this.emitter = emitter;
+        }
+
+        @Override
+        boolean onChange(JobDto jobDto) {
+            try {
+                emitter.send(SseEmitter.event().name(STATUS_EVENT).data(jobDto, MediaType.APPLICATION_JSON_UTF8));
+            } catch (IOException | IllegalStateException e) {
+                log.debug("Unable to send status event for job {} - client has gone away: {}", jobDto.getId(), e.getMessage());
+                emitter.complete();
+                return true;
+            }
+            if (jobDto.isComplete()) {
+                emitter.complete();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        void onMissing(NoSuchJobException e) {
+            emitter.complete();
+        }
+    }
+}
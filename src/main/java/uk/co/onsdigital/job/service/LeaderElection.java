@@ -0,0 +1,73 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.co.onsdigital.job.persistence.AdvisoryLock;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Elects one node of the cluster to run maintenance tasks, such as deleting expired jobs, that only need to run in
+ * one place at a time. The leader is whichever node holds the {@link AdvisoryLock}. Every node tries to take the lock
+ * each time one of its tasks is due, so if the leader stops or loses its database connection another node takes over
+ * the next time a task is due.
+ * <p>
+ * Scheduled tasks join the election by wrapping their work in {@link #runIfLeader(String, Runnable)}. Tasks that
+ * maintain state local to each node should not.
+ */
+@Service
+public class LeaderElection {
+    private static final Logger log = LoggerFactory.getLogger(LeaderElection.class);
+
+    private final AdvisoryLock advisoryLock;
+    private final boolean enabled;
+
+    @Autowired
+    LeaderElection(final AdvisoryLock advisoryLock,
+                   final MetricRegistry metricRegistry,
+                   final @Value("${leader.election.enabled}") boolean enabled) {
+        log.info("Starting LeaderElection. leader.election.enabled={}", enabled);
+        this.advisoryLock = advisoryLock;
+        this.enabled = enabled;
+        metricRegistry.register("leader", (Gauge<Integer>) () -> isLeader() ? 1 : 0);
+    }
+
+    /**
+     * Runs the given task if this node is the leader, first trying to become the leader if no node currently is.
+     *
+     * @param name the name of the task, for logging.
+     * @param task the task to run.
+     * @return true if the task was run.
+     */
+    public boolean runIfLeader(final String name, final Runnable task) {
+        if (enabled && !advisoryLock.tryAcquire()) {
+            log.debug("Not running {} - another node is the leader", name);
+            return false;
+        }
+        task.run();
+        return true;
+    }
+
+    /**
+     * @return true if this node was the leader when a task was last due.
+     */
+    public boolean isLeader() {
+        return !enabled || advisoryLock.isHeld();
+    }
+
+    /**
+     * Stands down as leader when shutting down, so another node can take over without waiting for the connection to
+     * be closed.
+     */
+    @PreDestroy
+    public void stop() {
+        if (enabled) {
+            advisoryLock.release();
+        }
+    }
+}
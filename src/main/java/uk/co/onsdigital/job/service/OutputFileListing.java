@@ -0,0 +1,240 @@
+package uk.co.onsdigital.job.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Determines which output files exist in S3. Files are checked against a listing of the output location, which is kept
+ * for a short time and shared by all status checks, so files that do not appear in it are treated as not existing
+ * until the listing is next refreshed. A few files are only checked against a listing that is still fresh, and
+ * otherwise with one request each, so that a single job's status check does not wait for the whole output location to
+ * be listed.
+ * <p>
+ * The output location holds every file generated until it expires, so the listing stops once it holds a maximum
+ * number of keys. Files that are not in an incomplete listing are then checked one at a time, so the work done grows
+ * with the number of files being checked rather than with the size of the bucket.
+ * <p>
+ * Both are done on the S3 {@link Bulkhead}, and callers only wait for a limited time. If S3 is slow, callers carry on
+ * with the expired listing if there is one, or fail straight away if there is not, so that a slow S3 never holds up
+ * request threads for long.
+ */
+@Service
+public class OutputFileListing {
+    private static final Logger log = LoggerFactory.getLogger(OutputFileListing.class);
+
+    private final AmazonS3 s3Client;
+    private final Executor s3Executor;
+    private final String bucket;
+    private final String prefix;
+    private final int pageSize;
+    private final int maxListedKeys;
+    private final long listingTtlMillis;
+    private final long listingTimeoutMillis;
+    private final int maxFilesCheckedIndividually;
+    private final Timer listObjectsTimer;
+    private final Timer headObjectTimer;
+
+    private volatile Listing listing;
+    /** The refresh in progress, if any, which every caller that needs a new listing waits on. */
+    private CompletableFuture<Listing> refreshing;
+
+    @Autowired
+    OutputFileListing(final AmazonS3 s3Client,
+                      final @Qualifier(Bulkhead.S3) Executor s3Executor,
+                      final MetricRegistry metricRegistry,
+                      final @Value("${output.s3.bucket}") String outputS3Location,
+                      final @Value("${output.s3.listing.page.size}") int pageSize,
+                      final @Value("${output.s3.listing.max.keys}") int maxListedKeys,
+                      final @Value("${output.s3.listing.ttl.ms}") long listingTtlMillis,
+                      final @Value("${output.s3.listing.timeout.ms}") long listingTimeoutMillis,
+                      final @Value("${output.s3.head.max.files}") int maxFilesCheckedIndividually) {
+        log.info("Starting OutputFileListing. output.s3.bucket={}, output.s3.listing.page.size={}, output.s3.listing.max.keys={}, " +
+                "output.s3.listing.ttl.ms={}, output.s3.listing.timeout.ms={}, output.s3.head.max.files={}", outputS3Location,
+                pageSize, maxListedKeys, listingTtlMillis, listingTimeoutMillis, maxFilesCheckedIndividually);
+
+        this.s3Client = s3Client;
+        this.s3Executor = s3Executor;
+        // The output location may include a path within the bucket
+        final int slash = outputS3Location.indexOf('/');
+        this.bucket = slash < 0 ? outputS3Location : outputS3Location.substring(0, slash);
+        this.prefix = slash < 0 ? "" : outputS3Location.substring(slash + 1) + "/";
+        this.pageSize = pageSize;
+        this.maxListedKeys = maxListedKeys;
+        this.listingTtlMillis = listingTtlMillis;
+        this.listingTimeoutMillis = listingTimeoutMillis;
+        this.maxFilesCheckedIndividually = maxFilesCheckedIndividually;
+        this.listObjectsTimer = metricRegistry.timer("s3.list.objects");
+        this.headObjectTimer = metricRegistry.timer("s3.head.object");
+    }
+
+    /**
+     * Returns the subset of the given file names that exist in the output location.
+     *
+     * @param fileNames the names of the files to check.
+     * @return the names of the files that exist.
+     * @throws ServiceUnavailableException if S3 could not be checked in time and there is no earlier listing to use.
+     */
+    public Set<String> findExisting(Collection<String> fileNames) {
+        if (fileNames.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (fileNames.size() <= maxFilesCheckedIndividually) {
+            final Listing current = listing;
+            if (current == null || current.isExpired()) {
+                return checkEach(fileNames);
+            }
+            return findIn(current, fileNames);
+        }
+        return findIn(getListing(), fileNames);
+    }
+
+    /**
+     * Finds the files in the given listing, and checks those that are not in it individually if it is incomplete.
+     */
+    private Set<String> findIn(final Listing current, final Collection<String> fileNames) {
+        final Set<String> result = new HashSet<>();
+        final List<String> unlisted = new ArrayList<>();
+        for (String fileName : fileNames) {
+            if (current.fileNames.contains(fileName)) {
+                result.add(fileName);
+            } else if (!current.complete) {
+                unlisted.add(fileName);
+            }
+        }
+        if (!unlisted.isEmpty()) {
+            result.addAll(checkEach(unlisted));
+        }
+        return result;
+    }
+
+    private Set<String> checkEach(final Collection<String> fileNames) {
+        final CompletableFuture<Set<String>> existing = CompletableFuture.supplyAsync(() -> {
+            final Set<String> result = new HashSet<>();
+            for (String fileName : fileNames) {
+                try (Timer.Context ignored = headObjectTimer.time()) {
+                    if (s3Client.doesObjectExist(bucket, prefix + fileName)) {
+                        result.add(fileName);
+                    }
+                }
+            }
+            return result;
+        }, s3Executor);
+        try {
+            return existing.get(listingTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("S3 took longer than {}ms to check {} output files", listingTimeoutMillis, fileNames.size());
+            throw new ServiceUnavailableException("Sorry - unable to check output files. Please try again later");
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Sorry - unable to check output files. Please try again later");
+        }
+    }
+
+    private Listing getListing() {
+        final Listing current = listing;
+        if (current != null && !current.isExpired()) {
+            return current;
+        }
+        try {
+            return refresh().get(listingTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (current != null) {
+                log.warn("S3 listing took longer than {}ms - using listing that expired {}ms ago", listingTimeoutMillis,
+                        System.currentTimeMillis() - current.expiresAt);
+                return current;
+            }
+            throw new ServiceUnavailableException("Sorry - unable to check output files. Please try again later");
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Sorry - unable to check output files. Please try again later");
+        }
+    }
+
+    private static RuntimeException unwrap(final ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        return new IllegalStateException(e.getCause());
+    }
+
+    private synchronized CompletableFuture<Listing> refresh() {
+        // Another thread may have refreshed the listing, or started to, while we were waiting
+        if (listing != null && !listing.isExpired()) {
+            return CompletableFuture.completedFuture(listing);
+        }
+        if (refreshing == null || refreshing.isDone()) {
+            refreshing = CompletableFuture.supplyAsync(this::list, s3Executor);
+        }
+        return refreshing;
+    }
+
+    private Listing list() {
+        final Set<String> fileNames = new HashSet<>();
+        final ListObjectsV2Request request = new ListObjectsV2Request();
+        request.setBucketName(bucket);
+        request.setPrefix(prefix);
+        request.setMaxKeys(pageSize);
+        int pages = 0;
+        ListObjectsV2Result result;
+        boolean complete;
+        do {
+            try (Timer.Context ignored = listObjectsTimer.time()) {
+                result = s3Client.listObjectsV2(request);
+            }
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                fileNames.add(summary.getKey().substring(prefix.length()));
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+            ++pages;
+            complete = !result.isTruncated();
+        } while (!complete && fileNames.size() < maxListedKeys);
+        if (complete) {
+            log.debug("Listed {} output files in {} pages", fileNames.size(), pages);
+        } else {
+            log.debug("Stopped listing output files after {} in {} pages - other files will be checked individually",
+                    fileNames.size(), pages);
+        }
+
+        listing = new Listing(fileNames, complete, System.currentTimeMillis() + listingTtlMillis);
+        return listing;
+    }
+
+    private static class Listing {
+        private final Set<String> fileNames;
+        /** False if the listing stopped before reaching the end of the output location. */
+        private final boolean complete;
+        private final long expiresAt;
+
+        Listing(Set<String> fileNames, boolean complete, long expiresAt) {
+            this.fileNames = fileNames;
+            this.complete = complete;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
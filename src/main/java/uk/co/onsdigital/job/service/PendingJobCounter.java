@@ -0,0 +1,169 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.time.Instant.now;
+import static java.time.temporal.ChronoUnit.HOURS;
+import static uk.co.onsdigital.job.model.StatusDto.PENDING;
+
+/**
+ * Keeps track of the number of pending jobs so that new jobs can be admitted without counting the job table on every
+ * request. Slots are reserved with a lock-free compare-and-set against the pending job limit, so concurrent requests
+ * cannot exceed it on this node. The count is periodically reconciled with the database, which picks up jobs created
+ * by other nodes and jobs that have completed or expired.
+ */
+@Service
+public class PendingJobCounter {
+    private static final Logger log = LoggerFactory.getLogger(PendingJobCounter.class);
+
+    private final JobRepository jobRepository;
+    private final long pendingJobLimit;
+    private final long claimTimeoutMillis;
+
+    /** Pending jobs known to the database plus any reserved on this node since. */
+    private final AtomicLong pendingJobs = new AtomicLong();
+    /** Slots reserved by transactions that have not yet completed, and so are not visible in the database. */
+    private final AtomicLong uncommittedReservations = new AtomicLong();
+    /** Jobs turned away because the pending job limit had been reached. */
+    private final Counter rejections;
+    /** When the longest-waiting pending file was submitted, as of the last reconciliation. */
+    private volatile Date oldestPendingSubmission;
+
+    @Autowired
+    PendingJobCounter(JobRepository jobRepository, MetricRegistry metricRegistry,
+                      @Value("${pending.job.limit}") long pendingJobLimit,
+                      @Value("${kafka.submission.claim.timeout.ms}") long claimTimeoutMillis) {
+        log.info("Starting PendingJobCounter. pending.job.limit={}, kafka.submission.claim.timeout.ms={}",
+                pendingJobLimit, claimTimeoutMillis);
+        this.jobRepository = jobRepository;
+        this.pendingJobLimit = pendingJobLimit;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.rejections = metricRegistry.counter("jobs.rejected");
+        metricRegistry.register("jobs.pending", (Gauge<Long>) this::getPendingJobs);
+        metricRegistry.register("jobs.pending.limit", (Gauge<Long>) this::getPendingJobLimit);
+        metricRegistry.register("files.pending.oldest.submission.age.ms", (Gauge<Long>) this::getOldestPendingSubmissionAge);
+    }
+
+    /**
+     * Attempts to reserve a slot for a new pending job. If called within a transaction, the slot is released again
+     * if the transaction does not commit.
+     *
+     * @return true if a slot was reserved, or false if the pending job limit has been reached.
+     */
+    public boolean tryReserve() {
+        return tryReserve(1) == 1;
+    }
+
+    /**
+     * Attempts to reserve slots for up to the given number of new pending jobs at once. If called within a transaction,
+     * the slots are released again if the transaction does not commit.
+     *
+     * @param count the number of slots wanted.
+     * @return the number of slots reserved, which is less than requested if the pending job limit has been reached.
+     */
+    public int tryReserve(final int count) {
+        long current;
+        long reserved;
+        do {
+            current = pendingJobs.get();
+            reserved = Math.min(count, Math.max(0, pendingJobLimit - current));
+            if (reserved == 0) {
+                rejections.inc(count);
+                return 0;
+            }
+        } while (!pendingJobs.compareAndSet(current, current + reserved));
+        if (reserved < count) {
+            rejections.inc(count - reserved);
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            final long uncommitted = reserved;
+            uncommittedReservations.addAndGet(uncommitted);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    uncommittedReservations.addAndGet(-uncommitted);
+                    if (status != STATUS_COMMITTED) {
+                        release(uncommitted);
+                    }
+                }
+            });
+        }
+        return (int) reserved;
+    }
+
+    /**
+     * Releases a previously reserved slot. If called within a transaction, the slot is only released once the
+     * transaction commits, as every slot reserved in the transaction is released anyway if it does not.
+     */
+    public void release() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            release(1);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    release(1);
+                }
+            }
+        });
+    }
+
+    private void release(final long slots) {
+        pendingJobs.updateAndGet(count -> Math.max(0, count - slots));
+    }
+
+    /**
+     * @return the current number of pending jobs.
+     */
+    public long getPendingJobs() {
+        return pendingJobs.get();
+    }
+
+    /**
+     * @return the maximum number of pending jobs.
+     */
+    public long getPendingJobLimit() {
+        return pendingJobLimit;
+    }
+
+    /**
+     * @return how long ago the longest-waiting pending file was submitted, as of the last reconciliation, in
+     * milliseconds, or zero if there are no submitted files pending.
+     */
+    public long getOldestPendingSubmissionAge() {
+        final Date oldest = oldestPendingSubmission;
+        return oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getTime());
+    }
+
+    /**
+     * Resets the pending job count from the database, and finds the oldest pending file submission.
+     */
+    @Scheduled(initialDelay = 0, fixedRateString = "${pending.job.reconcile.interval.ms}")
+    public void reconcile() {
+        final long count = jobRepository.countJobsWithStatus(PENDING) + uncommittedReservations.get();
+        final long previous = pendingJobs.getAndSet(count);
+        log.debug("Reconciled pending job count: {} -> {}", previous, count);
+        // Claims that have not yet been acknowledged are backdated by an hour, less the claim timeout
+        final Instant oneHourAgo = now().minus(1, HOURS);
+        oldestPendingSubmission = jobRepository.findOldestPendingSubmission(Date.from(oneHourAgo),
+                Date.from(oneHourAgo.plusMillis(claimTimeoutMillis)));
+    }
+}
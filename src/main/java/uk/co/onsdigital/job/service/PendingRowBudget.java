@@ -0,0 +1,152 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static uk.co.onsdigital.job.model.StatusDto.PENDING;
+
+/**
+ * Admits new jobs against a budget of the total {@linkplain JobCostEstimator estimated rows} of the pending jobs
+ * admitted by this node, so that a few very large jobs use up as much of the capacity of the filter as many small
+ * ones. A job is always admitted when nothing else is pending, however large it is. Rows are reserved with a
+ * compare-and-set against the limit, and are returned to the budget once the job is no longer pending in the database.
+ */
+@Service
+public class PendingRowBudget {
+    private static final Logger log = LoggerFactory.getLogger(PendingRowBudget.class);
+
+    private final JobRepository jobRepository;
+    private final long pendingRowLimit;
+
+    /** Estimated rows of the pending jobs admitted by this node. */
+    private final AtomicLong pendingRows = new AtomicLong();
+    /** Estimated rows of each pending job admitted by this node. */
+    private final ConcurrentMap<String, Long> reservations = new ConcurrentHashMap<>();
+    /** Jobs reserved by transactions that have not yet completed, and so are not visible in the database. */
+    private final Set<String> uncommitted = ConcurrentHashMap.newKeySet();
+    private final Counter rejections;
+
+    @Autowired
+    PendingRowBudget(JobRepository jobRepository, MetricRegistry metricRegistry,
+                     @Value("${pending.rows.limit}") long pendingRowLimit) {
+        log.info("Starting PendingRowBudget. pending.rows.limit={}", pendingRowLimit);
+        this.jobRepository = jobRepository;
+        this.pendingRowLimit = pendingRowLimit;
+        this.rejections = metricRegistry.counter("jobs.rejected.rows");
+        metricRegistry.register("jobs.pending.rows", (Gauge<Long>) this::getPendingRows);
+        metricRegistry.register("jobs.pending.rows.limit", (Gauge<Long>) this::getPendingRowLimit);
+    }
+
+    /**
+     * Attempts to reserve the estimated rows of a new pending job. If called within a transaction, the rows are
+     * released again if the transaction does not commit.
+     *
+     * @param jobId the ID of the new job.
+     * @param estimatedRows the estimated rows of output of the job.
+     * @return true if the rows were reserved, or false if the job would exceed the budget.
+     */
+    public boolean tryReserve(final String jobId, final long estimatedRows) {
+        long current;
+        do {
+            current = pendingRows.get();
+            if (current > 0 && estimatedRows > pendingRowLimit - current) {
+                rejections.inc();
+                return false;
+            }
+        } while (!pendingRows.compareAndSet(current, saturatedAdd(current, estimatedRows)));
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // Marked as uncommitted first so that reconciliation never looks for the job before it has been saved
+            uncommitted.add(jobId);
+            reservations.put(jobId, estimatedRows);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    uncommitted.remove(jobId);
+                    if (status != STATUS_COMMITTED) {
+                        release(jobId);
+                    }
+                }
+            });
+        } else {
+            reservations.put(jobId, estimatedRows);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the rows reserved for the given job to the budget.
+     */
+    public void release(final String jobId) {
+        final Long rows = reservations.remove(jobId);
+        if (rows != null) {
+            pendingRows.updateAndGet(current -> Math.max(0, current - rows));
+        }
+    }
+
+    /**
+     * @return the estimated rows of the pending jobs admitted by this node.
+     */
+    public long getPendingRows() {
+        return pendingRows.get();
+    }
+
+    /**
+     * @return the maximum estimated rows of pending jobs.
+     */
+    public long getPendingRowLimit() {
+        return pendingRowLimit;
+    }
+
+    /**
+     * @return the estimated rows that can still be admitted.
+     */
+    public long getRemainingRows() {
+        return Math.max(0, pendingRowLimit - pendingRows.get());
+    }
+
+    /**
+     * Returns the rows of any jobs that have completed, expired or been deleted to the budget.
+     */
+    @Scheduled(initialDelay = 0, fixedRateString = "${pending.job.reconcile.interval.ms}")
+    public void reconcile() {
+        final List<String> jobIds = new ArrayList<>();
+        for (String jobId : reservations.keySet()) {
+            if (!uncommitted.contains(jobId)) {
+                jobIds.add(jobId);
+            }
+        }
+        if (jobIds.isEmpty()) {
+            return;
+        }
+        final Set<String> pending = jobRepository.findJobsWithStatus(jobIds, PENDING);
+        for (String jobId : jobIds) {
+            if (!pending.contains(jobId)) {
+                release(jobId);
+            }
+        }
+        log.debug("Reconciled pending rows: {} jobs, {} rows", reservations.size(), pendingRows.get());
+    }
+
+    private static long saturatedAdd(final long a, final long b) {
+        final long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+}
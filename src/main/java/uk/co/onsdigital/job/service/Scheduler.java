@@ -1,8 +1,12 @@
 package uk.co.onsdigital.job.service;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import uk.co.onsdigital.job.persistence.JobRepository;
@@ -10,26 +14,91 @@ import uk.co.onsdigital.job.persistence.JobRepository;
 import java.util.Date;
 
 /**
- * Runs scheduled tasks.
+ * Runs scheduled tasks. Only the node elected by {@link LeaderElection} deletes expired jobs, so that nodes do not
+ * compete to delete the same rows.
  */
 @Component
 public class Scheduler {
     private static final Logger log = LoggerFactory.getLogger(Scheduler.class);
 
-    private JobRepository jobRepository;
+    private final JobRepository jobRepository;
+    private final LeaderElection leaderElection;
+    private final int batchSize;
+    private final long timeBudgetMillis;
+    private final long orphanedFileMinAgeMillis;
+    private final Counter deletedJobs;
+    private final Counter deletedFiles;
+
+    /** How long the oldest expired job had been waiting to be deleted at the end of the last sweep. */
+    private volatile long sweepLagMillis;
 
     @Autowired
-    public Scheduler(JobRepository jobRepository) {
-        log.info("Starting job cleanup task");
+    public Scheduler(JobRepository jobRepository,
+                     LeaderElection leaderElection,
+                     MetricRegistry metricRegistry,
+                     @Value("${expiry.sweep.batch.size}") int batchSize,
+                     @Value("${expiry.sweep.time.budget.ms}") long timeBudgetMillis,
+                     @Value("${expiry.orphaned.file.min.age.ms}") long orphanedFileMinAgeMillis) {
+        log.info("Starting job cleanup task. expiry.sweep.batch.size={}, expiry.sweep.time.budget.ms={}, " +
+                "expiry.orphaned.file.min.age.ms={}", batchSize, timeBudgetMillis, orphanedFileMinAgeMillis);
         this.jobRepository = jobRepository;
+        this.leaderElection = leaderElection;
+        this.batchSize = batchSize;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.orphanedFileMinAgeMillis = orphanedFileMinAgeMillis;
+        this.deletedJobs = metricRegistry.counter("expiry.jobs.deleted");
+        this.deletedFiles = metricRegistry.counter("expiry.files.deleted");
+        metricRegistry.register("expiry.lag.ms", (Gauge<Long>) this::getSweepLagMillis);
     }
 
     /**
-     * Deletes all expired jobs.
+     * Deletes expired jobs, followed by any files that are no longer part of a job. Rows are deleted in batches, each
+     * in its own transaction, until there are none left or the time budget for the run is used up, so that a large
+     * backlog is worked through over several runs without locking the job table for long.
      */
-    @Scheduled(initialDelay = 1000, fixedRate = 60000)
+    @Scheduled(initialDelay = 1000, fixedDelayString = "${expiry.sweep.interval.ms}")
     void deleteExpiredJobs() {
+        leaderElection.runIfLeader("expired job sweep", this::sweep);
+    }
+
+    private void sweep() {
         log.debug("Deleting expired jobs");
-        jobRepository.deleteJobsExpiringBefore(new Date());
+        final Date now = new Date();
+        final long deadline = System.currentTimeMillis() + timeBudgetMillis;
+
+        long jobs = 0;
+        int deleted;
+        do {
+            deleted = jobRepository.deleteExpiredJobs(now, batchSize);
+            jobs += deleted;
+            deletedJobs.inc(deleted);
+        } while (deleted == batchSize && System.currentTimeMillis() < deadline);
+
+        long files = 0;
+        if (deleted < batchSize) {
+            final Date staleBefore = new Date(now.getTime() - orphanedFileMinAgeMillis);
+            do {
+                deleted = jobRepository.deleteOrphanedFiles(staleBefore, batchSize);
+                files += deleted;
+                deletedFiles.inc(deleted);
+            } while (deleted == batchSize && System.currentTimeMillis() < deadline);
+        }
+
+        final Date oldest = jobRepository.findOldestExpiryBefore(now);
+        sweepLagMillis = oldest == null ? 0 : now.getTime() - oldest.getTime();
+        if (oldest != null) {
+            log.warn("Deleted {} expired jobs - ran out of time with jobs that expired up to {}ms ago still to delete",
+                    jobs, sweepLagMillis);
+        } else {
+            log.debug("Deleted {} expired jobs and {} orphaned files", jobs, files);
+        }
+    }
+
+    /**
+     * @return how long the oldest expired job had been waiting to be deleted at the end of the last sweep, in
+     * milliseconds, or zero if the sweep deleted every expired job.
+     */
+    public long getSweepLagMillis() {
+        return sweepLagMillis;
     }
 }
@@ -0,0 +1,181 @@
+package uk.co.onsdigital.job;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.RateLimitExceededException;
+import uk.co.onsdigital.job.service.ClientRateLimiter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class ClientRateLimitFilterTest {
+    private static final String CLIENT_HEADER = "X-API-Key";
+    private static final String CLIENT_KEY = "abc";
+
+    @Mock
+    private ClientRateLimiter mockCreateLimiter;
+
+    @Mock
+    private ClientRateLimiter mockPollLimiter;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+
+    @Mock
+    private HttpServletResponse mockResponse;
+
+    @Mock
+    private FilterChain mockFilterChain;
+
+    private ClientRateLimitFilter filter;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        filter = new ClientRateLimitFilter(mockCreateLimiter, mockPollLimiter, CLIENT_HEADER, CLIENT_KEY, " ");
+        when(mockCreateLimiter.isEnabled()).thenReturn(true);
+        when(mockPollLimiter.isEnabled()).thenReturn(true);
+        when(mockRequest.getRemoteAddr()).thenReturn("10.0.0.1");
+        when(mockRequest.getContextPath()).thenReturn("");
+    }
+
+    @Test
+    public void shouldLimitJobCreationByAddressAndKnownApiKey() throws Exception {
+        // Given
+        request("POST", "/job");
+        when(mockRequest.getHeader(CLIENT_HEADER)).thenReturn(CLIENT_KEY);
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        verify(mockCreateLimiter).tryAcquire("ip:10.0.0.1", 1);
+        verify(mockCreateLimiter).tryAcquire("key:abc", 1);
+        verifyZeroInteractions(mockPollLimiter);
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void shouldLimitStatusRequestsByAddressWithoutApiKey() throws Exception {
+        // Given
+        request("GET", "/job/123/events");
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        verify(mockPollLimiter).tryAcquire("ip:10.0.0.1", 1);
+        verify(mockCreateLimiter, never()).tryAcquire(anyString(), anyInt());
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void shouldLimitUnknownApiKeysByAddressOnly() throws Exception {
+        // Given
+        request("GET", "/job/123");
+        when(mockRequest.getHeader(CLIENT_HEADER)).thenReturn("made-up");
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        verify(mockPollLimiter).tryAcquire("ip:10.0.0.1", 1);
+        verify(mockPollLimiter, never()).tryAcquire(eq("key:made-up"), anyInt());
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void shouldChargeRestOfBatchOnceItsSizeIsKnown() throws Exception {
+        // Given
+        request("POST", "/jobs");
+        when(mockRequest.getHeader(CLIENT_HEADER)).thenReturn(CLIENT_KEY);
+        ArgumentCaptor<Object> charge = ArgumentCaptor.forClass(Object.class);
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+        verify(mockRequest).setAttribute(anyString(), charge.capture());
+        when(mockRequest.getAttribute(anyString())).thenReturn(charge.getValue());
+
+        // When
+        ClientRateLimitFilter.acquireForJobs(mockRequest, 99);
+
+        // Then
+        verify(mockCreateLimiter).tryAcquire("ip:10.0.0.1", 99);
+        verify(mockCreateLimiter).tryAcquire("key:abc", 99);
+    }
+
+    @Test
+    public void shouldRejectBatchWhenClientCannotAffordIt() throws Exception {
+        // Given
+        request("POST", "/jobs");
+        ArgumentCaptor<Object> charge = ArgumentCaptor.forClass(Object.class);
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+        verify(mockRequest).setAttribute(anyString(), charge.capture());
+        when(mockRequest.getAttribute(anyString())).thenReturn(charge.getValue());
+        when(mockCreateLimiter.tryAcquire("ip:10.0.0.1", 99)).thenReturn(TimeUnit.SECONDS.toNanos(80));
+
+        // When
+        try {
+            ClientRateLimitFilter.acquireForJobs(mockRequest, 99);
+            fail("Expected RateLimitExceededException");
+        } catch (RateLimitExceededException e) {
+            // Then
+            assertThat(e.getRetryAfterSeconds()).isEqualTo(80);
+            assertThat(e.getHttpStatus().value()).isEqualTo(429);
+        }
+    }
+
+    @Test
+    public void shouldNotChargeRequestsThatWereNotRateLimited() {
+        ClientRateLimitFilter.acquireForJobs(mockRequest, 99);
+
+        verifyZeroInteractions(mockCreateLimiter);
+    }
+
+    @Test
+    public void shouldRejectClientOverLimitWithRetryAfter() throws Exception {
+        // Given
+        request("POST", "/jobs");
+        when(mockCreateLimiter.tryAcquire("ip:10.0.0.1", 1)).thenReturn(TimeUnit.MILLISECONDS.toNanos(1500));
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        verify(mockResponse).setHeader("Retry-After", "2");
+        verify(mockResponse).sendError(eq(429), contains("2 seconds"));
+        verifyZeroInteractions(mockFilterChain);
+    }
+
+    @Test
+    public void shouldNotLimitOtherEndpoints() throws Exception {
+        // Given
+        request("GET", "/metrics");
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        verifyZeroInteractions(mockCreateLimiter, mockPollLimiter);
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+    }
+
+    private void request(String method, String path) {
+        when(mockRequest.getMethod()).thenReturn(method);
+        when(mockRequest.getRequestURI()).thenReturn(path);
+    }
+}
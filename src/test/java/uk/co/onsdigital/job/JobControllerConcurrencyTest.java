@@ -0,0 +1,165 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.discovery.model.*;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.model.DimensionFilter;
+import uk.co.onsdigital.job.model.JobDto;
+import uk.co.onsdigital.job.persistence.AbstractInMemoryDatabaseTests;
+import uk.co.onsdigital.job.persistence.DataSetRepository;
+import uk.co.onsdigital.job.persistence.HierarchyRepository;
+import uk.co.onsdigital.job.persistence.JobRepository;
+import uk.co.onsdigital.job.service.FilterFingerprinter;
+import uk.co.onsdigital.job.service.FilterServiceClient;
+import uk.co.onsdigital.job.service.JobRequestCoalescer;
+import uk.co.onsdigital.job.service.JobStatusChecker;
+import uk.co.onsdigital.job.service.JobStatusNotifier;
+import uk.co.onsdigital.job.service.JobCostEstimator;
+import uk.co.onsdigital.job.service.PendingJobCounter;
+import uk.co.onsdigital.job.service.PendingRowBudget;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives the controller from many threads against a real (in-memory) database to check that each request gets its
+ * own persistence context.
+ */
+public class JobControllerConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int REQUESTS = 400;
+    private static final String DIMENSION = "dim";
+
+    @Mock
+    private FilterServiceClient mockFilterServiceClient;
+
+    @Mock
+    private JobStatusChecker mockJobStatusChecker;
+
+    @Mock
+    private PendingJobCounter mockPendingJobCounter;
+
+    @Mock
+    private JobCostEstimator mockJobCostEstimator;
+
+    @Mock
+    private PendingRowBudget mockPendingRowBudget;
+
+    @Mock
+    private JobStatusNotifier mockJobStatusNotifier;
+
+    @Mock
+    private JobRequestCoalescer mockJobRequestCoalescer;
+
+    private EntityManagerFactory emf;
+    private TransactionTemplate transactionTemplate;
+    private JobController jobController;
+    private UUID dataSetId;
+
+    @BeforeClass
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        emf = AbstractInMemoryDatabaseTests.getInMemoryEntityManagerFactory("concurrency");
+        transactionTemplate = new TransactionTemplate(new JpaTransactionManager(emf));
+        EntityManager sharedEntityManager = SharedEntityManagerCreator.createSharedEntityManager(emf);
+
+        jobController = new JobController(new DataSetRepository(sharedEntityManager, new MetricRegistry(), 100, 60, 60, 1000, 1000),
+                new HierarchyRepository(sharedEntityManager, new MetricRegistry(), 1000, 60), mockFilterServiceClient,
+                new JobRepository(sharedEntityManager, new MetricRegistry()), mockJobStatusChecker, mockPendingJobCounter, mockJobCostEstimator, mockPendingRowBudget, mockJobStatusNotifier,
+                mockJobRequestCoalescer, new FilterFingerprinter(), 10, true, null, null, 0);
+        when(mockPendingJobCounter.tryReserve()).thenReturn(true);
+        when(mockPendingRowBudget.tryReserve(anyString(), anyLong())).thenReturn(true);
+
+        dataSetId = UUID.randomUUID();
+        transactionTemplate.execute(status -> {
+            DataSet dataSet = new DataSet();
+            dataSet.setId(dataSetId);
+            dataSet.setS3URL("s3://test/test.csv");
+            sharedEntityManager.persist(dataSet);
+
+            Dimension dimension = new Dimension();
+            dimension.setId(UUID.randomUUID());
+            dimension.setDataSet(dataSet);
+            dimension.setName(DIMENSION);
+            dimension.setType("foo");
+            sharedEntityManager.persist(dimension);
+
+            for (int i = 0; i < REQUESTS; ++i) {
+                DimensionValue value = new DimensionValue();
+                value.setId(UUID.randomUUID());
+                value.setDimension(dimension);
+                value.setValue(String.valueOf(i));
+                sharedEntityManager.persist(value);
+            }
+            return null;
+        });
+    }
+
+    @AfterClass
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void shouldCreateAndCheckJobsConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<JobDto>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < REQUESTS; ++i) {
+                final CreateJobRequest request = request(String.valueOf(i));
+                results.add(executor.submit(() -> {
+                    start.await();
+                    JobDto created = transactionTemplate.execute(status -> createJob(request));
+                    return transactionTemplate.execute(status -> jobController.checkJobStatus(created.getId()));
+                }));
+            }
+            start.countDown();
+
+            Set<String> jobIds = new HashSet<>();
+            Set<String> fileNames = new HashSet<>();
+            for (Future<JobDto> result : results) {
+                JobDto jobDto = result.get(60, TimeUnit.SECONDS);
+                jobIds.add(jobDto.getId());
+                fileNames.add(jobDto.getFiles().get(0).getName());
+            }
+            assertThat(jobIds).hasSize(REQUESTS);
+            assertThat(fileNames).hasSize(REQUESTS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private JobDto createJob(CreateJobRequest request) {
+        try {
+            return jobController.createJob(request);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CreateJobRequest request(String value) {
+        CreateJobRequest request = new CreateJobRequest();
+        request.setDataSetId(dataSetId);
+        request.setDimensions(singletonList(new DimensionFilter(DIMENSION, singletonList(value))));
+        return request;
+    }
+}
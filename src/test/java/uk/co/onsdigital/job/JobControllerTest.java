@@ -1,16 +1,34 @@
 package uk.co.onsdigital.job;
 
 import org.mockito.*;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import uk.co.onsdigital.job.exception.*;
 import uk.co.onsdigital.job.model.*;
 import uk.co.onsdigital.job.persistence.DataSetRepository;
+import uk.co.onsdigital.job.persistence.HierarchyRepository;
 import uk.co.onsdigital.job.persistence.JobRepository;
+import uk.co.onsdigital.job.service.FilterFingerprinter;
 import uk.co.onsdigital.job.service.FilterServiceClient;
+import uk.co.onsdigital.job.service.JobRequestCoalescer;
 import uk.co.onsdigital.job.service.JobStatusChecker;
+import uk.co.onsdigital.job.service.JobStatusNotifier;
+import uk.co.onsdigital.job.service.JobCostEstimator;
+import uk.co.onsdigital.job.service.PendingJobCounter;
+import uk.co.onsdigital.job.service.PendingRowBudget;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singleton;
@@ -18,7 +36,10 @@ import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
+import static uk.co.onsdigital.job.model.StatusDto.COMPLETE;
 import static uk.co.onsdigital.job.model.StatusDto.PENDING;
 
 public class JobControllerTest {
@@ -26,6 +47,9 @@ public class JobControllerTest {
     @Mock
     private DataSetRepository mockDataSetRepository;
 
+    @Mock
+    private HierarchyRepository mockHierarchyRepository;
+
     @Mock
     private JobRepository mockJobRepository;
 
@@ -35,21 +59,44 @@ public class JobControllerTest {
     @Mock
     private JobStatusChecker mockJobStatusChecker;
 
+    @Mock
+    private PendingJobCounter mockPendingJobCounter;
+
+    @Mock
+    private JobCostEstimator mockJobCostEstimator;
+
+    @Mock
+    private PendingRowBudget mockPendingRowBudget;
+
+    @Mock
+    private JobStatusNotifier mockJobStatusNotifier;
+
+    @Mock
+    private JobRequestCoalescer mockJobRequestCoalescer;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+
     @Captor
     private ArgumentCaptor<Map<FileFormat, FileDto>> fileStatus;
 
-    private long pendingJobLimit = 99;
-
     private JobController jobController;
 
     @BeforeMethod
     public void setup() {
         MockitoAnnotations.initMocks(this);
 
-        jobController = new JobController(mockDataSetRepository, mockFilterServiceClient, mockJobRepository,
-                mockJobStatusChecker, pendingJobLimit);
+        jobController = new JobController(mockDataSetRepository, mockHierarchyRepository, mockFilterServiceClient, mockJobRepository,
+                mockJobStatusChecker, mockPendingJobCounter, mockJobCostEstimator, mockPendingRowBudget, mockJobStatusNotifier, mockJobRequestCoalescer,
+                new FilterFingerprinter(), 10, true, mockTransactionManager, Runnable::run, 30000);
 
-        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(0L);
+        when(mockPendingJobCounter.tryReserve()).thenReturn(true);
+        when(mockPendingRowBudget.tryReserve(anyString(), anyLong())).thenReturn(true);
+        when(mockJobRequestCoalescer.coalesce(anyString(), Matchers.<Supplier<CompletableFuture<JobDto>>>any()))
+                .thenAnswer(ctx -> ((Supplier<?>) ctx.getArguments()[1]).get());
         when(mockDataSetRepository.findMatchingDimensionValues(any(UUID.class), any(SortedMap.class))).thenAnswer(ctx -> ctx.getArguments()[1]);
     }
 
@@ -59,19 +106,53 @@ public class JobControllerTest {
         CreateJobRequest request1 = request(dataSetId);
         CreateJobRequest request2 = request(dataSetId);
 
-        String filename1 = JobController.generateBaseFileName(request1);
-        String filename2 = JobController.generateBaseFileName(request2);
+        String filename1 = jobController.generateBaseFileName(request1);
+        String filename2 = jobController.generateBaseFileName(request2);
 
         assertThat(filename1).isEqualTo(filename2);
     }
 
+    @Test
+    public void shouldOnlyCoalesceRequestsForTheSameFileFormats() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest csv = request(dataSetId);
+        CreateJobRequest noFormats = request(dataSetId);
+        noFormats.setFileFormats(Collections.emptySet());
+
+        // When
+        jobController.submitJob(csv);
+        jobController.submitJob(noFormats);
+
+        // Then
+        assertThat(jobController.generateBaseFileName(csv)).isEqualTo(jobController.generateBaseFileName(noFormats));
+        assertThat(jobController.coalescingKey(csv)).isNotEqualTo(jobController.coalescingKey(noFormats))
+                .isEqualTo(jobController.coalescingKey(request(dataSetId)));
+        verify(mockJobRequestCoalescer).coalesce(eq(jobController.coalescingKey(csv)), Matchers.<Supplier<CompletableFuture<JobDto>>>any());
+        verify(mockJobRequestCoalescer).coalesce(eq(jobController.coalescingKey(noFormats)), Matchers.<Supplier<CompletableFuture<JobDto>>>any());
+    }
+
+    @Test
+    public void shouldOnlyCoalesceRequestsForTheSameHierarchyEntries() throws Exception {
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest first = request(dataSetId);
+        first.getDimensions().add(hierarchyFilter("A"));
+        CreateJobRequest second = request(dataSetId);
+        second.getDimensions().add(hierarchyFilter("B"));
+        CreateJobRequest same = request(dataSetId);
+        same.getDimensions().add(hierarchyFilter("A"));
+
+        assertThat(jobController.coalescingKey(first)).isNotEqualTo(jobController.coalescingKey(second))
+                .isEqualTo(jobController.coalescingKey(same));
+    }
+
     @Test
     public void shouldCreateDifferentFilenamesForDifferentDataSets() throws Exception {
         CreateJobRequest request1 = request(UUID.randomUUID());
         CreateJobRequest request2 = request(UUID.randomUUID());
 
-        String filename1 = JobController.generateBaseFileName(request1);
-        String filename2 = JobController.generateBaseFileName(request2);
+        String filename1 = jobController.generateBaseFileName(request1);
+        String filename2 = jobController.generateBaseFileName(request2);
 
         assertThat(filename1).isNotEqualTo(filename2);
     }
@@ -84,8 +165,8 @@ public class JobControllerTest {
         CreateJobRequest request2 = request(dataSetId);
         request1.setDimensions(asList(new DimensionFilter("third", asList("e"))));
 
-        String filename1 = JobController.generateBaseFileName(request1);
-        String filename2 = JobController.generateBaseFileName(request2);
+        String filename1 = jobController.generateBaseFileName(request1);
+        String filename2 = jobController.generateBaseFileName(request2);
 
         assertThat(filename1).isNotEqualTo(filename2);
     }
@@ -103,6 +184,19 @@ public class JobControllerTest {
         assertThat(result.get(FileFormat.CSV).getName()).isNotNull().endsWith(".csv");
     }
 
+    @Test
+    public void shouldReuseFilesNamedWithLegacyFingerprint() throws Exception {
+        CreateJobRequest request = request(UUID.randomUUID());
+        String legacyName = new FilterFingerprinter().legacyFingerprint(request) + FileFormat.CSV.getExtension();
+        FileDto legacyFile = new FileDto(legacyName);
+        legacyFile.setStatus(StatusDto.COMPLETE);
+        when(mockJobRepository.findFileStatus(legacyName)).thenReturn(legacyFile);
+
+        Map<FileFormat, FileDto> result = jobController.getInitialFileStatus(request);
+
+        assertThat(result.get(FileFormat.CSV)).isSameAs(legacyFile);
+    }
+
     @Test(expectedExceptions = NoSuchDataSetException.class)
     public void shouldRejectMissingDataSets() throws Exception {
         CreateJobRequest request = request(UUID.randomUUID());
@@ -118,7 +212,7 @@ public class JobControllerTest {
         doAnswer(ctx -> {
             JobDto jobDto = (JobDto)ctx.getArguments()[0];
             jobDto.setStatus(StatusDto.COMPLETE);
-            return null;
+            return true;
         }).when(mockJobStatusChecker).updateStatus(any(JobDto.class));
 
         jobController.createJob(request);
@@ -131,11 +225,11 @@ public class JobControllerTest {
     public void shouldThrowExceptionWhenPendingLimitExceeded() throws Exception {
         CreateJobRequest request = request(UUID.randomUUID());
         when(mockDataSetRepository.findS3urlForDataSet(request.getDataSetId())).thenReturn("s3_url");
-        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(pendingJobLimit);
+        when(mockPendingJobCounter.tryReserve()).thenReturn(false);
         doAnswer(ctx -> {
             JobDto jobDto = (JobDto)ctx.getArguments()[0];
             jobDto.setStatus(PENDING);
-            return null;
+            return false;
         }).when(mockJobStatusChecker).updateStatus(any(JobDto.class));
 
         try {
@@ -147,15 +241,33 @@ public class JobControllerTest {
 
     }
 
+    @Test
+    public void shouldReportEstimateAndRemainingBudgetWhenRowBudgetExceeded() throws Exception {
+        CreateJobRequest request = request(UUID.randomUUID());
+        when(mockDataSetRepository.findS3urlForDataSet(request.getDataSetId())).thenReturn("s3_url");
+        when(mockJobCostEstimator.estimateRows(eq(request.getDataSetId()), any(SortedMap.class))).thenReturn(5000L);
+        when(mockPendingRowBudget.tryReserve(anyString(), eq(5000L))).thenReturn(false);
+        when(mockPendingRowBudget.getRemainingRows()).thenReturn(1200L);
+
+        try {
+            jobController.createJob(request);
+            fail("Expected TooManyRequestsException");
+        } catch (TooManyRequestsException e) {
+            assertThat(e.getMessage()).contains("5000 rows").contains("only 1200 rows");
+        }
+        verifyZeroInteractions(mockFilterServiceClient);
+        verify(mockJobRepository, never()).save(any(JobDto.class));
+    }
+
     @Test
     public void shouldReturnCompletedJobWhenPendingLimitExceeded() throws Exception {
         CreateJobRequest request = request(UUID.randomUUID());
         when(mockDataSetRepository.findS3urlForDataSet(request.getDataSetId())).thenReturn("s3_url");
-        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(pendingJobLimit);
+        when(mockPendingJobCounter.tryReserve()).thenReturn(false);
         doAnswer(ctx -> {
             JobDto jobDto = (JobDto)ctx.getArguments()[0];
             jobDto.setStatus(StatusDto.COMPLETE);
-            return null;
+            return true;
         }).when(mockJobStatusChecker).updateStatus(any(JobDto.class));
 
         jobController.createJob(request);
@@ -172,7 +284,7 @@ public class JobControllerTest {
 
         jobController.createJob(request);
 
-        verify(mockFilterServiceClient).submitFilterRequest(eq(s3Url), fileStatus.capture(),
+        verify(mockFilterServiceClient).submitFilterRequest(eq(request.getDataSetId()), eq(s3Url), fileStatus.capture(),
                 eq(request.getSortedDimensionFilters()));
         assertThat(fileStatus.getValue()).containsOnlyKeys(FileFormat.CSV);
         assertThat(fileStatus.getValue().get(FileFormat.CSV).getStatus()).isEqualTo(PENDING);
@@ -233,10 +345,168 @@ public class JobControllerTest {
 
         JobDto result = jobController.checkJobStatus(jobId);
 
-        verify(mockJobStatusChecker).updateStatus(jobDto);
+        verify(mockJobStatusChecker).refreshStatus(jobDto);
         assertThat(result).isEqualTo(jobDto);
     }
 
+    @Test
+    public void shouldSaveJobWhenStatusChanges() throws Exception {
+        String jobId = "job1";
+        JobDto jobDto = new JobDto(singletonList(new FileDto("test.csv")), new Date(Long.MAX_VALUE));
+        when(mockJobRepository.findOne(jobId)).thenReturn(jobDto);
+        when(mockJobStatusChecker.refreshStatus(jobDto)).thenReturn(true);
+
+        jobController.checkJobStatus(jobId);
+
+        verify(mockJobRepository).save(jobDto);
+    }
+
+    @Test
+    public void shouldNotSaveJobWhenStatusUnchanged() throws Exception {
+        String jobId = "job1";
+        JobDto jobDto = new JobDto(singletonList(new FileDto("test.csv")), new Date(Long.MAX_VALUE));
+        when(mockJobRepository.findOne(jobId)).thenReturn(jobDto);
+        when(mockJobStatusChecker.refreshStatus(jobDto)).thenReturn(false);
+
+        jobController.checkJobStatus(jobId);
+
+        verify(mockJobRepository, never()).save(any(JobDto.class));
+    }
+
+    @Test
+    public void shouldAllowCompleteJobsToBeCachedUntilExpiry() throws Exception {
+        String jobId = "job1";
+        JobDto jobDto = new JobDto(singletonList(new FileDto("test.csv")), new Date(System.currentTimeMillis() + 3600_000L));
+        jobDto.setStatus(COMPLETE);
+        when(mockJobRepository.findOne(jobId)).thenReturn(jobDto);
+
+        ResponseEntity<JobDto> response = resultOf(jobController.getJobStatus(jobId));
+
+        assertThat(response.getBody()).isEqualTo(jobDto);
+        assertThat(response.getHeaders().getETag()).isEqualTo(JobController.entityTag(jobDto));
+        assertThat(response.getHeaders().getCacheControl()).matches("max-age=3(5\\d\\d|600), public");
+    }
+
+    @Test
+    public void shouldRequirePendingJobsToBeRevalidated() throws Exception {
+        String jobId = "job1";
+        JobDto jobDto = new JobDto(singletonList(new FileDto("test.csv")), new Date(Long.MAX_VALUE));
+        when(mockJobRepository.findOne(jobId)).thenReturn(jobDto);
+
+        ResponseEntity<JobDto> response = resultOf(jobController.getJobStatus(jobId));
+
+        assertThat(response.getHeaders().getETag()).isEqualTo(JobController.entityTag(jobDto));
+        assertThat(response.getHeaders().getCacheControl()).isEqualTo("no-cache");
+    }
+
+    @Test
+    public void shouldCreateJobInTransactionOnDatabaseExecutor() throws Exception {
+        // Given
+        List<Runnable> tasks = new ArrayList<>();
+        jobController = new JobController(mockDataSetRepository, mockHierarchyRepository, mockFilterServiceClient, mockJobRepository,
+                mockJobStatusChecker, mockPendingJobCounter, mockJobCostEstimator, mockPendingRowBudget, mockJobStatusNotifier, mockJobRequestCoalescer,
+                new FilterFingerprinter(), 10, true, mockTransactionManager, tasks::add, 30000);
+        CreateJobRequest request = request(UUID.randomUUID());
+        when(mockJobRepository.save(any(JobDto.class))).then(ctx -> ctx.getArguments()[0]);
+
+        // When
+        DeferredResult<ResponseEntity<JobDto>> result = jobController.submitJob(request);
+
+        // Then
+        assertThat(result.hasResult()).isFalse();
+        verifyZeroInteractions(mockDataSetRepository, mockTransactionManager);
+
+        tasks.get(0).run();
+        assertThat(resultOf(result).getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(resultOf(result).getBody().getStatus()).isEqualTo(PENDING);
+        verify(mockTransactionManager).commit(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void shouldCommitDeletionOfExpiredJobWhenStatusRequested() throws Exception {
+        String jobId = "job1";
+        JobDto jobDto = new JobDto(singletonList(new FileDto("test.csv")), new Date(0L));
+        jobDto.setId(jobId);
+        when(mockJobRepository.findOne(jobId)).thenReturn(jobDto);
+
+        DeferredResult<ResponseEntity<JobDto>> result = jobController.getJobStatus(jobId);
+
+        assertThat(result.getResult()).isInstanceOf(NoSuchJobException.class);
+        verify(mockJobRepository).delete(jobId);
+        verify(mockTransactionManager).commit(any(TransactionStatus.class));
+        verify(mockTransactionManager, never()).rollback(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void shouldRollBackAndReturnErrorWhenJobCannotBeCreated() throws Exception {
+        CreateJobRequest request = request(UUID.randomUUID());
+        when(mockDataSetRepository.findS3urlForDataSet(request.getDataSetId()))
+                .thenThrow(new NoSuchDataSetException(request.getDataSetId()));
+
+        DeferredResult<ResponseEntity<JobDto>> result = jobController.submitJob(request);
+
+        assertThat(result.getResult()).isInstanceOf(NoSuchDataSetException.class);
+        verify(mockTransactionManager).rollback(any(TransactionStatus.class));
+    }
+
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void shouldFailFastWhenDatabaseBulkheadIsFull() throws Exception {
+        jobController = new JobController(mockDataSetRepository, mockHierarchyRepository, mockFilterServiceClient, mockJobRepository,
+                mockJobStatusChecker, mockPendingJobCounter, mockJobCostEstimator, mockPendingRowBudget, mockJobStatusNotifier, mockJobRequestCoalescer,
+                new FilterFingerprinter(), 10, true, mockTransactionManager, task -> {
+                    throw new ServiceUnavailableException("busy");
+                }, 30000);
+
+        jobController.getJobStatus("job1");
+    }
+
+    @Test
+    public void shouldChangeEntityTagWhenFileCompletes() throws Exception {
+        FileDto file = new FileDto("test.csv");
+        JobDto jobDto = new JobDto(asList(file, new FileDto("test.json")), new Date(Long.MAX_VALUE));
+        String pending = JobController.entityTag(jobDto);
+        assertThat(JobController.entityTag(jobDto)).isEqualTo(pending);
+
+        file.setStatus(COMPLETE);
+        file.setUrl("http://download/test.csv");
+
+        assertThat(JobController.entityTag(jobDto)).isNotEqualTo(pending).startsWith("\"").endsWith("\"");
+    }
+
+    @Test
+    public void shouldWaitForStatusChangeOfCheckedJob() throws Exception {
+        String jobId = "job1";
+        JobDto jobDto = new JobDto(singletonList(new FileDto("test.csv")), new Date(Long.MAX_VALUE));
+        DeferredResult<JobDto> deferred = new DeferredResult<>();
+        when(mockJobRepository.findOne(jobId)).thenReturn(jobDto);
+        when(mockJobStatusNotifier.awaitChange(jobDto, 30L)).thenReturn(deferred);
+
+        DeferredResult<DeferredResult<JobDto>> result = jobController.awaitJobStatus(jobId, 30L, mockRequest);
+
+        verify(mockJobStatusChecker).refreshStatus(jobDto);
+        assertThat(result.getResult()).isSameAs(deferred);
+        verify(mockRequest).setAttribute(RequestMetricsFilter.TIME_UNTIL_HANDLED_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    @Test
+    public void shouldNotStreamStatusOfUnknownJob() throws Exception {
+        DeferredResult<SseEmitter> result = jobController.streamJobStatus("no such job", mockRequest);
+
+        assertThat(result.getResult()).isInstanceOf(NoSuchJobException.class);
+        verifyZeroInteractions(mockJobStatusNotifier);
+    }
+
+    @Test
+    public void shouldRejectRequestWhenNoConnectionIsAvailable() throws Exception {
+        when(mockTransactionManager.getTransaction(any(TransactionDefinition.class)))
+                .thenThrow(new CannotCreateTransactionException("Connection checkout timed out"));
+
+        DeferredResult<ResponseEntity<JobDto>> result = jobController.getJobStatus("job1");
+
+        assertThat(result.getResult()).isInstanceOf(ServiceUnavailableException.class);
+        verifyZeroInteractions(mockJobRepository);
+    }
+
     @Test
     public void shouldStripInvalidDimensionValues() throws Exception {
         UUID dataSetId = UUID.randomUUID();
@@ -260,6 +530,59 @@ public class JobControllerTest {
         jobController.validateDimensionValues(request2);
     }
     
+    @Test
+    public void shouldFingerprintHierarchyFiltersAsTheOptionsTheySelect() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest listed = request(dataSetId);
+        CreateJobRequest hierarchical = request(dataSetId);
+        DimensionFilter filter = new DimensionFilter("first", singletonList("a"));
+        filter.setHierarchy("geography");
+        filter.setDescendantsOf(singletonList("region"));
+        filter.setLevel("LSOA");
+        hierarchical.getDimensions().set(0, filter);
+        when(mockHierarchyRepository.findDescendants("geography", singletonList("region"), "LSOA"))
+                .thenReturn(new TreeSet<>(singleton("b")));
+
+        // When
+        CreateJobRequest expanded = jobController.expandHierarchyFilters(hierarchical);
+
+        // Then
+        assertThat(expanded.getSortedDimensionFilters()).isEqualTo(listed.getSortedDimensionFilters());
+        assertThat(expanded.getDimensions()).extracting("hierarchical").containsOnly(false);
+        assertThat(jobController.generateBaseFileName(expanded)).isEqualTo(jobController.generateBaseFileName(listed));
+    }
+
+    @Test
+    public void shouldNotCopyRequestsWithoutHierarchyFilters() throws Exception {
+        CreateJobRequest request = request(UUID.randomUUID());
+
+        assertThat(jobController.expandHierarchyFilters(request)).isSameAs(request);
+        verifyZeroInteractions(mockHierarchyRepository);
+    }
+
+    @Test
+    public void shouldReturnPerItemErrorForUnknownHierarchyInBatch() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest valid = request(dataSetId);
+        CreateJobRequest unknownHierarchy = request(dataSetId);
+        DimensionFilter filter = new DimensionFilter("first", Collections.emptyList());
+        filter.setHierarchy("missing");
+        unknownHierarchy.getDimensions().set(0, filter);
+        when(mockHierarchyRepository.findDescendants(eq("missing"), any(List.class), any(String.class)))
+                .thenThrow(new InvalidDimensionException("Hierarchy not found: missing"));
+        when(mockDataSetRepository.findS3urlForDataSet(dataSetId)).thenReturn("s3_url");
+        when(mockPendingJobCounter.tryReserve(1)).thenReturn(1);
+
+        // When
+        List<CreateJobResult> results = jobController.createJobs(asList(valid, unknownHierarchy));
+
+        // Then
+        assertThat(results).extracting("status").containsExactly(201, 400);
+        assertThat(results.get(1).getError()).contains("missing");
+    }
+
     @Test
     public void shouldNotQueryEmptyFilters() {
         UUID dataSetId = UUID.randomUUID();
@@ -273,6 +596,125 @@ public class JobControllerTest {
         verify(mockDataSetRepository, times(0)).findMatchingDimensionValues(any(UUID.class), any(SortedMap.class));
     }
 
+    @Test
+    public void shouldValidateBatchWithOneQueryPerDataSet() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest request1 = request(dataSetId);
+        CreateJobRequest request2 = request(dataSetId);
+        request2.getDimensions().get(0).setOptions(new ArrayList<>(singletonList("x")));
+        when(mockDataSetRepository.findS3urlForDataSet(dataSetId)).thenReturn("s3_url");
+        when(mockPendingJobCounter.tryReserve(2)).thenReturn(2);
+        when(mockJobRepository.save(any(JobDto.class))).then(ctx -> ctx.getArguments()[0]);
+
+        // When
+        List<CreateJobResult> results = jobController.createJobs(asList(request1, request2));
+
+        // Then
+        assertThat(results).extracting("status").containsExactly(201, 201);
+        verify(mockDataSetRepository, times(1)).findS3urlForDataSet(dataSetId);
+        verify(mockDataSetRepository, times(1)).findMatchingDimensionValues(any(UUID.class), any(SortedMap.class));
+        verify(mockPendingJobCounter, times(1)).tryReserve(2);
+        verify(mockFilterServiceClient, times(2)).submitFilterRequest(any(UUID.class), eq("s3_url"), any(Map.class), any(Map.class));
+    }
+
+    @Test
+    public void shouldReturnPerItemErrorsForBatch() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        UUID missingDataSetId = UUID.randomUUID();
+        CreateJobRequest valid = request(dataSetId);
+        CreateJobRequest invalidDimension = request(dataSetId);
+        invalidDimension.getDimensions().add(new DimensionFilter("foo", singletonList("bar")));
+        CreateJobRequest missingDataSet = request(missingDataSetId);
+        when(mockDataSetRepository.findS3urlForDataSet(dataSetId)).thenReturn("s3_url");
+        when(mockDataSetRepository.findS3urlForDataSet(missingDataSetId)).thenThrow(new NoSuchDataSetException(missingDataSetId));
+        when(mockDataSetRepository.findMatchingDimensionValues(any(UUID.class), any(SortedMap.class)))
+                .thenAnswer(ctx -> valid.getSortedDimensionFilters());
+        when(mockPendingJobCounter.tryReserve(1)).thenReturn(1);
+        when(mockJobRepository.save(any(JobDto.class))).then(ctx -> ctx.getArguments()[0]);
+
+        // When
+        List<CreateJobResult> results = jobController.createJobs(asList(valid, invalidDimension, missingDataSet));
+
+        // Then
+        assertThat(results).extracting("status").containsExactly(201, 400, 400);
+        assertThat(results.get(0).getJob()).isNotNull();
+        assertThat(results.get(1).getError()).contains("foo");
+        assertThat(results.get(2).getError()).contains(missingDataSetId.toString());
+        verify(mockJobRepository, times(1)).save(any(JobDto.class));
+    }
+
+    @Test
+    public void shouldRejectBatchItemsBeyondPendingLimit() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest request1 = request(dataSetId);
+        CreateJobRequest request2 = request(dataSetId);
+        request2.getDimensions().remove(1);
+        when(mockDataSetRepository.findS3urlForDataSet(dataSetId)).thenReturn("s3_url");
+        when(mockPendingJobCounter.tryReserve(2)).thenReturn(1);
+
+        // When
+        List<CreateJobResult> results = jobController.createJobs(asList(request1, request2));
+
+        // Then
+        assertThat(results).extracting("status").containsExactly(201, 429);
+        verify(mockFilterServiceClient, times(1)).submitFilterRequest(any(UUID.class), anyString(), any(Map.class), any(Map.class));
+    }
+
+    @Test
+    public void shouldReleaseSlotWhenBatchItemCannotBeSubmitted() throws Exception {
+        // Given
+        CreateJobRequest request = request(UUID.randomUUID());
+        when(mockDataSetRepository.findS3urlForDataSet(request.getDataSetId())).thenReturn("s3_url");
+        when(mockPendingJobCounter.tryReserve(1)).thenReturn(1);
+        doThrow(new ServiceUnavailableException("test")).when(mockFilterServiceClient)
+                .submitFilterRequest(any(UUID.class), anyString(), any(Map.class), any(Map.class));
+
+        // When
+        List<CreateJobResult> results = jobController.createJobs(singletonList(request));
+
+        // Then
+        assertThat(results).extracting("status").containsExactly(503);
+        verify(mockPendingJobCounter).release();
+        verify(mockPendingRowBudget).release(anyString());
+        verify(mockJobRepository, never()).save(any(JobDto.class));
+    }
+
+    @Test
+    public void shouldRejectBatchItemsBeyondRowBudget() throws Exception {
+        // Given
+        UUID dataSetId = UUID.randomUUID();
+        CreateJobRequest request1 = request(dataSetId);
+        CreateJobRequest request2 = request(dataSetId);
+        request2.getDimensions().remove(1);
+        when(mockDataSetRepository.findS3urlForDataSet(dataSetId)).thenReturn("s3_url");
+        when(mockPendingJobCounter.tryReserve(2)).thenReturn(2);
+        when(mockJobCostEstimator.estimateRows(eq(dataSetId), any(SortedMap.class))).thenReturn(4L, 20L);
+        when(mockPendingRowBudget.tryReserve(anyString(), eq(20L))).thenReturn(false);
+        when(mockPendingRowBudget.getRemainingRows()).thenReturn(6L);
+
+        // When
+        List<CreateJobResult> results = jobController.createJobs(asList(request1, request2));
+
+        // Then
+        assertThat(results).extracting("status").containsExactly(201, 429);
+        assertThat(results.get(1).getError()).contains("20 rows").contains("only 6 rows");
+        verify(mockPendingJobCounter).release();
+        verify(mockFilterServiceClient, times(1)).submitFilterRequest(any(UUID.class), anyString(), any(Map.class), any(Map.class));
+    }
+
+    @Test(expectedExceptions = BatchTooLargeException.class)
+    public void shouldRejectBatchesOverMaximumSize() throws Exception {
+        List<CreateJobRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 11; ++i) {
+            requests.add(request(UUID.randomUUID()));
+        }
+
+        jobController.createJobs(requests);
+    }
+
     private static CreateJobRequest request(UUID dataSetId) {
         CreateJobRequest request = new CreateJobRequest();
         request.setDataSetId(dataSetId);
@@ -284,4 +726,19 @@ public class JobControllerTest {
         return request;
     }
 
-}
\ No newline at end of file
+    private static DimensionFilter hierarchyFilter(String descendantsOf) {
+        DimensionFilter filter = new DimensionFilter("third", Collections.emptyList());
+        filter.setHierarchy("geography");
+        filter.setDescendantsOf(singletonList(descendantsOf));
+        return filter;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <T> T resultOf(DeferredResult<T> result) throws Exception {
+        if (result.getResult() instanceof Exception) {
+            throw (Exception) result.getResult();
+        }
+        return (T) result.getResult();
+    }
+}
@@ -0,0 +1,73 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricsControllerTest {
+
+    private MetricRegistry metricRegistry;
+    private MetricsController metricsController;
+
+    @BeforeMethod
+    public void setup() {
+        metricRegistry = new MetricRegistry();
+        metricsController = new MetricsController(metricRegistry);
+    }
+
+    @Test
+    public void shouldReportGaugesAndCounters() {
+        // Given
+        metricRegistry.register("test.gauge", (Gauge<Long>) () -> 42L);
+        metricRegistry.counter("test.counter").inc(3);
+
+        // When
+        Map<String, Map<String, Object>> metrics = metricsController.getMetrics();
+
+        // Then
+        assertThat(metrics.get("gauges")).containsEntry("test.gauge", 42L);
+        assertThat(metrics.get("counters")).containsEntry("test.counter", 3L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReportTimerPercentilesInMilliseconds() {
+        // Given
+        for (int i = 1; i <= 1000; ++i) {
+            metricRegistry.timer("test.timer").update(i, TimeUnit.MILLISECONDS);
+        }
+
+        // When
+        Map<String, Object> timer = (Map<String, Object>) metricsController.getMetrics().get("timers").get("test.timer");
+
+        // Then
+        assertThat(timer).containsEntry("count", 1000L);
+        assertThat((Double) timer.get("p50")).isBetween(499.0, 501.0);
+        assertThat((Double) timer.get("p99")).isBetween(989.0, 991.0);
+        assertThat((Double) timer.get("p999")).isBetween(998.0, 1000.0);
+        assertThat(timer).containsEntry("max", 1000.0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReportHistogramPercentiles() {
+        // Given
+        for (int i = 1; i <= 1000; ++i) {
+            metricRegistry.histogram("test.histogram").update(i);
+        }
+
+        // When
+        Map<String, Object> histogram = (Map<String, Object>) metricsController.getMetrics().get("histograms").get("test.histogram");
+
+        // Then
+        assertThat(histogram).containsEntry("count", 1000L);
+        assertThat((Double) histogram.get("p50")).isBetween(499.0, 501.0);
+        assertThat(histogram).containsEntry("max", 1000L);
+    }
+}
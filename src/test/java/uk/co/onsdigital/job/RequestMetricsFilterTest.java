@@ -0,0 +1,138 @@
+package uk.co.onsdigital.job;
+
+import com.codahale.metrics.MetricRegistry;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.web.servlet.HandlerMapping;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RequestMetricsFilterTest {
+
+    @Mock
+    private HttpServletRequest mockRequest;
+
+    @Mock
+    private HttpServletResponse mockResponse;
+
+    @Mock
+    private FilterChain mockFilterChain;
+
+    @Mock
+    private AsyncContext mockAsyncContext;
+
+    @Captor
+    private ArgumentCaptor<AsyncListener> asyncListener;
+
+    private MetricRegistry metricRegistry;
+    private RequestMetricsFilter filter;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        metricRegistry = new MetricRegistry();
+        filter = new RequestMetricsFilter(metricRegistry);
+        when(mockRequest.getMethod()).thenReturn("GET");
+    }
+
+    @Test
+    public void shouldTimeRequestsByHandlerPattern() throws Exception {
+        // Given
+        when(mockRequest.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn("/job/{id}");
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+        assertThat(metricRegistry.timer("http.GET./job/{id}").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldTimeFailedAndUnmappedRequests() throws Exception {
+        // Given
+        doThrow(new ServletException("test")).when(mockFilterChain).doFilter(mockRequest, mockResponse);
+
+        // When
+        try {
+            filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+            fail("Expected ServletException");
+        } catch (ServletException e) {
+            // Expected
+        }
+
+        // Then
+        assertThat(metricRegistry.timer("http.GET." + RequestMetricsFilter.UNMAPPED).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldTimeAsyncRequestsUntilComplete() throws Exception {
+        // Given
+        when(mockRequest.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn("/job/{id}");
+        when(mockRequest.isAsyncStarted()).thenReturn(true);
+        when(mockRequest.getAsyncContext()).thenReturn(mockAsyncContext);
+
+        // When
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+
+        // Then
+        assertThat(metricRegistry.timer("http.GET./job/{id}").getCount()).isZero();
+        verify(mockAsyncContext).addListener(asyncListener.capture());
+        asyncListener.getValue().onComplete(null);
+        assertThat(metricRegistry.timer("http.GET./job/{id}").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepTimingAsyncRequestsThatRestart() throws Exception {
+        // Given
+        when(mockRequest.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn("/job/{id}");
+        when(mockRequest.isAsyncStarted()).thenReturn(true);
+        when(mockRequest.getAsyncContext()).thenReturn(mockAsyncContext);
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+        verify(mockAsyncContext).addListener(asyncListener.capture());
+
+        // When
+        asyncListener.getValue().onStartAsync(new AsyncEvent(mockAsyncContext));
+
+        // Then
+        assertThat(metricRegistry.timer("http.GET./job/{id}").getCount()).isZero();
+        verify(mockAsyncContext, times(2)).addListener(asyncListener.getValue());
+    }
+
+    @Test
+    public void shouldTimeWaitingRequestsUntilTheyStartWaiting() throws Exception {
+        // Given
+        when(mockRequest.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn("/job/{id}/events");
+        when(mockRequest.getAttribute(RequestMetricsFilter.TIME_UNTIL_HANDLED_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+        when(mockRequest.isAsyncStarted()).thenReturn(true);
+        when(mockRequest.getAsyncContext()).thenReturn(mockAsyncContext);
+        filter.doFilterInternal(mockRequest, mockResponse, mockFilterChain);
+        verify(mockAsyncContext).addListener(asyncListener.capture());
+        assertThat(metricRegistry.timer("http.GET./job/{id}/events").getCount()).isZero();
+
+        // When
+        asyncListener.getValue().onStartAsync(new AsyncEvent(mockAsyncContext));
+
+        // Then
+        assertThat(metricRegistry.timer("http.GET./job/{id}/events").getCount()).isEqualTo(1);
+        verify(mockAsyncContext).addListener(any(AsyncListener.class));
+    }
+}
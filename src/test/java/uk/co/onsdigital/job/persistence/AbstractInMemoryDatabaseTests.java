@@ -22,7 +22,7 @@ public abstract class AbstractInMemoryDatabaseTests {
 
     @BeforeClass
     public void setupPersistenceContext() {
-        this.emf = getInMemoryEntityManagerFactory();
+        this.emf = getInMemoryEntityManagerFactory("test");
     }
 
     @BeforeMethod
@@ -37,9 +37,15 @@ public abstract class AbstractInMemoryDatabaseTests {
         transaction.rollback();
     }
 
-    private static EntityManagerFactory getInMemoryEntityManagerFactory() {
+    /**
+     * Creates an entity manager factory backed by a named in-memory database with the schema created from the model.
+     *
+     * @param databaseName the name of the in-memory database.
+     * @return the entity manager factory.
+     */
+    public static EntityManagerFactory getInMemoryEntityManagerFactory(String databaseName) {
         Map<String, String> props = ImmutableMap.<String, String>builder()
-                .put(AvailableSettings.JPA_JDBC_URL, "jdbc:h2:mem:test")
+                .put(AvailableSettings.JPA_JDBC_URL, "jdbc:h2:mem:" + databaseName)
                 .put(AvailableSettings.JPA_JDBC_USER, "SA")
                 .put(AvailableSettings.JPA_JDBC_PASSWORD, "")
                 .put(AvailableSettings.JPA_JDBC_DRIVER, "org.h2.Driver")
@@ -0,0 +1,116 @@
+package uk.co.onsdigital.job.persistence;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class AdvisoryLockTest {
+    private static final long KEY = 42;
+
+    @Mock
+    private ConnectionProvider mockConnectionProvider;
+
+    @Mock
+    private Connection mockConnection;
+
+    @Mock
+    private PreparedStatement mockStatement;
+
+    @Mock
+    private ResultSet mockResultSet;
+
+    private AdvisoryLock advisoryLock;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mockConnectionProvider.getConnection()).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(true);
+        advisoryLock = new AdvisoryLock(mockConnectionProvider, KEY);
+    }
+
+    @Test
+    public void shouldHoldConnectionWhileLockIsHeld() throws Exception {
+        // Given
+        when(mockResultSet.getBoolean(1)).thenReturn(true);
+        when(mockConnection.isValid(anyInt())).thenReturn(true);
+
+        // When
+        assertThat(advisoryLock.tryAcquire()).isTrue();
+        assertThat(advisoryLock.tryAcquire()).isTrue();
+
+        // Then
+        assertThat(advisoryLock.isHeld()).isTrue();
+        verify(mockConnectionProvider, times(1)).getConnection();
+        verify(mockConnection).setAutoCommit(true);
+        verify(mockConnection).prepareStatement(AdvisoryLock.TRY_LOCK_QUERY);
+        verify(mockStatement).setLong(1, KEY);
+        verify(mockConnectionProvider, never()).closeConnection(mockConnection);
+    }
+
+    @Test
+    public void shouldReturnConnectionWhenLockIsHeldElsewhere() throws Exception {
+        // Given
+        when(mockResultSet.getBoolean(1)).thenReturn(false);
+
+        // When
+        boolean acquired = advisoryLock.tryAcquire();
+
+        // Then
+        assertThat(acquired).isFalse();
+        assertThat(advisoryLock.isHeld()).isFalse();
+        verify(mockConnectionProvider).closeConnection(mockConnection);
+    }
+
+    @Test
+    public void shouldReacquireWhenConnectionIsLost() throws Exception {
+        // Given
+        when(mockResultSet.getBoolean(1)).thenReturn(true, false);
+        when(mockConnection.isValid(anyInt())).thenReturn(false);
+        advisoryLock.tryAcquire();
+
+        // When
+        boolean acquired = advisoryLock.tryAcquire();
+
+        // Then
+        assertThat(acquired).isFalse();
+        assertThat(advisoryLock.isHeld()).isFalse();
+        verify(mockConnectionProvider, times(2)).getConnection();
+    }
+
+    @Test
+    public void shouldNotHoldLockWhenDatabaseIsUnavailable() throws Exception {
+        when(mockConnectionProvider.getConnection()).thenThrow(new SQLException("test"));
+
+        assertThat(advisoryLock.tryAcquire()).isFalse();
+        assertThat(advisoryLock.isHeld()).isFalse();
+    }
+
+    @Test
+    public void shouldUnlockAndReturnConnectionOnRelease() throws Exception {
+        // Given
+        when(mockResultSet.getBoolean(1)).thenReturn(true);
+        advisoryLock.tryAcquire();
+
+        // When
+        advisoryLock.release();
+
+        // Then
+        assertThat(advisoryLock.isHeld()).isFalse();
+        verify(mockConnection).prepareStatement(AdvisoryLock.UNLOCK_QUERY);
+        verify(mockConnectionProvider).closeConnection(mockConnection);
+    }
+}
@@ -1,5 +1,6 @@
 package uk.co.onsdigital.job.persistence;
 
+import com.codahale.metrics.MetricRegistry;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import uk.co.onsdigital.discovery.model.*;
@@ -10,6 +11,8 @@ import java.util.*;
 import static java.util.Collections.singleton;
 import static org.assertj.core.api.Assertions.anyOf;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
@@ -22,7 +25,7 @@ public class DataSetRepositoryTest extends AbstractInMemoryDatabaseTests {
 
     @BeforeMethod
     public void setupRepository() {
-        this.dataSetRepository = new DataSetRepository(entityManager);
+        this.dataSetRepository = new DataSetRepository(entityManager, new MetricRegistry(), 100, 60, 60, 1000, 100);
     }
 
     @Test
@@ -47,6 +50,74 @@ public class DataSetRepositoryTest extends AbstractInMemoryDatabaseTests {
         dataSetRepository.findS3urlForDataSet(UUID.randomUUID());
     }
 
+    @Test
+    public void shouldCacheS3UrlForExistingDatasets() {
+        // Given
+        UUID id = UUID.randomUUID();
+        DataSet dataSet = new DataSet();
+        dataSet.setId(id);
+        dataSet.setS3URL("original url");
+        entityManager.persist(dataSet);
+        dataSetRepository.findS3urlForDataSet(id);
+
+        // When
+        dataSet.setS3URL("updated url");
+        entityManager.flush();
+        String cached = dataSetRepository.findS3urlForDataSet(id);
+        dataSetRepository.evictDataSet(id);
+        String reloaded = dataSetRepository.findS3urlForDataSet(id);
+
+        // Then
+        assertThat(cached).isEqualTo("original url");
+        assertThat(reloaded).isEqualTo("updated url");
+        assertThat(dataSetRepository.getS3UrlCacheStats().hitCount()).isEqualTo(1);
+        assertThat(dataSetRepository.getS3UrlCacheStats().missCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldCacheUnknownDatasets() {
+        // Given
+        UUID id = UUID.randomUUID();
+        try {
+            dataSetRepository.findS3urlForDataSet(id);
+        } catch (NoSuchDataSetException e) {
+            // Expected
+        }
+        DataSet dataSet = new DataSet();
+        dataSet.setId(id);
+        dataSet.setS3URL("some s3 url");
+        entityManager.persist(dataSet);
+
+        // When
+        try {
+            dataSetRepository.findS3urlForDataSet(id);
+            fail("Expected unknown dataset to be cached");
+        } catch (NoSuchDataSetException e) {
+            // Expected
+        }
+        dataSetRepository.evictAllDataSets();
+        String result = dataSetRepository.findS3urlForDataSet(id);
+
+        // Then
+        assertThat(result).isEqualTo("some s3 url");
+        assertThat(dataSetRepository.getS3UrlCacheStats().hitCount()).isEqualTo(1);
+        assertThat(dataSetRepository.getS3UrlCacheStats().missCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldCountValuesOfEachDimension() {
+        DataSet dataset = new DataSet();
+        dataset.setId(UUID.randomUUID());
+        entityManager.persist(dataset);
+        persistDimensionWithValues(dataset, "d1", "valueA", "valueB", "valueC");
+        persistDimensionWithValues(dataset, "d2", "valueA");
+
+        Map<String, Long> sizes = dataSetRepository.findDimensionSizes(dataset.getId());
+
+        assertThat(sizes).containsOnly(entry("d1", 3L), entry("d2", 1L));
+        assertThat(dataSetRepository.findDimensionSizes(dataset.getId())).isSameAs(sizes);
+    }
+
     // findMatchingDimensionValues
 
     @Test
@@ -143,6 +214,48 @@ public class DataSetRepositoryTest extends AbstractInMemoryDatabaseTests {
         assertThat(result).isEmpty();
     }
 
+    @Test
+    public void shouldIndexDimensionValuesUntilEvicted() {
+        DataSet dataset = new DataSet();
+        dataset.setId(UUID.randomUUID());
+        entityManager.persist(dataset);
+        persistDimensionWithValues(dataset, "d1", "valueA", "valueB");
+
+        SortedMap<String, SortedSet<String>> requestedValues = new TreeMap<>();
+        requestedValues.put("d1", new TreeSet<>(Arrays.asList("valueA", "valueC")));
+        SortedMap<String, SortedSet<String>> first = dataSetRepository.findMatchingDimensionValues(dataset.getId(), requestedValues);
+        persistDimensionWithValues(dataset, "d1", "valueC");
+        SortedMap<String, SortedSet<String>> cached = dataSetRepository.findMatchingDimensionValues(dataset.getId(), requestedValues);
+        dataSetRepository.evictDataSet(dataset.getId());
+        SortedMap<String, SortedSet<String>> refreshed = dataSetRepository.findMatchingDimensionValues(dataset.getId(), requestedValues);
+
+        assertThat(first.get("d1")).containsExactly("valueA");
+        assertThat(cached.get("d1")).containsExactly("valueA");
+        assertThat(refreshed.get("d1")).containsExactly("valueA", "valueC");
+        assertThat(dataSetRepository.getDimensionIndexStats().hitCount()).isEqualTo(1);
+        assertThat(dataSetRepository.getDimensionIndexStats().missCount()).isEqualTo(2);
+        assertThat(dataSetRepository.getIndexedDimensionValueCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldQueryDataSetsThatAreTooLargeToIndex() {
+        DataSetRepository smallIndexRepository = new DataSetRepository(entityManager, new MetricRegistry(), 100, 60, 60, 1000, 2);
+        DataSet dataset = new DataSet();
+        dataset.setId(UUID.randomUUID());
+        entityManager.persist(dataset);
+        persistDimensionWithValues(dataset, "d1", "valueA", "valueB");
+        persistDimensionWithValues(dataset, "d2", "valueA", "valueB");
+
+        SortedMap<String, SortedSet<String>> requestedValues = new TreeMap<>();
+        requestedValues.put("d1", new TreeSet<>(Arrays.asList("valueA", "foo")));
+        requestedValues.put("d2", new TreeSet<>(Arrays.asList("valueB")));
+        SortedMap<String, SortedSet<String>> result = smallIndexRepository.findMatchingDimensionValues(dataset.getId(), requestedValues);
+
+        assertThat(result.get("d1")).containsExactly("valueA");
+        assertThat(result.get("d2")).containsExactly("valueB");
+        assertThat(smallIndexRepository.getIndexedDimensionValueCount()).isZero();
+    }
+
     private void persistDimensionWithValues(DataSet dataset, String dimension1, String... values) {
         Dimension d1 = new Dimension();
         d1.setId(UUID.randomUUID());
@@ -0,0 +1,106 @@
+package uk.co.onsdigital.job.persistence;
+
+import com.codahale.metrics.MetricRegistry;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.discovery.model.Hierarchy;
+import uk.co.onsdigital.discovery.model.HierarchyEntry;
+import uk.co.onsdigital.discovery.model.HierarchyLevelType;
+import uk.co.onsdigital.job.exception.InvalidDimensionException;
+
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HierarchyRepositoryTest extends AbstractInMemoryDatabaseTests {
+
+    private MetricRegistry metricRegistry;
+    private HierarchyRepository hierarchyRepository;
+
+    @BeforeMethod
+    public void setupRepository() {
+        metricRegistry = new MetricRegistry();
+        hierarchyRepository = new HierarchyRepository(entityManager, metricRegistry, 1000, 60);
+
+        // country -> 2 regions -> LSOAs, with one LSOA directly beneath the country
+        Hierarchy hierarchy = new Hierarchy();
+        hierarchy.setId("geography");
+        hierarchy.setName("Geography");
+        entityManager.persist(hierarchy);
+        HierarchyLevelType country = level("CTRY", 0);
+        HierarchyLevelType region = level("RGN", 1);
+        HierarchyLevelType lsoa = level("LSOA", 2);
+
+        HierarchyEntry england = entry(hierarchy, null, "E92000001", country);
+        HierarchyEntry northEast = entry(hierarchy, england, "E12000001", region);
+        HierarchyEntry london = entry(hierarchy, england, "E12000007", region);
+        entry(hierarchy, northEast, "E01000001", lsoa);
+        entry(hierarchy, northEast, "E01000002", lsoa);
+        entry(hierarchy, london, "E01000003", lsoa);
+        entry(hierarchy, england, "E01000004", lsoa);
+    }
+
+    @Test
+    public void shouldFindDescendantsAtLevel() {
+        assertThat(hierarchyRepository.findDescendants("geography", singletonList("E12000001"), "LSOA"))
+                .containsExactly("E01000001", "E01000002");
+        assertThat(hierarchyRepository.findDescendants("geography", singletonList("E92000001"), "LSOA"))
+                .containsExactly("E01000001", "E01000002", "E01000003", "E01000004");
+    }
+
+    @Test
+    public void shouldFindEntryAndAllDescendantsWithoutLevel() {
+        assertThat(hierarchyRepository.findDescendants("geography", asList("E12000007", "E01000001"), null))
+                .containsExactly("E01000001", "E01000003", "E12000007");
+    }
+
+    @Test
+    public void shouldFindNothingAtLevelAboveEntry() {
+        assertThat(hierarchyRepository.findDescendants("geography", singletonList("E12000001"), "CTRY")).isEmpty();
+    }
+
+    @Test
+    public void shouldLoadEachHierarchyOnce() {
+        hierarchyRepository.findDescendants("geography", singletonList("E12000001"), "LSOA");
+        hierarchyRepository.findDescendants("geography", singletonList("E12000007"), "LSOA");
+
+        assertThat(metricRegistry.timer("db.hierarchy.load").getCount()).isEqualTo(1);
+        assertThat(hierarchyRepository.getCachedEntryCount()).isEqualTo(7);
+
+        hierarchyRepository.evictHierarchy("geography");
+        assertThat(hierarchyRepository.getCachedEntryCount()).isZero();
+    }
+
+    @Test(expectedExceptions = InvalidDimensionException.class)
+    public void shouldRejectUnknownEntries() {
+        hierarchyRepository.findDescendants("geography", singletonList("W92000004"), null);
+    }
+
+    @Test(expectedExceptions = InvalidDimensionException.class)
+    public void shouldRejectUnknownHierarchies() {
+        hierarchyRepository.findDescendants("unknown", singletonList("E92000001"), null);
+    }
+
+    private HierarchyLevelType level(String id, int level) {
+        HierarchyLevelType levelType = new HierarchyLevelType();
+        levelType.setId(id);
+        levelType.setName(id);
+        levelType.setLevel(level);
+        entityManager.persist(levelType);
+        return levelType;
+    }
+
+    private HierarchyEntry entry(Hierarchy hierarchy, HierarchyEntry parent, String code, HierarchyLevelType level) {
+        HierarchyEntry entry = new HierarchyEntry();
+        entry.setId(UUID.randomUUID());
+        entry.setHierarchy(hierarchy);
+        entry.setParent(parent);
+        entry.setCode(code);
+        entry.setName(code);
+        entry.setLevelType(level);
+        entityManager.persist(entry);
+        return entry;
+    }
+}
@@ -1,5 +1,7 @@
 package uk.co.onsdigital.job.persistence;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import uk.co.onsdigital.discovery.model.*;
@@ -9,9 +11,12 @@ import uk.co.onsdigital.job.model.StatusDto;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -24,7 +29,7 @@ public class JobRepositoryTest extends AbstractInMemoryDatabaseTests {
 
     @BeforeMethod
     public void setupJobRepository() {
-        this.jobRepository = new JobRepository(entityManager);
+        this.jobRepository = new JobRepository(entityManager, new MetricRegistry());
     }
 
     @Test
@@ -50,7 +55,7 @@ public class JobRepositoryTest extends AbstractInMemoryDatabaseTests {
         assertThat(jobRepository.findOne(expiredJob.getId())).isNotNull();
 
         // When
-        jobRepository.deleteJobsExpiringBefore(new Date());
+        jobRepository.deleteExpiredJobs(new Date(), 100);
         entityManager.clear(); // Clear JPA cache to force load from database
 
         // Then
@@ -69,7 +74,7 @@ public class JobRepositoryTest extends AbstractInMemoryDatabaseTests {
         entityManager.merge(job2);
 
         // When
-        jobRepository.deleteJobsExpiringBefore(new Date());
+        jobRepository.deleteExpiredJobs(new Date(), 100);
         entityManager.clear(); // Clear JPA cache to force load from database
 
         // Then
@@ -82,6 +87,83 @@ public class JobRepositoryTest extends AbstractInMemoryDatabaseTests {
         assertThat(validJob.getFiles()).extracting("name").containsAll(fileNames);
     }
 
+    @Test
+    public void shouldDeleteOldestExpiredJobsInBatches() {
+        // Given
+        Job oldest = createJob(now().minus(3, ChronoUnit.DAYS));
+        Job older = createJob(now().minus(2, ChronoUnit.DAYS));
+        Job old = createJob(now().minus(1, ChronoUnit.DAYS));
+        for (Job job : Arrays.asList(old, oldest, older)) {
+            job.setFiles(Collections.singletonList(new File(job.getId() + ".csv")));
+            entityManager.persist(job);
+        }
+
+        // When
+        int deleted = jobRepository.deleteExpiredJobs(new Date(), 2);
+        entityManager.clear();
+
+        // Then
+        assertThat(deleted).isEqualTo(2);
+        assertThat(entityManager.find(Job.class, oldest.getId())).isNull();
+        assertThat(entityManager.find(Job.class, older.getId())).isNull();
+        assertThat(entityManager.find(Job.class, old.getId())).isNotNull();
+        assertThat(jobRepository.findOldestExpiryBefore(new Date())).hasSameTimeAs(old.getExpiryTime());
+    }
+
+    @Test
+    public void shouldFindNoExpiredJobsWhenNoneHaveExpired() {
+        entityManager.persist(createJob(now().plus(1, ChronoUnit.HOURS)));
+
+        assertThat(jobRepository.findOldestExpiryBefore(new Date())).isNull();
+        assertThat(jobRepository.deleteExpiredJobs(new Date(), 100)).isZero();
+    }
+
+    @Test
+    public void shouldDeleteJob() {
+        // Given
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        entityManager.persist(job);
+        entityManager.flush();
+
+        // When
+        jobRepository.delete(job.getId());
+        entityManager.clear();
+
+        // Then
+        assertThat(entityManager.find(Job.class, job.getId())).isNull();
+        assertThat(jobRepository.findFileStatus("test.csv")).isNotNull();
+    }
+
+    @Test
+    public void shouldDeleteStaleFilesThatNoJobRefersTo() {
+        // Given
+        Date staleBefore = Date.from(now().minus(1, ChronoUnit.HOURS));
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        job.getFiles().get(0).setSubmittedAt(Date.from(now().minus(2, ChronoUnit.HOURS)));
+        entityManager.persist(job);
+        File stale = new File("stale.csv");
+        stale.setSubmittedAt(Date.from(now().minus(2, ChronoUnit.HOURS)));
+        File recent = new File("recent.csv");
+        recent.setSubmittedAt(new Date());
+        File unsubmitted = new File("unsubmitted.csv");
+        unsubmitted.setStatus(Status.COMPLETE);
+        for (File file : Arrays.asList(stale, recent, unsubmitted)) {
+            entityManager.persist(file);
+        }
+        entityManager.flush();
+
+        // When
+        int deleted = jobRepository.deleteOrphanedFiles(staleBefore, 100);
+        entityManager.clear();
+
+        // Then
+        assertThat(deleted).isEqualTo(2);
+        assertThat(jobRepository.findFileStatus("stale.csv")).isNull();
+        assertThat(jobRepository.findFileStatus("unsubmitted.csv")).isNull();
+        assertThat(jobRepository.findFileStatus("recent.csv")).isNotNull();
+        assertThat(jobRepository.findFileStatus("test.csv")).isNotNull();
+    }
+
     @Test
     public void shouldSaveJobsCorrectly() {
         // Given
@@ -103,6 +185,205 @@ public class JobRepositoryTest extends AbstractInMemoryDatabaseTests {
         assertThat(job.getFiles()).hasSize(1).extracting("name").containsExactly("test.csv");
     }
 
+    @Test
+    public void shouldSaveCompletedFileStatus() {
+        // Given
+        FileDto fileDto = new FileDto("test.csv");
+        JobDto jobDto = new JobDto(Collections.singletonList(fileDto), new Date(System.currentTimeMillis() + 60000L));
+        jobRepository.save(jobDto);
+
+        // When
+        fileDto.setStatus(StatusDto.COMPLETE);
+        fileDto.setUrl("http://example.com/test.csv");
+        jobDto.setStatus(StatusDto.COMPLETE);
+        jobRepository.save(jobDto);
+        entityManager.flush();
+        entityManager.clear(); // Clear JPA cache to force load from database
+
+        // Then
+        FileDto saved = jobRepository.findFileStatus("test.csv");
+        assertThat(saved.isComplete()).isTrue();
+        assertThat(saved.getUrl()).isEqualTo("http://example.com/test.csv");
+        assertThat(jobRepository.findOne(jobDto.getId()).isComplete()).isTrue();
+    }
+
+    @Test
+    public void shouldMarkFilesAsSubmitted() {
+        // Given
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        entityManager.persist(job);
+        Date submittedAt = new Date();
+
+        // When
+        int updated = jobRepository.markFilesSubmitted(Collections.singleton("test.csv"), submittedAt);
+        entityManager.clear(); // Clear JPA cache to force load from database
+
+        // Then
+        assertThat(updated).isEqualTo(1);
+        assertThat(jobRepository.findFileStatus("test.csv").getSubmittedAt()).isEqualToIgnoringMillis(submittedAt);
+    }
+
+    @Test
+    public void shouldMarkFilesAndFinishedJobsAsComplete() {
+        // Given
+        Job finishedJob = createJob(now().plus(1, ChronoUnit.HOURS));
+        Job unfinishedJob = createJob(now().plus(1, ChronoUnit.HOURS));
+        unfinishedJob.setFiles(Arrays.asList(new File("test.csv"), new File("other.csv")));
+        entityManager.merge(finishedJob);
+        entityManager.merge(unfinishedJob);
+
+        // When
+        int updated = jobRepository.markFilesComplete(
+                ImmutableMap.of("test.csv", "http://example.com/test.csv", "unknown.csv", "http://example.com/unknown.csv"));
+        entityManager.flush();
+        entityManager.clear(); // Clear JPA cache to force load from database
+
+        // Then
+        assertThat(updated).isEqualTo(1);
+        FileDto file = jobRepository.findFileStatus("test.csv");
+        assertThat(file.isComplete()).isTrue();
+        assertThat(file.getUrl()).isEqualTo("http://example.com/test.csv");
+        assertThat(jobRepository.findOne(finishedJob.getId()).isComplete()).isTrue();
+        assertThat(jobRepository.findOne(unfinishedJob.getId()).isComplete()).isFalse();
+    }
+
+    @Test
+    public void shouldOnlyClaimFilesThatHaveNotBeenSubmittedRecently() {
+        // Given
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        job.setFiles(Arrays.asList(new File("recent.csv"), new File("stale.csv"), new File("unsubmitted.csv")));
+        job.getFiles().get(0).setSubmittedAt(new Date());
+        job.getFiles().get(1).setSubmittedAt(Date.from(now().minus(2, ChronoUnit.HOURS)));
+        entityManager.persist(job);
+        entityManager.flush();
+
+        // When
+        Set<String> claimed = jobRepository.claimFilesForSubmission(
+                Arrays.asList("recent.csv", "stale.csv", "unsubmitted.csv", "new.csv"),
+                new Date(), Date.from(now().minus(1, ChronoUnit.HOURS)));
+
+        // Then
+        assertThat(claimed).containsOnly("stale.csv", "unsubmitted.csv", "new.csv");
+        assertThat(jobRepository.claimFilesForSubmission(Collections.singleton("stale.csv"), new Date(),
+                Date.from(now().minus(1, ChronoUnit.HOURS)))).isEmpty();
+    }
+
+    @Test
+    public void shouldFindCurrentSubmissionTimesRatherThanCachedOnes() {
+        // Given
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        job.setFiles(Arrays.asList(new File("claimed.csv"), new File("unsubmitted.csv")));
+        entityManager.persist(job);
+        entityManager.flush();
+        Date claimedAt = new Date();
+        jobRepository.claimFilesForSubmission(Collections.singleton("claimed.csv"), claimedAt,
+                Date.from(now().minus(1, ChronoUnit.HOURS)));
+
+        // When
+        Map<String, Date> submissionTimes = jobRepository.findSubmissionTimes(
+                Arrays.asList("claimed.csv", "unsubmitted.csv", "missing.csv"));
+
+        // Then
+        assertThat(submissionTimes).containsOnlyKeys("claimed.csv", "unsubmitted.csv");
+        assertThat(submissionTimes.get("claimed.csv")).isEqualToIgnoringMillis(claimedAt);
+        assertThat(submissionTimes.get("unsubmitted.csv")).isNull();
+    }
+
+    @Test
+    public void shouldReleaseOnlyFilesThatAreStillClaimedAtTheGivenTime() {
+        // Given
+        Date claimedAt = Date.from(now().minus(59, ChronoUnit.MINUTES));
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        job.setFiles(Arrays.asList(new File("claimed.csv"), new File("reclaimed.csv")));
+        job.getFiles().get(0).setSubmittedAt(claimedAt);
+        job.getFiles().get(1).setSubmittedAt(new Date());
+        entityManager.persist(job);
+        entityManager.flush();
+
+        // When
+        int released = jobRepository.releaseFileClaims(Arrays.asList("claimed.csv", "reclaimed.csv"), claimedAt);
+        entityManager.clear(); // Clear JPA cache to force load from database
+
+        // Then
+        assertThat(released).isEqualTo(1);
+        assertThat(jobRepository.findFileStatus("claimed.csv").isSubmitted()).isFalse();
+        assertThat(jobRepository.findFileStatus("reclaimed.csv").isSubmitted()).isTrue();
+    }
+
+    @Test
+    public void shouldFindOldestPendingSubmissionIgnoringUnacknowledgedClaims() {
+        // Given
+        Date oldest = Date.from(now().minus(30, ChronoUnit.MINUTES));
+        Date oneHourAgo = Date.from(now().minus(1, ChronoUnit.HOURS));
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        job.setFiles(Arrays.asList(new File("old.csv"), new File("recent.csv"), new File("complete.csv"),
+                new File("unsubmitted.csv"), new File("claimed.csv")));
+        job.getFiles().get(0).setSubmittedAt(oldest);
+        job.getFiles().get(1).setSubmittedAt(new Date());
+        job.getFiles().get(2).setSubmittedAt(Date.from(now().minus(3, ChronoUnit.HOURS)));
+        job.getFiles().get(2).setStatus(Status.COMPLETE);
+        job.getFiles().get(4).setSubmittedAt(Date.from(now().minus(59, ChronoUnit.MINUTES)));
+        entityManager.persist(job);
+        entityManager.flush();
+
+        // When
+        Date result = jobRepository.findOldestPendingSubmission(oneHourAgo,
+                Date.from(oneHourAgo.toInstant().plus(2, ChronoUnit.MINUTES)));
+
+        // Then
+        assertThat(result).hasSameTimeAs(oldest);
+    }
+
+    @Test
+    public void shouldFindPendingFilesInPagesOrderedBySubmission() {
+        // Given
+        Date earlier = Date.from(now().minus(2, ChronoUnit.HOURS));
+        Date later = Date.from(now().minus(1, ChronoUnit.HOURS));
+        Job job = createJob(now().plus(1, ChronoUnit.HOURS));
+        job.setFiles(Arrays.asList(new File("c.csv"), new File("b.csv"), new File("a.csv"), new File("complete.csv"),
+                new File("unsubmitted.csv")));
+        job.getFiles().get(0).setSubmittedAt(earlier);
+        job.getFiles().get(1).setSubmittedAt(later);
+        job.getFiles().get(2).setSubmittedAt(later);
+        job.getFiles().get(3).setSubmittedAt(earlier);
+        job.getFiles().get(3).setStatus(Status.COMPLETE);
+        entityManager.persist(job);
+        entityManager.flush();
+
+        // When
+        List<FileDto> first = jobRepository.findPendingFiles(new Date(0), "", 2);
+        FileDto last = first.get(first.size() - 1);
+        List<FileDto> second = jobRepository.findPendingFiles(last.getSubmittedAt(), last.getName(), 2);
+
+        // Then
+        assertThat(first).extracting(FileDto::getName).containsExactly("c.csv", "a.csv");
+        assertThat(second).extracting(FileDto::getName).containsExactly("b.csv");
+    }
+
+    @Test
+    public void shouldFindNoPendingSubmissionWhenNoneSubmitted() {
+        entityManager.persist(createJob(now().plus(1, ChronoUnit.HOURS)));
+
+        assertThat(jobRepository.findOldestPendingSubmission(new Date(), new Date())).isNull();
+    }
+
+    @Test
+    public void shouldFindSeveralJobsWithTheirFiles() {
+        // Given
+        Job job1 = entityManager.merge(createJob(Status.PENDING));
+        Job job2 = entityManager.merge(createJob(Status.COMPLETE));
+        entityManager.flush();
+        entityManager.clear();
+
+        // When
+        Map<String, JobDto> jobs = jobRepository.findAll(Arrays.asList(job1.getId(), job2.getId(), "missing"));
+
+        // Then
+        assertThat(jobs).containsOnlyKeys(job1.getId(), job2.getId());
+        assertThat(jobs.get(job1.getId()).getStatus()).isEqualTo(StatusDto.PENDING);
+        assertThat(jobs.get(job2.getId()).getFiles()).extracting("name").containsExactly("test.csv");
+    }
+
     private Job createJob(Status status) {
         Job job = createJob(now().plus(1, ChronoUnit.HOURS));
         job.setStatus(status);
@@ -0,0 +1,73 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class BulkheadTest {
+    private MetricRegistry metricRegistry;
+    private Bulkhead bulkhead;
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setup() {
+        metricRegistry = new MetricRegistry();
+        bulkhead = new Bulkhead("test", 1, 1, metricRegistry);
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        release.countDown();
+        bulkhead.shutdown();
+    }
+
+    @Test
+    public void shouldRejectWorkOnceThreadsAndQueueAreFull() throws Exception {
+        // Given
+        CountDownLatch started = new CountDownLatch(1);
+        bulkhead.execute(() -> {
+            started.countDown();
+            awaitRelease();
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        bulkhead.execute(this::awaitRelease);
+
+        // When
+        try {
+            bulkhead.execute(this::awaitRelease);
+            fail("Expected ServiceUnavailableException");
+        } catch (ServiceUnavailableException e) {
+            // Then
+            assertThat(e.getMessage()).contains("test");
+        }
+        assertThat(metricRegistry.counter("bulkhead.test.rejected").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges().get("bulkhead.test.active").getValue()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges().get("bulkhead.test.queued").getValue()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRunQueuedWorkOnceThreadIsFree() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        bulkhead.execute(done::countDown);
+        bulkhead.execute(done::countDown);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClientRateLimiterTest {
+    private MetricRegistry metricRegistry;
+    private FakeTicker ticker;
+    private ClientRateLimiter limiter;
+
+    @BeforeMethod
+    public void setup() {
+        metricRegistry = new MetricRegistry();
+        ticker = new FakeTicker();
+        limiter = new ClientRateLimiter("create", 2, 3, 100, 60, metricRegistry, ticker);
+    }
+
+    @Test
+    public void shouldAllowBurstThenRejectUntilRefilled() {
+        // When
+        for (int i = 0; i < 3; ++i) {
+            assertThat(limiter.tryAcquire("client")).isZero();
+        }
+        long wait = limiter.tryAcquire("client");
+
+        // Then
+        assertThat(wait).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(metricRegistry.counter("ratelimit.create.rejected").getCount()).isEqualTo(1);
+
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        assertThat(limiter.tryAcquire("client")).isZero();
+        assertThat(limiter.tryAcquire("client")).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldChargeBatchLargerThanBurstOnlyWhenBucketIsFull() {
+        // Given
+        limiter.tryAcquire("client");
+        assertThat(limiter.tryAcquire("client", 10)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+
+        // When
+        long wait = limiter.tryAcquire("client", 10);
+
+        // Then
+        assertThat(wait).isZero();
+        assertThat(limiter.tryAcquire("client")).isEqualTo(TimeUnit.MILLISECONDS.toNanos(4000));
+        ticker.advance(4, TimeUnit.SECONDS);
+        assertThat(limiter.tryAcquire("client")).isZero();
+    }
+
+    @Test
+    public void shouldLimitEachClientSeparately() {
+        for (int i = 0; i < 3; ++i) {
+            limiter.tryAcquire("busy");
+        }
+
+        assertThat(limiter.tryAcquire("busy")).isGreaterThan(0);
+        assertThat(limiter.tryAcquire("quiet")).isZero();
+        assertThat(metricRegistry.getGauges().get("ratelimit.create.clients").getValue()).isEqualTo(2L);
+    }
+
+    @Test
+    public void shouldNotRefillBeyondBurst() {
+        limiter.tryAcquire("client");
+        ticker.advance(1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 3; ++i) {
+            assertThat(limiter.tryAcquire("client")).isZero();
+        }
+        assertThat(limiter.tryAcquire("client")).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldEvictIdleClients() {
+        limiter.tryAcquire("client");
+
+        ticker.advance(61, TimeUnit.SECONDS);
+        limiter.tryAcquire("other");
+
+        assertThat(limiter.getClientCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldAllowEverythingWhenDisabled() {
+        limiter = new ClientRateLimiter("poll", 0, 1, 100, 60, metricRegistry, ticker);
+
+        for (int i = 0; i < 100; ++i) {
+            assertThat(limiter.tryAcquire("client")).isZero();
+        }
+        assertThat(limiter.isEnabled()).isFalse();
+        assertThat(limiter.getClientCount()).isZero();
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 1000;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long amount, TimeUnit unit) {
+            nanos += unit.toNanos(amount);
+        }
+    }
+}
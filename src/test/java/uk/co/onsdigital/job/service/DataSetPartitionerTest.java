@@ -0,0 +1,85 @@
+package uk.co.onsdigital.job.service;
+
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DataSetPartitionerTest {
+    private static final String TOPIC = "filter-request";
+    private static final int PARTITIONS = 8;
+
+    private Cluster cluster;
+    private DataSetPartitioner partitioner;
+
+    @BeforeMethod
+    public void setup() {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitions = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; ++i) {
+            partitions.add(new PartitionInfo(TOPIC, i, node, new Node[]{node}, new Node[]{node}));
+        }
+        cluster = new Cluster("cluster", Collections.singletonList(node), partitions, Collections.emptySet(),
+                Collections.emptySet());
+        partitioner = new DataSetPartitioner();
+        partitioner.configure(Collections.emptyMap());
+    }
+
+    @AfterMethod
+    public void close() {
+        partitioner.close();
+    }
+
+    @Test
+    public void shouldSendAllFilesForDataSetToSamePartition() {
+        UUID dataSetId = UUID.randomUUID();
+        int expected = partition(DataSetPartitioner.recordKey(dataSetId, "a.csv"));
+
+        for (int i = 0; i < 100; ++i) {
+            assertThat(partition(DataSetPartitioner.recordKey(dataSetId, "file" + i + ".csv"))).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void shouldSpreadDataSetsAcrossPartitions() {
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 100; ++i) {
+            int partition = partition(DataSetPartitioner.recordKey(UUID.randomUUID(), "a.csv"));
+            assertThat(partition).isBetween(0, PARTITIONS - 1);
+            used.add(partition);
+        }
+        assertThat(used).hasSize(PARTITIONS);
+    }
+
+    @Test
+    public void shouldIncludeOutputFileInKey() {
+        UUID dataSetId = UUID.randomUUID();
+
+        assertThat(DataSetPartitioner.recordKey(dataSetId, "a.csv")).isEqualTo(dataSetId + "/a.csv")
+                .isNotEqualTo(DataSetPartitioner.recordKey(dataSetId, "b.csv"));
+    }
+
+    @Test
+    public void shouldPartitionUnkeyedRecords() {
+        int partition = partitioner.partition(TOPIC, null, null, "value", "value".getBytes(StandardCharsets.UTF_8), cluster);
+
+        assertThat(partition).isBetween(0, PARTITIONS - 1);
+    }
+
+    private int partition(String key) {
+        return partitioner.partition(TOPIC, key, key.getBytes(StandardCharsets.UTF_8), "value",
+                "value".getBytes(StandardCharsets.UTF_8), cluster);
+    }
+}
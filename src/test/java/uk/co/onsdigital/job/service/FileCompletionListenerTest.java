@@ -0,0 +1,142 @@
+package uk.co.onsdigital.job.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.web.util.UriTemplate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.*;
+
+public class FileCompletionListenerTest {
+    private static final String TOPIC = "test-topic";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+    private static final UriTemplate DOWNLOAD_URI = new UriTemplate("http://download/{file}");
+
+    @Mock
+    private JobRepository mockJobRepository;
+
+    private MockConsumer<String, String> consumer;
+    private FileCompletionListener listener;
+    private long offset;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.assign(Collections.singletonList(PARTITION));
+        consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        offset = 0;
+        listener = new FileCompletionListener(consumer, new ObjectMapper(), mockJobRepository, DOWNLOAD_URI, TOPIC, 0);
+    }
+
+    @Test
+    public void shouldMarkGeneratedFilesAsComplete() {
+        // Given
+        addEvent("{\"requestId\":\"1\",\"outputUrl\":\"s3://bucket/path/a.csv\"}");
+        addEvent("{\"requestId\":\"2\",\"outputUrl\":\"s3://bucket/path/b.csv\"}");
+        when(mockJobRepository.markFilesComplete(anyMap())).thenReturn(2);
+
+        // When
+        int updated = listener.processEvents();
+
+        // Then
+        assertThat(updated).isEqualTo(2);
+        verify(mockJobRepository).markFilesComplete(ImmutableMap.of("a.csv", "http://download/a.csv", "b.csv", "http://download/b.csv"));
+        assertThat(committedOffset()).isEqualTo(2L);
+    }
+
+    @Test
+    public void shouldSkipMalformedEvents() {
+        // Given
+        addEvent("not json");
+        addEvent("{\"requestId\":\"1\"}");
+        addEvent("{\"outputUrl\":\"s3://bucket/a.csv\",\"extra\":true}");
+
+        // When
+        listener.processEvents();
+
+        // Then
+        verify(mockJobRepository).markFilesComplete(Collections.singletonMap("a.csv", "http://download/a.csv"));
+        assertThat(committedOffset()).isEqualTo(3L);
+    }
+
+    @Test
+    public void shouldNotUpdateDatabaseWhenNoEvents() {
+        assertThat(listener.processEvents()).isZero();
+
+        verifyZeroInteractions(mockJobRepository);
+    }
+
+    @Test
+    public void shouldNotCommitOffsetsIfDatabaseUpdateFails() {
+        // Given
+        addEvent("{\"outputUrl\":\"s3://bucket/a.csv\"}");
+        when(mockJobRepository.markFilesComplete(anyMap())).thenThrow(new IllegalStateException("test"));
+
+        // When
+        try {
+            listener.processEvents();
+            fail("Expected database failure to be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Then
+        assertThat(consumer.committed(PARTITION)).isNull();
+    }
+
+    @Test
+    public void shouldApplyEventsOnRetryAfterDatabaseUpdateFails() {
+        // Given
+        addEvent("{\"outputUrl\":\"s3://bucket/a.csv\"}");
+        when(mockJobRepository.markFilesComplete(anyMap()))
+                .thenThrow(new IllegalStateException("test"))
+                .thenReturn(1);
+        try {
+            listener.processEvents();
+            fail("Expected database failure to be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // When
+        assertThat(consumer.position(PARTITION)).isEqualTo(0L);
+        redeliverEvent(0, "{\"outputUrl\":\"s3://bucket/a.csv\"}");
+        addEvent("{\"outputUrl\":\"s3://bucket/b.csv\"}");
+        int updated = listener.processEvents();
+
+        // Then
+        assertThat(updated).isEqualTo(1);
+        verify(mockJobRepository).markFilesComplete(ImmutableMap.of("a.csv", "http://download/a.csv", "b.csv", "http://download/b.csv"));
+        assertThat(committedOffset()).isEqualTo(2L);
+    }
+
+    /**
+     * The mock consumer forgets records once polled, so records read again after a seek have to be added again.
+     */
+    private void redeliverEvent(long recordOffset, String json) {
+        consumer.addRecord(new ConsumerRecord<>(TOPIC, 0, recordOffset, null, json));
+    }
+
+    private void addEvent(String json) {
+        consumer.addRecord(new ConsumerRecord<>(TOPIC, 0, offset++, null, json));
+    }
+
+    private long committedOffset() {
+        return consumer.committed(PARTITION).offset();
+    }
+}
@@ -0,0 +1,130 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.web.util.UriTemplate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.model.FileDto;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class FileStatusReconcilerTest {
+    private static final String BUCKET = "test-bucket";
+    private static final UriTemplate DOWNLOAD_URI = new UriTemplate("http://download/{file}");
+
+    @Mock
+    private JobRepository mockJobRepository;
+
+    @Mock
+    private LeaderElection mockLeaderElection;
+
+    private InMemoryAmazonS3 s3Client;
+    private FileStatusReconciler reconciler;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        s3Client = new InMemoryAmazonS3();
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 0, 1000, 0);
+        reconciler = new FileStatusReconciler(mockJobRepository, listing, mockLeaderElection, new MetricRegistry(),
+                DOWNLOAD_URI, true, 2);
+        when(mockJobRepository.findPendingFiles(any(Date.class), anyString(), anyInt()))
+                .thenReturn(Collections.emptyList());
+    }
+
+    @Test
+    public void shouldMarkGeneratedFilesAsCompleteAcrossPages() {
+        // Given
+        Date first = new Date(1000);
+        Date second = new Date(2000);
+        when(mockJobRepository.findPendingFiles(new Date(0), "", 2))
+                .thenReturn(Arrays.asList(pendingFile("a.csv", first), pendingFile("b.csv", second)));
+        when(mockJobRepository.findPendingFiles(second, "b.csv", 2))
+                .thenReturn(Collections.singletonList(pendingFile("c.csv", second)));
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        s3Client.putObject(BUCKET, "c.csv", "content");
+        when(mockJobRepository.markFilesComplete(anyMap())).thenReturn(1);
+
+        // When
+        int completed = reconciler.reconcilePendingFiles();
+
+        // Then
+        assertThat(completed).isEqualTo(2);
+        verify(mockJobRepository).markFilesComplete(ImmutableMap.of("a.csv", "http://download/a.csv"));
+        verify(mockJobRepository).markFilesComplete(ImmutableMap.of("c.csv", "http://download/c.csv"));
+    }
+
+    @Test
+    public void shouldNotUpdateDatabaseWhenNoFilesGenerated() {
+        // Given
+        when(mockJobRepository.findPendingFiles(new Date(0), "", 2))
+                .thenReturn(Collections.singletonList(pendingFile("a.csv", new Date(1000))));
+
+        // When
+        int completed = reconciler.reconcilePendingFiles();
+
+        // Then
+        assertThat(completed).isZero();
+        verify(mockJobRepository, never()).markFilesComplete(anyMap());
+    }
+
+    @Test
+    public void shouldResetLagAfterCompletePass() throws Exception {
+        // Given
+        when(mockLeaderElection.isLeader()).thenReturn(true);
+        Thread.sleep(20);
+        assertThat(reconciler.getLagMillis()).isGreaterThanOrEqualTo(20);
+
+        // When
+        reconciler.reconcilePendingFiles();
+
+        // Then
+        assertThat(reconciler.getLagMillis()).isLessThan(20);
+    }
+
+    @Test
+    public void shouldOnlyRunOnLeader() {
+        // When
+        reconciler.reconcile();
+
+        // Then
+        verify(mockLeaderElection).runIfLeader(eq("file status reconciler"), any(Runnable.class));
+        verifyZeroInteractions(mockJobRepository);
+    }
+
+    @Test
+    public void shouldNotReportLagWhenNotLeader() throws Exception {
+        // Given
+        when(mockLeaderElection.runIfLeader(anyString(), any(Runnable.class))).thenReturn(false);
+        when(mockLeaderElection.isLeader()).thenReturn(false);
+        Thread.sleep(20);
+
+        // When
+        reconciler.reconcile();
+
+        // Then
+        assertThat(reconciler.getLagMillis()).isZero();
+        when(mockLeaderElection.isLeader()).thenReturn(true);
+        assertThat(reconciler.getLagMillis()).isLessThan(20);
+    }
+
+    private static FileDto pendingFile(String name, Date submittedAt) {
+        FileDto fileDto = new FileDto(name);
+        fileDto.setSubmittedAt(submittedAt);
+        return fileDto;
+    }
+}
@@ -0,0 +1,109 @@
+package uk.co.onsdigital.job.service;
+
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.model.CreateJobRequest;
+import uk.co.onsdigital.job.model.DimensionFilter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FilterFingerprinterTest {
+    private static final UUID DATA_SET_ID = UUID.randomUUID();
+
+    private final FilterFingerprinter fingerprinter = new FilterFingerprinter();
+
+    @Test
+    public void shouldIgnoreOrderAndDuplicatesOfDimensionsAndOptions() {
+        CreateJobRequest request1 = request(new DimensionFilter("first", asList("a", "b")),
+                new DimensionFilter("second", asList("c", "d")));
+        CreateJobRequest request2 = request(new DimensionFilter("second", asList("d", "c", "d")),
+                new DimensionFilter("first", asList("b", "a")));
+
+        assertThat(fingerprinter.fingerprint(request1)).isEqualTo(fingerprinter.fingerprint(request2));
+    }
+
+    @Test
+    public void shouldKeepLastOfRepeatedDimensions() {
+        CreateJobRequest request1 = request(new DimensionFilter("first", singletonList("a")),
+                new DimensionFilter("first", singletonList("b")));
+        CreateJobRequest request2 = request(new DimensionFilter("first", singletonList("b")));
+
+        assertThat(fingerprinter.fingerprint(request1)).isEqualTo(fingerprinter.fingerprint(request2));
+    }
+
+    @Test
+    public void shouldDistinguishOptionsContainingSeparators() {
+        // Both of these have the same string form, so the legacy fingerprint cannot tell them apart
+        CreateJobRequest request1 = request(new DimensionFilter("first", asList("a, b", "c")));
+        CreateJobRequest request2 = request(new DimensionFilter("first", asList("a", "b, c")));
+
+        assertThat(fingerprinter.legacyFingerprint(request1)).isEqualTo(fingerprinter.legacyFingerprint(request2));
+        assertThat(fingerprinter.fingerprint(request1)).isNotEqualTo(fingerprinter.fingerprint(request2));
+    }
+
+    @Test
+    public void shouldDistinguishDimensionsFromOptions() {
+        CreateJobRequest request1 = request(new DimensionFilter("first", singletonList("a")),
+                new DimensionFilter("second", new ArrayList<>()));
+        CreateJobRequest request2 = request(new DimensionFilter("first", asList("a", "second")));
+
+        assertThat(fingerprinter.fingerprint(request1)).isNotEqualTo(fingerprinter.fingerprint(request2));
+    }
+
+    @Test
+    public void shouldDifferFromLegacyFingerprint() {
+        CreateJobRequest request = request(new DimensionFilter("first", asList("a", "b")));
+
+        assertThat(fingerprinter.fingerprint(request)).isNotEqualTo(fingerprinter.legacyFingerprint(request))
+                .hasSize(43);
+    }
+
+    @Test
+    public void shouldMatchPreviousFileNamesForLegacyFingerprint() throws Exception {
+        CreateJobRequest request = request(new DimensionFilter("first", asList("b", "a")));
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(DATA_SET_ID.toString().getBytes(StandardCharsets.UTF_8));
+        sha256.update("{first=[a, b]}".getBytes(StandardCharsets.UTF_8));
+        String expected = Base64.getUrlEncoder().withoutPadding().encodeToString(sha256.digest());
+
+        assertThat(fingerprinter.legacyFingerprint(request)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldRecoverAfterFailedFingerprint() {
+        CreateJobRequest request = request(new DimensionFilter("first", asList("a", "b")));
+        String expected = fingerprinter.fingerprint(request);
+        try {
+            fingerprinter.fingerprint(request(new DimensionFilter("first", asList("a", null))));
+        } catch (NullPointerException e) {
+            // Expected
+        }
+
+        assertThat(fingerprinter.fingerprint(request)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldEncodeUtf8LikeString() {
+        for (String value : asList("", "plain", "café", "€100", "😀 emoji", "bad \ud83d surrogate", "\ude00")) {
+            byte[] buffer = new byte[2 + value.length() * 3];
+            int length = FilterFingerprinter.encodeUtf8(value, buffer, 2);
+
+            assertThat(Arrays.copyOfRange(buffer, 2, 2 + length)).isEqualTo(value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static CreateJobRequest request(DimensionFilter... dimensions) {
+        CreateJobRequest request = new CreateJobRequest();
+        request.setDataSetId(DATA_SET_ID);
+        request.setDimensions(asList(dimensions));
+        return request;
+    }
+}
@@ -0,0 +1,111 @@
+package uk.co.onsdigital.job.service;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
+import uk.co.onsdigital.job.model.FilterRequest;
+
+import java.io.ByteArrayInputStream;
+import java.util.Base64;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FilterRequestEncoderTest {
+    private static final String FILE_NAME = "test.csv";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private InMemoryAmazonS3 s3Client;
+    private MetricRegistry metricRegistry;
+    private FilterRequest filterRequest;
+
+    @BeforeMethod
+    public void setup() {
+        s3Client = new InMemoryAmazonS3();
+        metricRegistry = new MetricRegistry();
+        SortedSet<String> options = new TreeSet<>();
+        for (int i = 0; i < 1000; ++i) {
+            options.add("geography option " + i);
+        }
+        filterRequest = FilterRequest.builder()
+                .requestId("request1")
+                .inputUrl("s3://input/data.csv")
+                .outputUrl("s3://output/" + FILE_NAME)
+                .dimensions(ImmutableMap.of("geography", options, "sex", ImmutableSortedSet.of("Male")))
+                .build();
+    }
+
+    @Test
+    public void shouldEncodeAsPlainJson() throws Exception {
+        String message = encoder(FilterRequestEncoder.Encoding.JSON, 0).encode(filterRequest, FILE_NAME);
+
+        assertThat(message).isEqualTo(objectMapper.writeValueAsString(filterRequest));
+        assertThat(metricRegistry.histogram("kafka.filter.request.bytes").getSnapshot().getMax()).isEqualTo(message.length());
+    }
+
+    @Test
+    public void shouldCompressWithinEnvelope() throws Exception {
+        // When
+        String message = encoder(FilterRequestEncoder.Encoding.GZIP, 0).encode(filterRequest, FILE_NAME);
+
+        // Then
+        JsonNode envelope = objectMapper.readTree(message);
+        assertThat(envelope.get("version").asInt()).isEqualTo(2);
+        assertThat(envelope.get("encoding").asText()).isEqualTo("gzip");
+        byte[] compressed = Base64.getDecoder().decode(envelope.get("payload").asText());
+        JsonNode decoded = objectMapper.readTree(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        assertThat(decoded).isEqualTo(objectMapper.valueToTree(filterRequest));
+        assertThat(message.length()).isLessThan(objectMapper.writeValueAsString(filterRequest).length() / 4);
+    }
+
+    @Test
+    public void shouldStoreLargeRequestsInS3() throws Exception {
+        // When
+        String message = encoder(FilterRequestEncoder.Encoding.GZIP, 100).encode(filterRequest, FILE_NAME);
+
+        // Then
+        JsonNode envelope = objectMapper.readTree(message);
+        assertThat(envelope.get("encoding").asText()).isEqualTo("s3");
+        assertThat(envelope.get("requestId").asText()).isEqualTo("request1");
+        assertThat(envelope.get("outputUrl").asText()).isEqualTo("s3://output/" + FILE_NAME);
+        assertThat(envelope.get("payloadUrl").asText()).isEqualTo("s3://claim-bucket/requests/" + FILE_NAME + ".json");
+        assertThat(envelope.has("payload")).isFalse();
+        assertThat(s3Client.doesObjectExist("claim-bucket", "requests/" + FILE_NAME + ".json")).isTrue();
+        assertThat(metricRegistry.counter("kafka.filter.request.claim.checks").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSendSmallRequestsDirectly() throws Exception {
+        String message = encoder(FilterRequestEncoder.Encoding.JSON, 1_000_000).encode(filterRequest, FILE_NAME);
+
+        assertThat(message).isEqualTo(objectMapper.writeValueAsString(filterRequest));
+        assertThat(metricRegistry.counter("kafka.filter.request.claim.checks").getCount()).isZero();
+    }
+
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void shouldFailWhenRequestCannotBeStored() {
+        AmazonS3 failingS3 = mock(AmazonS3.class);
+        when(failingS3.putObject(anyString(), anyString(), anyString())).thenThrow(new AmazonClientException("down"));
+        FilterRequestEncoder encoder = new FilterRequestEncoder(objectMapper, failingS3, metricRegistry,
+                FilterRequestEncoder.Encoding.JSON, 100, "claim-bucket/requests");
+
+        encoder.encode(filterRequest, FILE_NAME);
+    }
+
+    private FilterRequestEncoder encoder(FilterRequestEncoder.Encoding encoding, int claimCheckBytes) {
+        return new FilterRequestEncoder(objectMapper, s3Client, metricRegistry, encoding, claimCheckBytes,
+                "claim-bucket/requests");
+    }
+}
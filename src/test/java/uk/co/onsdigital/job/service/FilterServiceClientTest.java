@@ -1,40 +1,48 @@
 package uk.co.onsdigital.job.service;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
 import uk.co.onsdigital.job.model.FileFormat;
 import uk.co.onsdigital.job.model.FileDto;
 import uk.co.onsdigital.job.model.StatusDto;
+import uk.co.onsdigital.job.persistence.JobRepository;
 import uk.co.onsdigital.logging.RequestIdProvider;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Date;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.regex.Pattern;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.anyCollection;
 import static org.mockito.Mockito.*;
 
 @SuppressWarnings("unchecked")
 public class FilterServiceClientTest {
     private static final String OUTPUT_BUCKET = "test-bucket";
     private static final String KAFKA_TOPIC = "test-topic";
+    private static final UUID DATA_SET_ID = UUID.randomUUID();
     private static final String INPUT_S3_URL = "s3://test/test.csv";
     private static final Pattern OUTPUT_URL_PATTERN = Pattern.compile("^s3://test-bucket/(.*)$");
     public static final String MOCK_ID = "mockId";
+    private static final int MAX_PENDING_SENDS = 2;
+    private static final long CLAIM_TIMEOUT_MILLIS = 60000;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -44,21 +52,42 @@ public class FilterServiceClientTest {
     @Mock
     private RequestIdProvider mockRequestIdProvider;
 
+    @Mock
+    private JobRepository mockJobRepository;
+
     @Captor
     private ArgumentCaptor<ProducerRecord<String, String>> recordArgumentCaptor;
 
+    @Captor
+    private ArgumentCaptor<Callback> callbackArgumentCaptor;
+
+    private MetricRegistry metricRegistry;
     private FilterServiceClient filterServiceClient;
 
     @BeforeMethod
     public void setup() {
         MockitoAnnotations.initMocks(this);
-        filterServiceClient = new FilterServiceClient(mockKafkaProducer, objectMapper, mockRequestIdProvider, OUTPUT_BUCKET, KAFKA_TOPIC);
+        metricRegistry = new MetricRegistry();
+        FilterRequestEncoder encoder = new FilterRequestEncoder(objectMapper, new InMemoryAmazonS3(), metricRegistry,
+                FilterRequestEncoder.Encoding.JSON, 0, "test-bucket/requests");
+        filterServiceClient = new FilterServiceClient(mockKafkaProducer, encoder, mockRequestIdProvider,
+                mockJobRepository, metricRegistry, OUTPUT_BUCKET, KAFKA_TOPIC, MAX_PENDING_SENDS, CLAIM_TIMEOUT_MILLIS);
         when(mockRequestIdProvider.getId()).thenReturn(MOCK_ID);
+        when(mockJobRepository.claimFilesForSubmission(anyCollection(), any(Date.class), any(Date.class)))
+                .thenAnswer(ctx -> new HashSet<>((Collection<String>) ctx.getArguments()[0]));
+    }
+
+    @AfterMethod
+    public void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        TransactionSynchronizationManager.unbindResourceIfPossible(filterServiceClient);
     }
 
     @Test(expectedExceptions = IllegalArgumentException.class)
     public void shouldRejectEmptyOutputFormats() {
-        filterServiceClient.submitFilterRequest(INPUT_S3_URL, Collections.emptyMap(),
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, Collections.emptyMap(),
                 Collections.singletonMap("test", Collections.singleton("a")));
     }
 
@@ -72,11 +101,12 @@ public class FilterServiceClientTest {
         Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, new FileDto("test.csv"));
 
         // When
-        filterServiceClient.submitFilterRequest(INPUT_S3_URL, files, filters);
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, filters);
 
         // Then
-        verify(mockKafkaProducer).send(recordArgumentCaptor.capture());
+        verify(mockKafkaProducer).send(recordArgumentCaptor.capture(), any(Callback.class));
         assertThat(recordArgumentCaptor.getValue().topic()).isEqualTo(KAFKA_TOPIC);
+        assertThat(recordArgumentCaptor.getValue().key()).isEqualTo(DATA_SET_ID + "/test.csv");
         final Map<String, Object> request = objectMapper.readValue(recordArgumentCaptor.getValue().value(), Map.class);
         assertThat(request)
                 .containsEntry("inputUrl", INPUT_S3_URL)
@@ -97,7 +127,7 @@ public class FilterServiceClientTest {
         Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, fileDto);
 
         // When
-        filterServiceClient.submitFilterRequest(INPUT_S3_URL, files, Collections.emptyMap());
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, Collections.emptyMap());
 
         // Then
         verifyZeroInteractions(mockKafkaProducer);
@@ -111,7 +141,7 @@ public class FilterServiceClientTest {
         Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, fileDto);
 
         // When
-        filterServiceClient.submitFilterRequest(INPUT_S3_URL, files, Collections.emptyMap());
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, Collections.emptyMap());
 
         // Then
         verifyZeroInteractions(mockKafkaProducer);
@@ -125,9 +155,157 @@ public class FilterServiceClientTest {
         Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, fileDto);
 
         // When
-        filterServiceClient.submitFilterRequest(INPUT_S3_URL, files, Collections.emptyMap());
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, Collections.emptyMap());
+
+        // Then
+        verify(mockKafkaProducer).send(any(ProducerRecord.class), any(Callback.class));
+        assertThat(metricRegistry.counter("files.resubmitted").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRecordFilesAsSubmittedOnlyWhenAcknowledged() {
+        // Given
+        Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, new FileDto("test.csv"));
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, Collections.emptyMap());
+        verify(mockKafkaProducer).send(any(ProducerRecord.class), callbackArgumentCaptor.capture());
+
+        // When
+        filterServiceClient.recordSubmissions();
+        verify(mockJobRepository, never()).markFilesSubmitted(anyCollection(), any(Date.class));
+        callbackArgumentCaptor.getValue().onCompletion(null, null);
+        filterServiceClient.recordSubmissions();
+
+        // Then
+        verify(mockJobRepository).markFilesSubmitted(eq(Collections.singleton("test.csv")), any(Date.class));
+        assertThat(filterServiceClient.getPendingSends()).isZero();
+        assertThat(metricRegistry.timer("kafka.send").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldClaimFilesWithLeaseThatGoesStaleAfterClaimTimeout() {
+        // Given
+        FileDto file = new FileDto("test.csv");
+        long staleAt = Instant.now().minus(1, ChronoUnit.HOURS).plusMillis(CLAIM_TIMEOUT_MILLIS).toEpochMilli();
+
+        // When
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, Collections.singletonMap(FileFormat.CSV, file),
+                Collections.emptyMap());
+
+        // Then
+        verify(mockJobRepository).claimFilesForSubmission(anyCollection(), eq(file.getSubmittedAt()), any(Date.class));
+        assertThat(file.getSubmittedAt().getTime()).isBetween(staleAt - 10000, staleAt);
+    }
+
+    @Test
+    public void shouldReleaseOnlyTheirOwnClaimWhenFilesFailToSend() {
+        // Given
+        FileDto file = new FileDto("test.csv");
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, Collections.singletonMap(FileFormat.CSV, file),
+                Collections.emptyMap());
+        verify(mockKafkaProducer).send(any(ProducerRecord.class), callbackArgumentCaptor.capture());
+
+        // When
+        callbackArgumentCaptor.getValue().onCompletion(null, new Exception("test"));
+        filterServiceClient.recordSubmissions();
+
+        // Then
+        verify(mockJobRepository).releaseFileClaims(Collections.singleton("test.csv"), file.getSubmittedAt());
+        verify(mockJobRepository, never()).markFilesSubmitted(anyCollection(), any(Date.class));
+        assertThat(filterServiceClient.getPendingSends()).isZero();
+        assertThat(metricRegistry.counter("kafka.send.failures").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotSendFilesClaimedByAnotherRequest() {
+        // Given
+        FileDto file = new FileDto("test.csv");
+        Date otherSubmittedAt = new Date(12345L);
+        when(mockJobRepository.claimFilesForSubmission(anyCollection(), any(Date.class), any(Date.class)))
+                .thenReturn(Collections.emptySet());
+        when(mockJobRepository.findSubmissionTimes(Collections.singleton("test.csv")))
+                .thenReturn(Collections.singletonMap("test.csv", otherSubmittedAt));
+
+        // When
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, Collections.singletonMap(FileFormat.CSV, file),
+                Collections.emptyMap());
 
         // Then
-        verify(mockKafkaProducer).send(any(ProducerRecord.class));
+        verifyZeroInteractions(mockKafkaProducer);
+        assertThat(file.getSubmittedAt()).isEqualTo(otherSubmittedAt);
+        assertThat(filterServiceClient.getPendingSends()).isZero();
+    }
+
+    @Test
+    public void shouldRejectRequestsWhenTooManyAreUnacknowledged() {
+        for (int i = 0; i < MAX_PENDING_SENDS; ++i) {
+            filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL,
+                    Collections.singletonMap(FileFormat.CSV, new FileDto(i + ".csv")), Collections.emptyMap());
+        }
+
+        try {
+            filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL,
+                    Collections.singletonMap(FileFormat.CSV, new FileDto("another.csv")), Collections.emptyMap());
+            fail("Expected ServiceUnavailableException");
+        } catch (ServiceUnavailableException e) {
+            // Expected
+        }
+        verify(mockKafkaProducer, times(MAX_PENDING_SENDS)).send(any(ProducerRecord.class), any(Callback.class));
+        verify(mockJobRepository, never()).claimFilesForSubmission(eq(Collections.singletonList("another.csv")),
+                any(Date.class), any(Date.class));
+        verify(mockJobRepository, times(MAX_PENDING_SENDS)).claimFilesForSubmission(anyCollection(), any(Date.class),
+                any(Date.class));
+    }
+
+    @Test
+    public void shouldSendOnlyWhenTransactionCommits() {
+        TransactionSynchronizationManager.initSynchronization();
+        Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, new FileDto("test.csv"));
+
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, Collections.emptyMap());
+        verifyZeroInteractions(mockKafkaProducer);
+
+        completeTransaction(TransactionSynchronization.STATUS_COMMITTED);
+        verify(mockKafkaProducer).send(any(ProducerRecord.class), any(Callback.class));
+    }
+
+    @Test
+    public void shouldNotSendWhenTransactionRollsBack() {
+        TransactionSynchronizationManager.initSynchronization();
+        Map<FileFormat, FileDto> files = Collections.singletonMap(FileFormat.CSV, new FileDto("test.csv"));
+
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL, files, Collections.emptyMap());
+        completeTransaction(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        verifyZeroInteractions(mockKafkaProducer);
+        assertThat(filterServiceClient.getPendingSends()).isZero();
+    }
+
+    @Test
+    public void shouldSendAllRequestsInTransactionTogetherWithoutDuplicates() {
+        TransactionSynchronizationManager.initSynchronization();
+        FileDto first = new FileDto("test.csv");
+        FileDto duplicate = new FileDto("test.csv");
+
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL,
+                Collections.singletonMap(FileFormat.CSV, first), Collections.emptyMap());
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL,
+                Collections.singletonMap(FileFormat.CSV, new FileDto("other.csv")), Collections.emptyMap());
+        filterServiceClient.submitFilterRequest(DATA_SET_ID, INPUT_S3_URL,
+                Collections.singletonMap(FileFormat.CSV, duplicate), Collections.emptyMap());
+        verifyZeroInteractions(mockKafkaProducer);
+        assertThat(filterServiceClient.getPendingSends()).isEqualTo(2);
+        assertThat(duplicate.getSubmittedAt()).isNotNull().isEqualTo(first.getSubmittedAt());
+        verify(mockJobRepository, times(2)).claimFilesForSubmission(anyCollection(), any(Date.class), any(Date.class));
+        assertThat(TransactionSynchronizationManager.getSynchronizations()).hasSize(1);
+
+        completeTransaction(TransactionSynchronization.STATUS_COMMITTED);
+        verify(mockKafkaProducer, times(2)).send(any(ProducerRecord.class), any(Callback.class));
+        assertThat(TransactionSynchronizationManager.hasResource(filterServiceClient)).isFalse();
+    }
+
+    private static void completeTransaction(int status) {
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(status);
+        }
     }
 }
\ No newline at end of file
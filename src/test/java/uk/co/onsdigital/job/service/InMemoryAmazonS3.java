@@ -0,0 +1,76 @@
+package uk.co.onsdigital.job.service;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-memory stand-in for S3 that supports storing, checking and listing objects. Any other operation throws
+ * {@link UnsupportedOperationException}.
+ */
+public class InMemoryAmazonS3 extends AbstractAmazonS3 {
+    private final NavigableMap<String, String> objects = new ConcurrentSkipListMap<>();
+    private final AtomicInteger listRequests = new AtomicInteger();
+    private final AtomicInteger headRequests = new AtomicInteger();
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, String content) {
+        objects.put(bucketName + "/" + key, content);
+        return new PutObjectResult();
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucketName, String objectName) {
+        headRequests.incrementAndGet();
+        return objects.containsKey(bucketName + "/" + objectName);
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        listRequests.incrementAndGet();
+        final String bucketPrefix = request.getBucketName() + "/";
+        final String prefix = bucketPrefix + (request.getPrefix() == null ? "" : request.getPrefix());
+        final String start = request.getContinuationToken() == null ? prefix : bucketPrefix + request.getContinuationToken();
+        final int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+
+        final ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(request.getPrefix());
+        for (Map.Entry<String, String> entry : objects.tailMap(start, request.getContinuationToken() == null).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            final String key = entry.getKey().substring(bucketPrefix.length());
+            if (result.getObjectSummaries().size() == maxKeys) {
+                result.setTruncated(true);
+                break;
+            }
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            summary.setSize(entry.getValue().length());
+            result.getObjectSummaries().add(summary);
+            result.setNextContinuationToken(key);
+        }
+        if (!result.isTruncated()) {
+            result.setNextContinuationToken(null);
+        }
+        result.setKeyCount(result.getObjectSummaries().size());
+        return result;
+    }
+
+    public int getListRequests() {
+        return listRequests.get();
+    }
+
+    public int getHeadRequests() {
+        return headRequests.get();
+    }
+}
@@ -0,0 +1,59 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.persistence.DataSetRepository;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class JobCostEstimatorTest {
+    private static final UUID DATA_SET_ID = UUID.randomUUID();
+
+    @Mock
+    private DataSetRepository mockDataSetRepository;
+
+    private MetricRegistry metricRegistry;
+    private JobCostEstimator estimator;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        metricRegistry = new MetricRegistry();
+        estimator = new JobCostEstimator(mockDataSetRepository, metricRegistry);
+        when(mockDataSetRepository.findDimensionSizes(DATA_SET_ID))
+                .thenReturn(ImmutableMap.of("geography", 10000L, "sex", 3L, "age", 100L));
+    }
+
+    @Test
+    public void shouldMultiplySelectedValuesByAllValuesOfUnfilteredDimensions() {
+        long rows = estimator.estimateRows(DATA_SET_ID, ImmutableSortedMap.of(
+                "geography", ImmutableSortedSet.of("a", "b"),
+                "sex", ImmutableSortedSet.of("Male")));
+
+        assertThat(rows).isEqualTo(2 * 1 * 100);
+        assertThat(metricRegistry.histogram("jobs.estimated.rows").getSnapshot().getMax()).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldEstimateWholeDataSetWhenUnfiltered() {
+        assertThat(estimator.estimateRows(DATA_SET_ID, Collections.emptySortedMap())).isEqualTo(10000L * 3 * 100);
+    }
+
+    @Test
+    public void shouldNotOverflow() {
+        when(mockDataSetRepository.findDimensionSizes(DATA_SET_ID))
+                .thenReturn(ImmutableMap.of("a", 1L << 40, "b", 1L << 40));
+
+        assertThat(estimator.estimateRows(DATA_SET_ID, Collections.emptySortedMap())).isEqualTo(Long.MAX_VALUE);
+    }
+}
@@ -1,8 +1,6 @@
 package uk.co.onsdigital.job.service;
 
-import com.amazonaws.services.s3.AmazonS3;
-import org.mockito.Mock;
-import org.mockito.MockitoAnnotations;
+import com.codahale.metrics.MetricRegistry;
 import org.springframework.web.util.UriTemplate;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -15,22 +13,19 @@ import java.util.Collections;
 import java.util.Date;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Mockito.*;
 
 public class JobDtoStatusCheckerTest {
     private static final String BUCKET = "test-bucket";
     private static final UriTemplate DOWNLOAD_URI = new UriTemplate("http://example.com/download/{filename}");
 
-
-    @Mock
-    private AmazonS3 mockS3Client;
+    private InMemoryAmazonS3 s3Client;
 
     private JobStatusChecker checker;
 
     @BeforeMethod
     public void setup() {
-        MockitoAnnotations.initMocks(this);
-        checker = new JobStatusChecker(mockS3Client, BUCKET, DOWNLOAD_URI);
+        s3Client = new InMemoryAmazonS3();
+        checker = new JobStatusChecker(new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 0, 1000, 0), DOWNLOAD_URI, 100, true);
     }
 
     @Test
@@ -40,7 +35,7 @@ public class JobDtoStatusCheckerTest {
         jobDto.setStatus(StatusDto.COMPLETE);
         jobDto.setExpiryTime(now());
         checker.updateStatus(jobDto);
-        verifyNoMoreInteractions(mockS3Client);
+        assertThat(s3Client.getListRequests()).isZero();
     }
 
     @Test
@@ -54,7 +49,7 @@ public class JobDtoStatusCheckerTest {
 
         checker.updateStatus(jobDto);
 
-        verify(mockS3Client).doesObjectExist(BUCKET, "test.csv");
+        assertThat(s3Client.getListRequests()).isEqualTo(1);
         assertThat(fileDto.isComplete()).isFalse();
         assertThat(jobDto.isComplete()).isFalse();
     }
@@ -68,7 +63,7 @@ public class JobDtoStatusCheckerTest {
         jobDto.setFiles(Arrays.asList(a, b));
         jobDto.setStatus(StatusDto.PENDING);
         jobDto.setExpiryTime(now());
-        when(mockS3Client.doesObjectExist(BUCKET, "b.csv")).thenReturn(true);
+        s3Client.putObject(BUCKET, "b.csv", "content");
 
         checker.updateStatus(jobDto);
 
@@ -88,8 +83,8 @@ public class JobDtoStatusCheckerTest {
         jobDto.setFiles(Arrays.asList(a, b));
         jobDto.setStatus(StatusDto.PENDING);
         jobDto.setExpiryTime(now());
-        when(mockS3Client.doesObjectExist(BUCKET, "b.csv")).thenReturn(true);
-        when(mockS3Client.doesObjectExist(BUCKET, "a.csv")).thenReturn(true);
+        s3Client.putObject(BUCKET, "b.csv", "content");
+        s3Client.putObject(BUCKET, "a.csv", "content");
 
         checker.updateStatus(jobDto);
 
@@ -98,5 +93,65 @@ public class JobDtoStatusCheckerTest {
         assertThat(jobDto.isComplete()).isTrue();
     }
 
+    @Test
+    public void shouldReportWhetherStatusChanged() {
+        FileDto a = new FileDto("a.csv");
+        JobDto jobDto = new JobDto();
+        jobDto.setId("x");
+        jobDto.setFiles(Collections.singletonList(a));
+        jobDto.setStatus(StatusDto.PENDING);
+        jobDto.setExpiryTime(now());
+
+        assertThat(checker.updateStatus(jobDto)).isFalse();
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        assertThat(checker.updateStatus(jobDto)).isTrue();
+        assertThat(checker.updateStatus(jobDto)).isFalse();
+    }
+
+    @Test
+    public void shouldNotListFilesAlreadyKnownToBeComplete() {
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        JobDto first = new JobDto(Collections.singletonList(new FileDto("a.csv")), now());
+        checker.updateStatus(first);
+
+        FileDto a = new FileDto("a.csv");
+        JobDto second = new JobDto(Collections.singletonList(a), now());
+        boolean changed = checker.updateStatus(second);
+
+        assertThat(changed).isTrue();
+        assertThat(second.isComplete()).isTrue();
+        assertThat(a.getUrl()).isEqualTo(DOWNLOAD_URI.expand("a.csv").toString());
+        assertThat(s3Client.getListRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCheckOutputOnReadWhenReconcilerEnabled() {
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        FileDto a = new FileDto("a.csv");
+        FileDto b = new FileDto("b.csv");
+        b.setStatus(StatusDto.COMPLETE);
+        JobDto jobDto = new JobDto(Arrays.asList(a, b), now());
+
+        assertThat(checker.refreshStatus(jobDto)).isFalse();
+        assertThat(a.isComplete()).isFalse();
+        assertThat(s3Client.getListRequests()).isZero();
+
+        a.setStatus(StatusDto.COMPLETE);
+        assertThat(checker.refreshStatus(jobDto)).isTrue();
+        assertThat(jobDto.isComplete()).isTrue();
+        assertThat(s3Client.getListRequests()).isZero();
+    }
+
+    @Test
+    public void shouldCheckOutputOnReadWhenReconcilerDisabled() {
+        checker = new JobStatusChecker(new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 0, 1000, 0), DOWNLOAD_URI, 100, false);
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        JobDto jobDto = new JobDto(Collections.singletonList(new FileDto("a.csv")), now());
+
+        assertThat(checker.refreshStatus(jobDto)).isTrue();
+        assertThat(jobDto.isComplete()).isTrue();
+        assertThat(s3Client.getListRequests()).isEqualTo(1);
+    }
+
     private static Date now() { return new Date(); }
 }
\ No newline at end of file
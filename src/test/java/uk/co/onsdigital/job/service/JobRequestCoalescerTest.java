@@ -0,0 +1,156 @@
+package uk.co.onsdigital.job.service;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.InvalidDimensionException;
+import uk.co.onsdigital.job.model.JobDto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class JobRequestCoalescerTest {
+    private static final String FINGERPRINT = "fingerprint";
+
+    private ThreadPoolTaskScheduler taskScheduler;
+    private JobRequestCoalescer coalescer;
+
+    @BeforeMethod
+    public void setup() {
+        taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.initialize();
+        coalescer = new JobRequestCoalescer(taskScheduler, 5000);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        taskScheduler.shutdown();
+    }
+
+    @Test
+    public void shouldShareResultWithIdenticalConcurrentRequests() throws Exception {
+        // Given
+        CompletableFuture<JobDto> leaderJob = new CompletableFuture<>();
+        AtomicInteger created = new AtomicInteger();
+        CompletableFuture<JobDto> leader = coalescer.coalesce(FINGERPRINT, () -> {
+            created.incrementAndGet();
+            return leaderJob;
+        });
+
+        // When
+        List<CompletableFuture<JobDto>> followers = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            followers.add(coalescer.coalesce(FINGERPRINT, () -> {
+                created.incrementAndGet();
+                return CompletableFuture.completedFuture(job());
+            }));
+        }
+
+        // Then
+        assertThat(followers).extracting("done").containsOnly(false);
+        leaderJob.complete(job());
+        JobDto result = leader.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<JobDto> follower : followers) {
+            assertThat(follower.get(5, TimeUnit.SECONDS)).isSameAs(result);
+        }
+        assertThat(created.get()).isEqualTo(1);
+        assertThat(coalescer.getInFlightCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotCoalesceDifferentRequests() throws Exception {
+        JobDto first = coalescer.coalesce("first", JobRequestCoalescerTest::createJob).get();
+        JobDto second = coalescer.coalesce("second", JobRequestCoalescerTest::createJob).get();
+
+        assertThat(first).isNotSameAs(second);
+    }
+
+    @Test
+    public void shouldOnlyShareResultOnceJobIsCreated() {
+        CompletableFuture<JobDto> leaderJob = new CompletableFuture<>();
+
+        coalescer.coalesce(FINGERPRINT, () -> leaderJob);
+        assertThat(coalescer.getInFlightCount()).isEqualTo(1);
+
+        leaderJob.complete(job());
+        assertThat(coalescer.getInFlightCount()).isZero();
+    }
+
+    @Test
+    public void shouldShareValidationErrorsWithWaitingRequests() throws Exception {
+        // Given
+        CompletableFuture<JobDto> leaderJob = new CompletableFuture<>();
+        CompletableFuture<JobDto> leader = coalescer.coalesce(FINGERPRINT, () -> leaderJob);
+        CompletableFuture<JobDto> follower = coalescer.coalesce(FINGERPRINT, JobRequestCoalescerTest::createJob);
+
+        // When
+        leaderJob.completeExceptionally(new InvalidDimensionException("test"));
+
+        // Then
+        for (CompletableFuture<JobDto> result : Arrays.asList(leader, follower)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected InvalidDimensionException");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(InvalidDimensionException.class);
+            }
+        }
+    }
+
+    @Test
+    public void shouldProcessIndependentlyWhenIdenticalRequestFailsUnexpectedly() throws Exception {
+        // Given
+        CompletableFuture<JobDto> leaderJob = new CompletableFuture<>();
+        coalescer.coalesce(FINGERPRINT, () -> leaderJob);
+        JobDto independent = job();
+        CompletableFuture<JobDto> follower = coalescer.coalesce(FINGERPRINT, () -> CompletableFuture.completedFuture(independent));
+
+        // When
+        leaderJob.completeExceptionally(new IllegalStateException("test"));
+
+        // Then
+        assertThat(follower.get(5, TimeUnit.SECONDS)).isSameAs(independent);
+    }
+
+    @Test
+    public void shouldProcessIndependentlyWhenWaitTimesOut() throws Exception {
+        // Given
+        coalescer = new JobRequestCoalescer(taskScheduler, 10);
+        coalescer.coalesce(FINGERPRINT, CompletableFuture::new);
+        JobDto independent = job();
+
+        // When
+        CompletableFuture<JobDto> result = coalescer.coalesce(FINGERPRINT, () -> CompletableFuture.completedFuture(independent));
+
+        // Then
+        assertThat(result.get(5, TimeUnit.SECONDS)).isSameAs(independent);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldThrowWhenJobCannotBeStarted() {
+        try {
+            coalescer.coalesce(FINGERPRINT, () -> {
+                throw new IllegalStateException("test");
+            });
+        } finally {
+            assertThat(coalescer.getInFlightCount()).isZero();
+        }
+    }
+
+    private static CompletableFuture<JobDto> createJob() {
+        return CompletableFuture.completedFuture(job());
+    }
+
+    private static JobDto job() {
+        return new JobDto(Collections.emptyList(), new Date());
+    }
+}
@@ -0,0 +1,207 @@
+package uk.co.onsdigital.job.service;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.NoSuchJobException;
+import uk.co.onsdigital.job.model.FileDto;
+import uk.co.onsdigital.job.model.JobDto;
+import uk.co.onsdigital.job.model.StatusDto;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+public class JobStatusNotifierTest {
+    private static final long MAX_WAIT_SECONDS = 60;
+
+    @Mock
+    private JobRepository mockJobRepository;
+
+    @Mock
+    private JobStatusChecker mockJobStatusChecker;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    private JobStatusNotifier notifier;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        notifier = new JobStatusNotifier(mockJobRepository, mockJobStatusChecker, mockTransactionManager, MAX_WAIT_SECONDS, 60000);
+    }
+
+    @Test
+    public void shouldReturnCompleteJobsImmediately() {
+        JobDto jobDto = job(StatusDto.COMPLETE, StatusDto.COMPLETE);
+
+        DeferredResult<JobDto> result = notifier.awaitChange(jobDto, 30);
+
+        assertThat(result.getResult()).isSameAs(jobDto);
+        assertThat(notifier.getWatchedJobCount()).isZero();
+    }
+
+    @Test
+    public void shouldReturnImmediatelyIfNotWaiting() {
+        JobDto jobDto = job(StatusDto.PENDING, StatusDto.PENDING);
+
+        DeferredResult<JobDto> result = notifier.awaitChange(jobDto, 0);
+
+        assertThat(result.getResult()).isSameAs(jobDto);
+        assertThat(notifier.getWatchedJobCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotifyWaitingClientWhenAFileCompletes() {
+        // Given
+        JobDto jobDto = job(StatusDto.PENDING, StatusDto.PENDING, StatusDto.PENDING);
+        DeferredResult<JobDto> result = notifier.awaitChange(jobDto, 30);
+        JobDto updated = job(StatusDto.PENDING, StatusDto.COMPLETE, StatusDto.PENDING);
+        when(mockJobRepository.findAll(singletonList(jobDto.getId()))).thenReturn(singletonMap(jobDto.getId(), updated));
+
+        // When
+        notifier.checkWatchedJobs();
+
+        // Then
+        assertThat(result.getResult()).isSameAs(updated);
+        assertThat(notifier.getWatchedJobCount()).isZero();
+    }
+
+    @Test
+    public void shouldKeepWaitingWhileStatusIsUnchanged() {
+        // Given
+        JobDto jobDto = job(StatusDto.PENDING, StatusDto.PENDING);
+        DeferredResult<JobDto> result = notifier.awaitChange(jobDto, 30);
+        when(mockJobRepository.findAll(singletonList(jobDto.getId()))).thenReturn(singletonMap(jobDto.getId(), job(StatusDto.PENDING, StatusDto.PENDING)));
+
+        // When
+        notifier.checkWatchedJobs();
+
+        // Then
+        assertThat(result.hasResult()).isFalse();
+        assertThat(notifier.getWatchedJobCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCheckEachWatchedJobOnceAndSaveChanges() {
+        // Given
+        JobDto jobDto = job(StatusDto.PENDING, StatusDto.PENDING);
+        DeferredResult<JobDto> result1 = notifier.awaitChange(jobDto, 30);
+        DeferredResult<JobDto> result2 = notifier.awaitChange(jobDto, 30);
+        JobDto updated = job(StatusDto.PENDING, StatusDto.PENDING);
+        when(mockJobRepository.findAll(singletonList(jobDto.getId()))).thenReturn(singletonMap(jobDto.getId(), updated));
+        when(mockJobStatusChecker.refreshStatus(updated)).thenAnswer(invocation -> {
+            updated.setStatus(StatusDto.COMPLETE);
+            updated.getFiles().forEach(f -> f.setStatus(StatusDto.COMPLETE));
+            return true;
+        });
+
+        // When
+        notifier.checkWatchedJobs();
+
+        // Then
+        verify(mockJobRepository, times(1)).findAll(singletonList(jobDto.getId()));
+        verify(mockJobRepository).save(updated);
+        assertThat(result1.getResult()).isSameAs(updated);
+        assertThat(result2.getResult()).isSameAs(updated);
+    }
+
+    @Test
+    public void shouldFailWaitingClientsIfJobExpires() {
+        // Given
+        JobDto jobDto = job(StatusDto.PENDING, StatusDto.PENDING);
+        DeferredResult<JobDto> result = notifier.awaitChange(jobDto, 30);
+        JobDto expired = job(StatusDto.PENDING, StatusDto.PENDING);
+        expired.setExpiryTime(new Date(0L));
+        when(mockJobRepository.findAll(singletonList(jobDto.getId()))).thenReturn(singletonMap(jobDto.getId(), expired));
+
+        // When
+        notifier.checkWatchedJobs();
+
+        // Then
+        assertThat(result.getResult()).isInstanceOf(NoSuchJobException.class);
+        assertThat(notifier.getWatchedJobCount()).isZero();
+    }
+
+    @Test
+    public void shouldStopStreamingWhenJobCompletes() {
+        // Given
+        JobDto jobDto = job(StatusDto.PENDING, StatusDto.PENDING);
+        SseEmitter emitter = notifier.subscribe(jobDto);
+        assertThat(notifier.getWatchedJobCount()).isEqualTo(1);
+        when(mockJobRepository.findAll(singletonList(jobDto.getId()))).thenReturn(singletonMap(jobDto.getId(), job(StatusDto.COMPLETE, StatusDto.COMPLETE)));
+
+        // When
+        notifier.checkWatchedJobs();
+
+        // Then
+        assertThat(emitter).isNotNull();
+        assertThat(notifier.getWatchedJobCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotWatchStreamsForCompleteJobs() {
+        notifier.subscribe(job(StatusDto.COMPLETE, StatusDto.COMPLETE));
+
+        assertThat(notifier.getWatchedJobCount()).isZero();
+        verify(mockJobRepository, never()).findAll(anyCollection());
+    }
+
+    @Test
+    public void shouldLoadWatchedJobsTogetherAndSaveEachInItsOwnTransaction() {
+        // Given
+        JobDto job1 = job(StatusDto.PENDING, StatusDto.PENDING);
+        JobDto job2 = job(StatusDto.PENDING, StatusDto.PENDING);
+        job2.setId("job2");
+        DeferredResult<JobDto> result1 = notifier.awaitChange(job1, 30);
+        DeferredResult<JobDto> result2 = notifier.awaitChange(job2, 30);
+        JobDto updated1 = job(StatusDto.COMPLETE, StatusDto.COMPLETE);
+        JobDto updated2 = job(StatusDto.COMPLETE, StatusDto.COMPLETE);
+        updated2.setId("job2");
+        Map<String, JobDto> jobs = new HashMap<>();
+        jobs.put(job1.getId(), updated1);
+        jobs.put(job2.getId(), updated2);
+        when(mockJobRepository.findAll(anyCollection())).thenReturn(jobs);
+        when(mockJobStatusChecker.refreshStatus(any(JobDto.class))).thenReturn(true);
+        when(mockJobRepository.save(updated1)).thenThrow(new IllegalStateException("test"));
+
+        // When
+        notifier.checkWatchedJobs();
+
+        // Then
+        verify(mockJobRepository, times(1)).findAll(anyCollection());
+        verify(mockJobRepository, never()).findOne(any(String.class));
+        verify(mockJobRepository).save(updated2);
+        verify(mockTransactionManager).rollback(any(TransactionStatus.class));
+        verify(mockTransactionManager, times(2)).commit(any(TransactionStatus.class));
+        assertThat(result2.getResult()).isSameAs(updated2);
+        assertThat(result1.hasResult()).isFalse();
+    }
+
+    private static JobDto job(StatusDto status, StatusDto... fileStatuses) {
+        FileDto[] files = new FileDto[fileStatuses.length];
+        for (int i = 0; i < files.length; ++i) {
+            files[i] = new FileDto("file" + i + ".csv");
+            files[i].setStatus(fileStatuses[i]);
+        }
+        JobDto jobDto = new JobDto(Arrays.asList(files), new Date(Long.MAX_VALUE));
+        jobDto.setId("job1");
+        jobDto.setStatus(status);
+        return jobDto;
+    }
+}
@@ -0,0 +1,87 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.persistence.AdvisoryLock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LeaderElectionTest {
+
+    @Mock
+    private AdvisoryLock mockAdvisoryLock;
+
+    private MetricRegistry metricRegistry;
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        metricRegistry = new MetricRegistry();
+        runs.set(0);
+    }
+
+    @Test
+    public void shouldRunTaskWhenLockIsAcquired() {
+        // Given
+        LeaderElection leaderElection = new LeaderElection(mockAdvisoryLock, metricRegistry, true);
+        when(mockAdvisoryLock.tryAcquire()).thenReturn(true);
+        when(mockAdvisoryLock.isHeld()).thenReturn(true);
+
+        // When
+        boolean ran = leaderElection.runIfLeader("test", runs::incrementAndGet);
+
+        // Then
+        assertThat(ran).isTrue();
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges().get("leader").getValue()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRunTaskWhenAnotherNodeHoldsLock() {
+        // Given
+        LeaderElection leaderElection = new LeaderElection(mockAdvisoryLock, metricRegistry, true);
+        when(mockAdvisoryLock.tryAcquire()).thenReturn(false);
+
+        // When
+        boolean ran = leaderElection.runIfLeader("test", runs::incrementAndGet);
+
+        // Then
+        assertThat(ran).isFalse();
+        assertThat(runs.get()).isZero();
+        assertThat(metricRegistry.getGauges().get("leader").getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldAlwaysRunTaskWhenDisabled() {
+        // Given
+        LeaderElection leaderElection = new LeaderElection(mockAdvisoryLock, metricRegistry, false);
+
+        // When
+        boolean ran = leaderElection.runIfLeader("test", runs::incrementAndGet);
+        leaderElection.stop();
+
+        // Then
+        assertThat(ran).isTrue();
+        assertThat(leaderElection.isLeader()).isTrue();
+        verify(mockAdvisoryLock, never()).tryAcquire();
+        verify(mockAdvisoryLock, never()).release();
+    }
+
+    @Test
+    public void shouldReleaseLockWhenStopping() {
+        LeaderElection leaderElection = new LeaderElection(mockAdvisoryLock, metricRegistry, true);
+
+        leaderElection.stop();
+
+        verify(mockAdvisoryLock).release();
+    }
+}
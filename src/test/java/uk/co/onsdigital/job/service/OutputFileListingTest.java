@@ -0,0 +1,156 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.exception.ServiceUnavailableException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OutputFileListingTest {
+    private static final String BUCKET = "test-bucket";
+
+    private InMemoryAmazonS3 s3Client;
+
+    @BeforeMethod
+    public void setup() {
+        s3Client = new InMemoryAmazonS3();
+    }
+
+    @Test
+    public void shouldFindFilesAcrossMultiplePages() {
+        for (int i = 0; i < 5; ++i) {
+            s3Client.putObject(BUCKET, i + ".csv", "content");
+        }
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 2, 100000, 60000, 1000, 0);
+
+        Set<String> result = listing.findExisting(Arrays.asList("0.csv", "4.csv", "missing.csv"));
+
+        assertThat(result).containsOnly("0.csv", "4.csv");
+        assertThat(s3Client.getListRequests()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldCheckFewFilesIndividually() {
+        s3Client.putObject(BUCKET, "output/path/a.csv", "content");
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET + "/output/path", 1000, 100000, 60000, 1000, 2);
+
+        Set<String> result = listing.findExisting(Arrays.asList("a.csv", "missing.csv"));
+
+        assertThat(result).containsOnly("a.csv");
+        assertThat(s3Client.getHeadRequests()).isEqualTo(2);
+        assertThat(s3Client.getListRequests()).isZero();
+    }
+
+    @Test
+    public void shouldCheckFewFilesAgainstFreshListing() {
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        s3Client.putObject(BUCKET, "b.csv", "content");
+        s3Client.putObject(BUCKET, "c.csv", "content");
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 60000, 1000, 2);
+        listing.findExisting(Arrays.asList("a.csv", "b.csv", "c.csv"));
+
+        Set<String> result = listing.findExisting(Arrays.asList("a.csv", "missing.csv"));
+
+        assertThat(result).containsOnly("a.csv");
+        assertThat(s3Client.getListRequests()).isEqualTo(1);
+        assertThat(s3Client.getHeadRequests()).isZero();
+    }
+
+    @Test
+    public void shouldCheckFilesMissingFromTruncatedListingIndividually() {
+        for (int i = 0; i < 9; ++i) {
+            s3Client.putObject(BUCKET, i + ".csv", "content");
+        }
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 2, 4, 60000, 1000, 1);
+
+        Set<String> result = listing.findExisting(Arrays.asList("0.csv", "3.csv", "8.csv", "missing.csv"));
+
+        assertThat(result).containsOnly("0.csv", "3.csv", "8.csv");
+        // Two pages reach the maximum keys, and only the files not in them are checked individually
+        assertThat(s3Client.getListRequests()).isEqualTo(2);
+        assertThat(s3Client.getHeadRequests()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldOnlyListFilesUnderOutputPath() {
+        s3Client.putObject(BUCKET, "output/path/a.csv", "content");
+        s3Client.putObject(BUCKET, "other/b.csv", "content");
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET + "/output/path", 1000, 100000, 60000, 1000, 0);
+
+        Set<String> result = listing.findExisting(Arrays.asList("a.csv", "b.csv"));
+
+        assertThat(result).containsOnly("a.csv");
+    }
+
+    @Test
+    public void shouldReuseListingUntilItExpires() {
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 60000, 1000, 0);
+        assertThat(listing.findExisting(Collections.singleton("a.csv"))).isEmpty();
+
+        s3Client.putObject(BUCKET, "a.csv", "content");
+
+        assertThat(listing.findExisting(Collections.singleton("a.csv"))).isEmpty();
+        assertThat(s3Client.getListRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRefreshExpiredListing() {
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 0, 1000, 0);
+        assertThat(listing.findExisting(Collections.singleton("a.csv"))).isEmpty();
+
+        s3Client.putObject(BUCKET, "a.csv", "content");
+
+        assertThat(listing.findExisting(Collections.singleton("a.csv"))).containsOnly("a.csv");
+        assertThat(s3Client.getListRequests()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotListWhenNoFilesRequested() {
+        OutputFileListing listing = new OutputFileListing(s3Client, Runnable::run, new MetricRegistry(), BUCKET, 1000, 100000, 0, 1000, 0);
+
+        assertThat(listing.findExisting(Collections.emptyList())).isEmpty();
+        assertThat(s3Client.getListRequests()).isZero();
+    }
+
+    @Test
+    public void shouldUseExpiredListingWhenS3IsSlow() {
+        s3Client.putObject(BUCKET, "a.csv", "content");
+        List<Runnable> refreshes = new ArrayList<>();
+        OutputFileListing listing = new OutputFileListing(s3Client, task -> {
+            // Only the first refresh completes, the rest never do
+            if (refreshes.isEmpty()) {
+                task.run();
+            }
+            refreshes.add(task);
+        }, new MetricRegistry(), BUCKET, 1000, 100000, 0, 10, 0);
+        assertThat(listing.findExisting(Collections.singleton("a.csv"))).containsOnly("a.csv");
+
+        s3Client.putObject(BUCKET, "b.csv", "content");
+        assertThat(listing.findExisting(Arrays.asList("a.csv", "b.csv"))).containsOnly("a.csv");
+        assertThat(listing.findExisting(Arrays.asList("a.csv", "b.csv"))).containsOnly("a.csv");
+
+        // Callers wait on the same refresh rather than starting another
+        assertThat(refreshes).hasSize(2);
+    }
+
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void shouldFailFastWhenS3IsSlowToCheckFiles() {
+        OutputFileListing listing = new OutputFileListing(s3Client, task -> { }, new MetricRegistry(), BUCKET, 1000, 100000, 0, 10, 10);
+
+        listing.findExisting(Collections.singleton("a.csv"));
+    }
+
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void shouldFailFastWhenS3IsSlowAndThereIsNoListing() {
+        OutputFileListing listing = new OutputFileListing(s3Client, task -> { }, new MetricRegistry(), BUCKET, 1000, 100000, 0, 10, 0);
+
+        listing.findExisting(Collections.singleton("a.csv"));
+    }
+}
@@ -0,0 +1,200 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static uk.co.onsdigital.job.model.StatusDto.PENDING;
+
+public class PendingJobCounterTest {
+    private static final int LIMIT = 10;
+    private static final long CLAIM_TIMEOUT_MILLIS = 60000;
+
+    @Mock
+    private JobRepository mockJobRepository;
+
+    private MetricRegistry metricRegistry;
+    private PendingJobCounter counter;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        metricRegistry = new MetricRegistry();
+        counter = new PendingJobCounter(mockJobRepository, metricRegistry, LIMIT, CLAIM_TIMEOUT_MILLIS);
+    }
+
+    @AfterMethod
+    public void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void shouldNotReserveMoreThanLimitConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger reserved = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 1000; ++i) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    if (counter.tryReserve()) {
+                        reserved.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(reserved.get()).isEqualTo(LIMIT);
+        assertThat(counter.getPendingJobs()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void shouldReleaseReservationWhenTransactionRollsBack() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        assertThat(counter.tryReserve()).isTrue();
+        assertThat(counter.getPendingJobs()).isEqualTo(1);
+
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        assertThat(counter.getPendingJobs()).isZero();
+    }
+
+    @Test
+    public void shouldIncludeUncommittedReservationsWhenReconciling() {
+        TransactionSynchronizationManager.initSynchronization();
+        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(5L);
+
+        counter.tryReserve();
+        counter.reconcile();
+
+        assertThat(counter.getPendingJobs()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldRejectWhenDatabaseCountReachesLimit() {
+        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn((long) LIMIT);
+
+        counter.reconcile();
+
+        assertThat(counter.tryReserve()).isFalse();
+    }
+
+    @Test
+    public void shouldReserveAsManySlotsAsAvailable() {
+        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn((long) LIMIT - 2);
+        counter.reconcile();
+
+        assertThat(counter.tryReserve(5)).isEqualTo(2);
+        assertThat(counter.tryReserve(1)).isZero();
+        assertThat(counter.getPendingJobs()).isEqualTo(LIMIT);
+        assertThat(metricRegistry.counter("jobs.rejected").getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldReportAgeOfOldestPendingSubmission() {
+        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(1L);
+        when(mockJobRepository.findOldestPendingSubmission(any(Date.class), any(Date.class)))
+                .thenReturn(new Date(System.currentTimeMillis() - 60000));
+
+        assertThat(counter.getOldestPendingSubmissionAge()).isZero();
+        counter.reconcile();
+
+        assertThat(counter.getOldestPendingSubmissionAge()).isBetween(60000L, 70000L);
+        assertThat((Long) metricRegistry.getGauges().get("files.pending.oldest.submission.age.ms").getValue())
+                .isBetween(60000L, 70000L);
+    }
+
+    @Test
+    public void shouldIgnoreUnacknowledgedClaimsWhenFindingOldestPendingSubmission() {
+        ArgumentCaptor<Date> after = ArgumentCaptor.forClass(Date.class);
+        ArgumentCaptor<Date> before = ArgumentCaptor.forClass(Date.class);
+        long oneHourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+        counter.reconcile();
+
+        verify(mockJobRepository).findOldestPendingSubmission(after.capture(), before.capture());
+        assertThat(after.getValue().getTime()).isBetween(oneHourAgo, oneHourAgo + 10000);
+        assertThat(before.getValue().getTime() - after.getValue().getTime()).isEqualTo(CLAIM_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void shouldReleaseAllSlotsWhenTransactionRollsBack() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        assertThat(counter.tryReserve(3)).isEqualTo(3);
+
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        assertThat(counter.getPendingJobs()).isZero();
+    }
+
+    @Test
+    public void shouldReleaseSlotOnceWhenTransactionRollsBack() {
+        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(5L);
+        counter.reconcile();
+        TransactionSynchronizationManager.initSynchronization();
+
+        assertThat(counter.tryReserve(3)).isEqualTo(3);
+        counter.release();
+
+        assertThat(counter.getPendingJobs()).isEqualTo(8);
+        completeTransaction(TransactionSynchronization.STATUS_ROLLED_BACK);
+        assertThat(counter.getPendingJobs()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldReleaseSlotWhenTransactionCommits() {
+        when(mockJobRepository.countJobsWithStatus(PENDING)).thenReturn(5L);
+        counter.reconcile();
+        TransactionSynchronizationManager.initSynchronization();
+
+        assertThat(counter.tryReserve(3)).isEqualTo(3);
+        counter.release();
+
+        completeTransaction(TransactionSynchronization.STATUS_COMMITTED);
+        assertThat(counter.getPendingJobs()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldNotReleaseBelowZero() {
+        counter.release();
+
+        assertThat(counter.getPendingJobs()).isZero();
+    }
+
+    private static void completeTransaction(int status) {
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(status);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package uk.co.onsdigital.job.service;
+
+import com.codahale.metrics.MetricRegistry;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import uk.co.onsdigital.job.persistence.JobRepository;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static uk.co.onsdigital.job.model.StatusDto.PENDING;
+
+public class PendingRowBudgetTest {
+    private static final long LIMIT = 1000;
+
+    @Mock
+    private JobRepository mockJobRepository;
+
+    private MetricRegistry metricRegistry;
+    private PendingRowBudget budget;
+
+    @BeforeMethod
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        metricRegistry = new MetricRegistry();
+        budget = new PendingRowBudget(mockJobRepository, metricRegistry, LIMIT);
+    }
+
+    @AfterMethod
+    public void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void shouldRejectJobsThatExceedRemainingBudget() {
+        assertThat(budget.tryReserve("job1", 600)).isTrue();
+        assertThat(budget.tryReserve("job2", 500)).isFalse();
+        assertThat(budget.tryReserve("job3", 400)).isTrue();
+
+        assertThat(budget.getPendingRows()).isEqualTo(LIMIT);
+        assertThat(budget.getRemainingRows()).isZero();
+        assertThat(metricRegistry.counter("jobs.rejected.rows").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges().get("jobs.pending.rows").getValue()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void shouldAdmitLargeJobWhenNothingElseIsPending() {
+        assertThat(budget.tryReserve("huge", LIMIT * 10)).isTrue();
+        assertThat(budget.tryReserve("small", 1)).isFalse();
+    }
+
+    @Test
+    public void shouldReleaseRowsOfFinishedJobsWhenReconciling() {
+        budget.tryReserve("pending", 300);
+        budget.tryReserve("complete", 500);
+        when(mockJobRepository.findJobsWithStatus(anyCollection(), eq(PENDING))).thenReturn(Collections.singleton("pending"));
+
+        budget.reconcile();
+
+        assertThat(budget.getPendingRows()).isEqualTo(300);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldNotReleaseUncommittedJobsWhenReconciling() {
+        TransactionSynchronizationManager.initSynchronization();
+        budget.tryReserve("uncommitted", 300);
+
+        budget.reconcile();
+
+        assertThat(budget.getPendingRows()).isEqualTo(300);
+        verify(mockJobRepository, never()).findJobsWithStatus(anyCollection(), eq(PENDING));
+    }
+
+    @Test
+    public void shouldReleaseRowsWhenTransactionRollsBack() {
+        TransactionSynchronizationManager.initSynchronization();
+        budget.tryReserve("job1", 300);
+
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        for (TransactionSynchronization synchronization : synchronizations) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+
+        assertThat(budget.getPendingRows()).isZero();
+    }
+
+    @Test
+    public void shouldOnlyReleaseOnce() {
+        budget.tryReserve("job1", 300);
+        budget.tryReserve("job2", 200);
+
+        budget.release("job1");
+        budget.release("job1");
+
+        assertThat(budget.getPendingRows()).isEqualTo(200);
+    }
+}
@@ -1,5 +1,6 @@
 package uk.co.onsdigital.job.service;
 
+import com.codahale.metrics.MetricRegistry;
 import org.mockito.*;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -9,21 +10,39 @@ import java.util.Date;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class SchedulerTest {
+    private static final int BATCH_SIZE = 10;
+    private static final long ORPHANED_FILE_MIN_AGE = 3600000;
 
     @Mock
     private JobRepository jobRepository;
 
-    private ArgumentCaptor<Long> captor;
+    @Mock
+    private LeaderElection leaderElection;
+
+    private MetricRegistry metricRegistry;
 
     private Scheduler testObj;
 
     @BeforeMethod
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
-        testObj = new Scheduler(jobRepository);
+        metricRegistry = new MetricRegistry();
+        testObj = new Scheduler(jobRepository, leaderElection, metricRegistry, BATCH_SIZE, 60000, ORPHANED_FILE_MIN_AGE);
+        when(leaderElection.runIfLeader(anyString(), any(Runnable.class))).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[1]).run();
+            return true;
+        });
     }
 
     @Test
@@ -32,9 +51,57 @@ public class SchedulerTest {
         ArgumentCaptor<Date> captor = ArgumentCaptor.forClass(Date.class);
 
         testObj.deleteExpiredJobs();
-        verify(jobRepository).deleteJobsExpiringBefore(captor.capture());
+        verify(jobRepository).deleteExpiredJobs(captor.capture(), eq(BATCH_SIZE));
         assertThat(captor.getValue(), is(greaterThanOrEqualTo(start)));
         assertThat(captor.getValue(), is(lessThanOrEqualTo(new Date())));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldDeleteInBatchesUntilNoneLeft() throws Exception {
+        when(jobRepository.deleteExpiredJobs(any(Date.class), anyInt())).thenReturn(BATCH_SIZE, BATCH_SIZE, 3);
+        when(jobRepository.deleteOrphanedFiles(any(Date.class), anyInt())).thenReturn(BATCH_SIZE, 0);
+
+        testObj.deleteExpiredJobs();
+
+        verify(jobRepository, times(3)).deleteExpiredJobs(any(Date.class), eq(BATCH_SIZE));
+        verify(jobRepository, times(2)).deleteOrphanedFiles(any(Date.class), eq(BATCH_SIZE));
+        assertThat(metricRegistry.counter("expiry.jobs.deleted").getCount(), is(23L));
+        assertThat(metricRegistry.counter("expiry.files.deleted").getCount(), is(10L));
+        assertThat(testObj.getSweepLagMillis(), is(0L));
+    }
+
+    @Test
+    public void shouldOnlyDeleteFilesThatHaveNotBeenSubmittedRecently() throws Exception {
+        ArgumentCaptor<Date> captor = ArgumentCaptor.forClass(Date.class);
+
+        testObj.deleteExpiredJobs();
+
+        verify(jobRepository).deleteOrphanedFiles(captor.capture(), eq(BATCH_SIZE));
+        assertThat(captor.getValue(), is(lessThanOrEqualTo(new Date(System.currentTimeMillis() - ORPHANED_FILE_MIN_AGE))));
+    }
+
+    @Test
+    public void shouldStopWhenTimeBudgetIsUsedAndReportLag() throws Exception {
+        testObj = new Scheduler(jobRepository, leaderElection, metricRegistry = new MetricRegistry(), BATCH_SIZE, 0,
+                ORPHANED_FILE_MIN_AGE);
+        when(jobRepository.deleteExpiredJobs(any(Date.class), anyInt())).thenReturn(BATCH_SIZE);
+        when(jobRepository.findOldestExpiryBefore(any(Date.class))).thenReturn(new Date(System.currentTimeMillis() - 60000));
+
+        testObj.deleteExpiredJobs();
+
+        verify(jobRepository, times(1)).deleteExpiredJobs(any(Date.class), eq(BATCH_SIZE));
+        verify(jobRepository, never()).deleteOrphanedFiles(any(Date.class), anyInt());
+        assertThat(testObj.getSweepLagMillis(), is(both(greaterThanOrEqualTo(60000L)).and(lessThan(70000L))));
+        assertThat(metricRegistry.getGauges().get("expiry.lag.ms").getValue(), is((Object) testObj.getSweepLagMillis()));
+    }
+
+    @Test
+    public void shouldNotDeleteWhenAnotherNodeIsLeader() throws Exception {
+        doReturn(false).when(leaderElection).runIfLeader(anyString(), any(Runnable.class));
+
+        testObj.deleteExpiredJobs();
+
+        verify(jobRepository, never()).deleteExpiredJobs(any(Date.class), anyInt());
+        verify(jobRepository, never()).deleteOrphanedFiles(any(Date.class), anyInt());
+    }
+}